@@ -0,0 +1,179 @@
+package com.umarabdul.jschat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+* The connections a server has accepted that are yet to log in, and the limits on them, so a storm of
+* reconnects, or connections that never log in, can't exhaust the server.
+*
+* <ul>
+*   <li>Connections from an address are limited by a token bucket: a burst of them is taken at once, and
+*   more at a steady rate after. Those over the limit are closed as soon as they're accepted. Loopback
+*   addresses are exempt, such as for local tools and benchmarks.</li>
+*   <li>The connections yet to log in are capped. Past the cap, the oldest is closed to make room for the
+*   newest, once it has had {@code MIN_LOGIN_TIME} to log in, so under a flood they get less time rather than
+*   newer ones none. Until then, the server stops accepting, and new connections wait in the OS's backlog.</li>
+*   <li>Connections that haven't logged in within {@code NioChannelEngine.AUTH_TIMEOUT} are closed, by a
+*   deadline on the timer wheel of the accepting thread.</li>
+* </ul>
+*
+* Used by the single thread accepting connections; the count of pending connections may be read by any.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class Admission{
+
+  public static final int MIN_LOGIN_TIME = 1000; // Time a connection has to log in before it can be closed for a newer one, in milliseconds.
+  public static final long SWEEP_INTERVAL = 10000000000L; // Time between removals of the buckets of idle addresses, in nanoseconds.
+
+  private final Metrics metrics;
+  private final int maxPending;
+  private final double rate;
+  private final int burst;
+  private final LinkedHashMap<NioClient, TimerWheel.Timeout> pending; // Oldest first, with their deadlines.
+  private final HashMap<InetAddress, TokenBucket> buckets;
+  private volatile int count = 0; // Size of pending, for other threads.
+  private long lastSweep;
+
+  /**
+  * Class constructor.
+  * @param metrics Metrics to count refused and evicted connections in.
+  * @param maxPending Most connections yet to log in.
+  * @param rate New connections allowed per second from an address, once its burst is used; {@code 0} for no limit.
+  * @param burst New connections allowed at once from an address.
+  */
+  public Admission(Metrics metrics, int maxPending, double rate, int burst){
+
+    this.metrics = metrics;
+    this.maxPending = maxPending;
+    this.rate = rate;
+    this.burst = burst;
+    pending = new LinkedHashMap<NioClient, TimerWheel.Timeout>();
+    buckets = new HashMap<InetAddress, TokenBucket>();
+    lastSweep = System.nanoTime();
+  }
+
+  /**
+  * Check if another connection can be accepted: fewer than allowed are yet to log in, or the oldest of them
+  * has had {@code MIN_LOGIN_TIME} to.
+  * @param now Output of {@code System.currentTimeMillis()}.
+  * @return {@code true} if one can.
+  */
+  public boolean canAccept(long now){
+    return pending.size() < maxPending || now - pending.keySet().iterator().next().getAcceptTime() >= MIN_LOGIN_TIME;
+  }
+
+  /**
+  * Check a connection just accepted against the rate of its address, closing it if over.
+  * @param sock The connection.
+  * @return {@code false} if the connection was refused.
+  */
+  public boolean allow(Socket sock){
+
+    InetAddress address = sock.getInetAddress();
+    if (rate <= 0 || address == null || address.isLoopbackAddress())
+      return true;
+    long now = System.nanoTime();
+    if (now - lastSweep >= SWEEP_INTERVAL)
+      sweep(now);
+    TokenBucket b = buckets.get(address);
+    if (b == null){
+      b = new TokenBucket();
+      buckets.put(address, b);
+    }
+    if (b.take(rate, burst, now))
+      return true;
+    metrics.refused();
+    try{
+      sock.close();
+    }catch(IOException e){}
+    return false;
+  }
+
+  /**
+  * Add a connection accepted to those yet to log in, closing the oldest if that's more than allowed, and
+  * schedule its deadline to log in.
+  * @param client The client.
+  * @param timers Wheel of the accepting thread, the one calling.
+  */
+  public void add(NioClient client, TimerWheel timers){
+
+    TimerWheel.Timeout deadline = timers.schedule(new Runnable(){
+      @Override
+      public void run(){
+        if (pending.remove(client) == null)
+          return;
+        count = pending.size();
+        client.close();
+      }
+    }, NioChannelEngine.AUTH_TIMEOUT);
+    pending.put(client, deadline);
+    if (pending.size() > maxPending){
+      Iterator<Map.Entry<NioClient, TimerWheel.Timeout>> iter = pending.entrySet().iterator();
+      Map.Entry<NioClient, TimerWheel.Timeout> oldest = iter.next();
+      oldest.getValue().cancel();
+      oldest.getKey().close();
+      iter.remove();
+      metrics.evicted();
+    }
+    count = pending.size();
+  }
+
+  /**
+  * Take a connection off those yet to log in, such as once it has, or failed.
+  * @param client The client.
+  * @return {@code false} if it wasn't among them.
+  */
+  public boolean remove(NioClient client){
+
+    TimerWheel.Timeout deadline = pending.remove(client);
+    if (deadline == null)
+      return false;
+    deadline.cancel();
+    count = pending.size();
+    return true;
+  }
+
+  /**
+  * Close all connections yet to log in, such as when the server stops.
+  */
+  public void closeAll(){
+
+    for (NioClient client : pending.keySet())
+      client.close();
+    pending.clear();
+    count = 0;
+  }
+
+  /**
+  * Return the number of connections yet to log in.
+  * @return Pending connections.
+  */
+  public int getPending(){
+    return count;
+  }
+
+  /**
+  * Remove the buckets of addresses that would have a full burst by now, which are the same as none, so
+  * the map only holds the addresses connecting lately.
+  */
+  private void sweep(long now){
+
+    lastSweep = now;
+    Iterator<TokenBucket> iter = buckets.values().iterator();
+    while (iter.hasNext()){
+      if (iter.next().isFull(rate, burst, now))
+        iter.remove();
+    }
+  }
+}
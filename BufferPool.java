@@ -0,0 +1,74 @@
+package com.umarabdul.jschat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+
+/**
+* A pool of byte buffers of one size, for encoding messages into before they're written, so writing costs no
+* allocation. A buffer is taken for a write and given back right after; the pool holds up to a number of
+* buffers given back, and makes new ones when it runs out, so it only grows to the number of writes made at
+* once. Thread-safe.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class BufferPool{
+
+  private final int size;
+  private final int max;
+  private final boolean direct;
+  private final ArrayDeque<ByteBuffer> free;
+
+  /**
+  * Class constructor.
+  * @param size Capacity of every buffer, in bytes.
+  * @param max Most buffers kept when given back.
+  * @param direct Whether the buffers are direct, for writing to channels without a copy.
+  */
+  public BufferPool(int size, int max, boolean direct){
+
+    this.size = size;
+    this.max = max;
+    this.direct = direct;
+    free = new ArrayDeque<ByteBuffer>(max);
+  }
+
+  /**
+  * Take a buffer, cleared.
+  * @return The buffer.
+  */
+  public ByteBuffer acquire(){
+
+    ByteBuffer buf;
+    synchronized (free){
+      buf = free.poll();
+    }
+    if (buf == null)
+      return (direct) ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    buf.clear();
+    return buf;
+  }
+
+  /**
+  * Give back a buffer taken, which is not to be used after.
+  * @param buf The buffer.
+  */
+  public void release(ByteBuffer buf){
+
+    synchronized (free){
+      if (free.size() < max)
+        free.push(buf);
+    }
+  }
+
+  /**
+  * Return the capacity of the buffers.
+  * @return Size in bytes.
+  */
+  public int getSize(){
+    return size;
+  }
+}
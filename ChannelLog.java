@@ -0,0 +1,506 @@
+package com.umarabdul.jschat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+* The persistent message log of a channel: an append-only sequence of frames, split into segment files
+* in the channel's own directory. Every message gets the next sequence number of the channel, and a segment
+* file is named after the sequence number of its first message, so the files sort in message order.
+*
+* Each record is a 21 byte header followed by the payload of the frame:
+*
+* <pre>
+*   +------------------+---------------+----------------+--------+-----------------+
+*   | length (int32)   | seq (int64)   | time (int64)   | type   | payload         |
+*   | 4 bytes          | 8 bytes       | 8 bytes (ms)   | 1 byte | length bytes    |
+*   +------------------+---------------+----------------+--------+-----------------+
+* </pre>
+*
+* Appends are queued, and written by a task run on an executor shared by the server's logs, so a message is
+* logged without the thread relaying it waiting on the disk, and an idle log costs no thread; appends only
+* wait if the writer falls a long way behind. A log has at most one task writing it at a time, which hands
+* its thread over to the other logs after every batch of records. Sequence numbers are given
+* out as messages are queued. The newest segment is mapped at its full size once, when it's started, and
+* records are written into the mapping; it's replaced by a new one once it reaches the segment size, and cut
+* down to the records written. Old segments are deleted once the log exceeds its size limit, or once their
+* newest message exceeds the age limit. Records are read back through the segments' mappings, with the log
+* locked only long enough to take a snapshot of where to read, so replaying to a new user doesn't hold up
+* appends; messages still queued are replayed from the queue.
+*
+* Appends aren't forced to disk; once written they survive the server crashing, but not the machine. A
+* record torn by a crash is cut off when the log is reopened.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class ChannelLog implements Closeable{
+
+  public static final int RECORD_HEADER = 21; // Bytes in front of every payload.
+  public static final String SUFFIX = ".log";
+  private static final long RETENTION_INTERVAL = 60000; // Least time between age checks made by the writer, in milliseconds.
+  private static final int MAX_QUEUED = 8192; // Appends waiting to be written before appending waits too.
+  private static final int WRITE_BATCH = 256; // Records written by a task before it makes way for other logs.
+
+  private final File dir;
+  private final long segmentSize;
+  private final long maxBytes;
+  private final long maxAge;
+  private final ArrayList<Segment> segments; // Oldest first; the last one is written to.
+  private final int[] offsets; // Offsets of the most recent records in their segments, indexed by sequence number.
+  private final ArrayDeque<Frame> queue; // Appended but not yet written, oldest first.
+  private final Executor writer; // Runs the tasks writing the queued appends, shared by the server's logs.
+  private final Runnable drain; // Task writing the queued appends.
+  private boolean scheduled = false; // Whether the task is queued or running.
+  private FileChannel out;
+  private MappedByteBuffer active; // The newest segment at its full size, written through by the writer only.
+  private long nextSeq; // Given to the next append.
+  private long written; // Following the last record written; the first queued.
+  private long lastRetention;
+  private boolean closed = false;
+
+  /**
+  * A segment file.
+  */
+  private static class Segment{
+
+    final long base; // Sequence number of the first record.
+    final File file;
+    long size;
+    long lastWrite; // Time of the newest record, in milliseconds.
+    MappedByteBuffer map; // The whole file; the newest segment at its full size.
+
+    Segment(long base, File file){
+
+      this.base = base;
+      this.file = file;
+      size = file.length();
+      lastWrite = file.lastModified();
+    }
+  }
+
+  /**
+  * Open the log in the given directory, creating it if needed, and recover its state from the segments found.
+  * @param dir Directory of the channel's segments.
+  * @param segmentSize Size at which a new segment is started, in bytes; at least one record of the largest payload.
+  * @param maxBytes Total size of segments to retain, in bytes; {@code 0} for no limit.
+  * @param maxAge Age of messages to retain, in milliseconds; {@code 0} for no limit.
+  * @param recent Number of recent messages to keep an index of, the most that can be replayed.
+  * @param writer Executor to write appends on, shared by the server's logs; must not be shut down before the log is closed.
+  * @throws IOException if the directory or its segments can't be read.
+  */
+  public ChannelLog(File dir, long segmentSize, long maxBytes, long maxAge, int recent, Executor writer) throws IOException{
+
+    if (!(dir.isDirectory()) && !(dir.mkdirs()))
+      throw new IOException("Unable to create " + dir);
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.maxBytes = maxBytes;
+    this.maxAge = maxAge;
+    segments = new ArrayList<Segment>();
+    offsets = new int[Math.max(recent, 1)];
+    queue = new ArrayDeque<Frame>();
+    File[] files = dir.listFiles();
+    if (files == null)
+      throw new IOException("Unable to read " + dir);
+    Arrays.sort(files);
+    for (File f : files){
+      String name = f.getName();
+      if (!(name.endsWith(SUFFIX)))
+        continue;
+      try{
+        segments.add(new Segment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), f));
+      }catch(NumberFormatException e){}
+    }
+    recover();
+    for (File f : enforceRetention())
+      delete(f);
+    this.writer = writer;
+    drain = new Runnable(){
+      @Override
+      public void run(){
+        write();
+      }
+    };
+  }
+
+  /**
+  * Scan the newest segments for the next sequence number and the offsets of the recent records, cutting off
+  * a torn record at the end, and map the newest segment for writing.
+  */
+  private void recover() throws IOException{
+
+    if (segments.isEmpty()){
+      nextSeq = written = 0;
+      Segment seg = new Segment(0, segmentFile(0));
+      out = openSegment(seg);
+      segments.add(seg);
+      return;
+    }
+    int first = segments.size() - 1; // Scan back until enough records are found to fill the index.
+    long found = 0;
+    while (first > 0 && found < offsets.length){
+      first--;
+      found += segments.get(first + 1).base - segments.get(first).base;
+    }
+    for (int i = first; i < segments.size(); i++){
+      Segment seg = segments.get(i);
+      boolean last = (i == segments.size() - 1);
+      FileChannel fc = FileChannel.open(seg.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      long end = 0;
+      long seq = seg.base;
+      if (seg.size > 0){
+        MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, seg.size);
+        while (buf.remaining() >= RECORD_HEADER){
+          int pos = buf.position();
+          int len = buf.getInt(pos);
+          if (len < 0 || len > Frame.MAX_PAYLOAD || buf.remaining() < RECORD_HEADER + len || buf.getLong(pos + 4) != seq || buf.getLong(pos + 12) <= 0)
+            break; // Torn, or the unwritten end of a segment mapped at its full size.
+          offsets[(int)(seq % offsets.length)] = pos;
+          buf.position(pos + RECORD_HEADER + len);
+          end = buf.position();
+          seq++;
+        }
+      }
+      if (end < seg.size){ // Torn write.
+        fc.truncate(end);
+        seg.size = end;
+      }
+      if (last){
+        nextSeq = written = seq;
+        fc.close();
+        out = openSegment(seg);
+      }else{
+        fc.close();
+        seal(seg);
+      }
+    }
+    for (int i = 0; i < first; i++)
+      seal(segments.get(i));
+  }
+
+  /**
+  * Return the file of the segment starting at the given sequence number.
+  */
+  private File segmentFile(long base){
+    return new File(dir, String.format("%020d%s", base, SUFFIX));
+  }
+
+  /**
+  * Open a segment for writing after the records it has, mapping it at the full segment size.
+  * @return The open file.
+  */
+  private FileChannel openSegment(Segment seg) throws IOException{
+
+    FileChannel fc = FileChannel.open(seg.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try{
+      fc.truncate(seg.size);
+      seg.map = fc.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, seg.size));
+    }catch(IOException e){
+      fc.close();
+      throw e;
+    }
+    active = seg.map.duplicate();
+    return fc;
+  }
+
+  /**
+  * Map a segment that will no longer be written to. A mapping stays valid when its file is deleted, so
+  * readers never see a sealed segment disappear.
+  */
+  private static void seal(Segment seg) throws IOException{
+
+    seg.map = null;
+    if (seg.size == 0)
+      return;
+    FileChannel fc = FileChannel.open(seg.file.toPath(), StandardOpenOption.READ);
+    try{
+      seg.map = fc.map(FileChannel.MapMode.READ_ONLY, 0, seg.size);
+    }finally{
+      fc.close();
+    }
+  }
+
+  /**
+  * Append a frame to the log, queueing it for the writer. Waits only while the writer is far behind.
+  * @param frame Frame to append.
+  * @return Sequence number of the frame, {@code -1} if the log is closed.
+  */
+  public synchronized long append(Frame frame){
+
+    try{
+      while (queue.size() >= MAX_QUEUED && !(closed))
+        wait();
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      return -1;
+    }
+    if (closed)
+      return -1;
+    queue.add(frame);
+    if (!(scheduled)){
+      scheduled = true;
+      try{
+        writer.execute(drain);
+      }catch(RejectedExecutionException e){ // Shut down; close() writes what's left.
+        scheduled = false;
+      }
+    }
+    return nextSeq++;
+  }
+
+  /**
+  * Write the queued frames until none are left, or until a batch is written, in which case the task is queued
+  * again behind those of other logs. Segments are rolled and retention enforced here, with the log locked only
+  * to swap in what was prepared without it.
+  */
+  private void write(){
+
+    for (int count = 0; ; count++){
+      Frame frame;
+      long seq;
+      Segment seg;
+      synchronized (this){
+        if (queue.isEmpty() || count == WRITE_BATCH){
+          if (!(queue.isEmpty()) && !(closed)){
+            try{
+              writer.execute(drain);
+              return;
+            }catch(RejectedExecutionException e){}
+          }
+          if (queue.isEmpty() || !(closed)){
+            scheduled = false;
+            notifyAll();
+            return;
+          }
+        }
+        frame = queue.peek();
+        seq = written;
+        seg = segments.get(segments.size() - 1);
+      }
+      byte[] payload = frame.getPayload();
+      long now = System.currentTimeMillis();
+      ArrayList<File> expired = null;
+      try{
+        if (seg.size + RECORD_HEADER + payload.length > segmentSize){
+          Segment old = seg;
+          seg = new Segment(seq, segmentFile(seq));
+          seg.size = 0;
+          seg.lastWrite = now;
+          out.truncate(old.size); // Before the next segment exists, so a crash never leaves an unwritten end behind it.
+          out.close();
+          out = openSegment(seg);
+          Segment sealed = new Segment(old.base, old.file);
+          sealed.size = old.size;
+          seal(sealed);
+          synchronized (this){
+            old.map = sealed.map;
+            segments.add(seg);
+            expired = enforceRetention();
+          }
+        }else if (maxAge > 0 && now - lastRetention >= RETENTION_INTERVAL){
+          synchronized (this){
+            expired = enforceRetention();
+          }
+        }
+      }catch(IOException e){ // Nowhere to write; the log stops, and the messages only go out live.
+        e.printStackTrace();
+        synchronized (this){
+          closed = true;
+          queue.clear();
+          nextSeq = written;
+          scheduled = false;
+          notifyAll();
+        }
+        return;
+      }
+      if (expired != null){
+        for (File f : expired)
+          delete(f);
+      }
+      int pos = (int)seg.size;
+      active.position(pos);
+      active.putInt(payload.length).putLong(seq).putLong(now).put(frame.getType()).put(payload);
+      synchronized (this){
+        offsets[(int)(seq % offsets.length)] = pos;
+        seg.size = pos + RECORD_HEADER + payload.length;
+        seg.lastWrite = now;
+        written++;
+        queue.poll();
+        if (queue.size() == MAX_QUEUED - 1)
+          notifyAll();
+      }
+    }
+  }
+
+  /**
+  * Drop the oldest segments while the log is over its size limit, or while their newest message is over
+  * the age limit. The segment being written to is never dropped.
+  * @return The files of the segments dropped, to be deleted.
+  */
+  private ArrayList<File> enforceRetention(){
+
+    long now = System.currentTimeMillis();
+    lastRetention = now;
+    ArrayList<File> expired = new ArrayList<File>();
+    long total = 0;
+    for (Segment seg : segments)
+      total += seg.size;
+    while (segments.size() > 1){
+      Segment oldest = segments.get(0);
+      boolean tooBig = (maxBytes > 0 && total > maxBytes);
+      boolean tooOld = (maxAge > 0 && now - oldest.lastWrite > maxAge);
+      if (!(tooBig || tooOld))
+        break;
+      segments.remove(0);
+      total -= oldest.size;
+      expired.add(oldest.file);
+    }
+    return expired;
+  }
+
+  /**
+  * Delete a segment file dropped from the log.
+  */
+  private static void delete(File f){
+
+    if (!(f.delete()))
+      System.err.println("Unable to delete " + f);
+  }
+
+  /**
+  * Return the sequence number the next message will get.
+  * @return Next sequence number, the number of messages ever logged.
+  */
+  public synchronized long getNextSequence(){
+    return nextSeq;
+  }
+
+  /**
+  * Return the sequence number of the oldest message retained.
+  * @return First sequence number.
+  */
+  public synchronized long getFirstSequence(){
+    return segments.get(0).base;
+  }
+
+  /**
+  * Return the total size of the segments retained, as written so far.
+  * @return Size in bytes.
+  */
+  public synchronized long getSize(){
+
+    long total = 0;
+    for (Segment seg : segments)
+      total += seg.size;
+    return total;
+  }
+
+  /**
+  * Send a client the messages logged from the given sequence number on, as far back as the index of recent
+  * messages reaches. The messages are read after the log is unlocked, so appends carry on meanwhile; those
+  * are not sent, and can be caught up on by calling again with the returned sequence number.
+  * @param client Client to send to.
+  * @param from Sequence number of the first message wanted.
+  * @return Sequence number following the last message sent.
+  */
+  public long replay(Client client, long from){
+
+    ByteBuffer[] maps = null;
+    Frame[] queued = null;
+    long end;
+    long start;
+    long last; // Following the last record written, when the snapshot was taken.
+    synchronized (this){
+      end = nextSeq;
+      last = written;
+      start = Math.max(from, Math.max(last - offsets.length, segments.get(0).base));
+      if (closed || start >= end)
+        return end;
+      if (start < last){
+        int index = segments.size() - 1;
+        while (segments.get(index).base > start)
+          index--;
+        maps = new ByteBuffer[segments.size() - index];
+        for (int i = 0; i < maps.length; i++){
+          Segment seg = segments.get(index + i);
+          if (seg.map == null)
+            continue;
+          maps[i] = seg.map.duplicate();
+          maps[i].limit((int)seg.size);
+        }
+        if (maps[0] != null)
+          maps[0].position(offsets[(int)(start % offsets.length)]);
+      }
+      if (end > last)
+        queued = queue.toArray(new Frame[0]);
+    }
+    long seq = start;
+    for (int i = 0; maps != null && i < maps.length && seq < last; i++){
+      ByteBuffer buf = maps[i];
+      if (buf == null)
+        continue;
+      while (seq < last && buf.remaining() >= RECORD_HEADER){
+        int len = buf.getInt();
+        buf.getLong(); // Sequence number.
+        buf.getLong(); // Time.
+        byte type = buf.get();
+        byte[] payload = new byte[len];
+        buf.get(payload);
+        client.send(new Frame(type, (byte)0, payload));
+        seq++;
+      }
+    }
+    seq = Math.max(seq, last);
+    for (; queued != null && seq < end; seq++)
+      client.send(queued[(int)(seq - last)]);
+    return seq;
+  }
+
+  /**
+  * Close the log, waiting for the writer to write what was queued, and cut the newest segment down to the
+  * records written. Further appends are ignored.
+  */
+  @Override
+  public void close(){
+
+    synchronized (this){
+      closed = true;
+      notifyAll();
+      boolean interrupted = false;
+      while (scheduled){ // The task has to be done before this thread may write.
+        try{
+          wait();
+        }catch(InterruptedException e){
+          interrupted = true;
+        }
+      }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+      scheduled = true; // Writing what's left here, if the executor couldn't.
+    }
+    write();
+    synchronized (this){
+      if (!(out.isOpen()))
+        return;
+      try{
+        segments.get(segments.size() - 1).map.force();
+        out.truncate(segments.get(segments.size() - 1).size);
+        out.close();
+      }catch(IOException e){
+        e.printStackTrace();
+      }
+    }
+  }
+}
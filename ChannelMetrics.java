@@ -0,0 +1,136 @@
+package com.umarabdul.jschat;
+
+
+/**
+* Traffic metrics of a single channel. Updated by the server engines as messages are received and broadcast,
+* and read by {@code Metrics} when publishing.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class ChannelMetrics implements ChannelMetricsMBean{
+
+  private ChannelState channel;
+  private Metrics.Counter messages = new Metrics.Counter();
+  private Metrics.Counter bytesIn = new Metrics.Counter();
+  private Metrics.Counter bytesOut = new Metrics.Counter();
+  private Metrics.Counter throttled = new Metrics.Counter();
+  private Histogram fanOut = new Histogram(Metrics.MAX_LATENCY);
+
+  /**
+  * Class constructor.
+  * @param channel The channel measured.
+  */
+  public ChannelMetrics(ChannelState channel){
+    this.channel = channel;
+  }
+
+  /**
+  * Count a chat message received from a user.
+  * @param bytes Size of the message, with framing.
+  */
+  public void received(int bytes){
+
+    messages.increment();
+    bytesIn.add(bytes);
+  }
+
+  /**
+  * Count a chat message dropped for being over the sender's or the channel's rate limit.
+  */
+  public void throttled(){
+    throttled.increment();
+  }
+
+  /**
+  * Count data sent to users of the channel.
+  * @param bytes Bytes sent, with framing.
+  */
+  public void sent(long bytes){
+    bytesOut.add(bytes);
+  }
+
+  /**
+  * Record the time taken to hand a chat message to every user.
+  * @param nanos Duration, in nanoseconds.
+  */
+  public void fannedOut(long nanos){
+    fanOut.record(nanos);
+  }
+
+  /**
+  * Return the fan-out durations recorded.
+  * @return Histogram of durations, in nanoseconds.
+  */
+  public Histogram getFanOut(){
+    return fanOut;
+  }
+
+  @Override
+  public int getMembers(){
+    return channel.size();
+  }
+
+  @Override
+  public long getMessages(){
+    return messages.get();
+  }
+
+  @Override
+  public double getMessagesPerSecond(){
+    return messages.getRate();
+  }
+
+  @Override
+  public long getMessagesThrottled(){
+    return throttled.get();
+  }
+
+  @Override
+  public long getBytesIn(){
+    return bytesIn.get();
+  }
+
+  @Override
+  public long getBytesOut(){
+    return bytesOut.get();
+  }
+
+  @Override
+  public double getFanOutP50Micros(){
+    return fanOut.getValueAtPercentile(50) / 1e3;
+  }
+
+  @Override
+  public double getFanOutP99Micros(){
+    return fanOut.getValueAtPercentile(99) / 1e3;
+  }
+
+  /**
+  * Return the send failures of the channel's current users.
+  * @return Sum of the users' send failures.
+  */
+  @Override
+  public long getSendFailures(){
+
+    long sum = 0;
+    for (Client c : channel.members())
+      sum += c.getSendFailures();
+    return sum;
+  }
+
+  /**
+  * Return the outbound lag of the channel's most lagging user.
+  * @return Largest number of messages queued for a user.
+  */
+  @Override
+  public int getMaxOutboundLag(){
+
+    int max = 0;
+    for (Client c : channel.members())
+      max = Math.max(max, c.getQueueDepth());
+    return max;
+  }
+}
@@ -0,0 +1,33 @@
+package com.umarabdul.jschat;
+
+
+/**
+* Metrics of a single channel, as published over JMX by {@code Metrics}.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public interface ChannelMetricsMBean{
+
+  int getMembers();
+
+  long getMessages();
+
+  double getMessagesPerSecond();
+
+  long getMessagesThrottled();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  double getFanOutP50Micros();
+
+  double getFanOutP99Micros();
+
+  long getSendFailures();
+
+  int getMaxOutboundLag();
+}
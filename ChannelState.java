@@ -0,0 +1,322 @@
+package com.umarabdul.jschat;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+* The state of a single channel: its password, its users, and notifications waiting to be broadcast.
+* Safe for use by the server engines and the admin panel at the same time without locking. Users are kept
+* in an immutable array that is replaced on every join or leave, so a broadcast iterates a snapshot that
+* can't change under it. Messages to broadcast are handed over to the channel in a queue, and sent by one
+* thread at a time, whichever finds no other sending; the others carry on at once, without waiting on it. So
+* all users get the channel's messages in the same order, the one recorded, whichever threads read the
+* senders, and no lock is held while sending. Only recording a message locks the channel, as does adding a
+* user after sending it the recorded ones, so that a joining user gets every message exactly once.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class ChannelState{
+
+  private static final Client[] NO_CLIENTS = new Client[0];
+
+  private final String name;
+  private volatile String password;
+  private final AtomicReference<Client[]> members;
+  private final ConcurrentLinkedQueue<String> broadcasts; // Notifications waiting to be sent to all users.
+  private final ConcurrentLinkedQueue<Broadcast> outgoing; // Messages handed over for sending, in order.
+  private final AtomicBoolean sending; // Whether a thread is sending the messages handed over.
+  private final ChannelMetrics metrics;
+  private volatile ChannelLog log = null; // Persistent message log, if enabled.
+  private volatile RecentMessages recent = null; // Messages kept in memory for new users, if enabled.
+  private final TokenBucket messages = new TokenBucket(); // Chat messages allowed, if the server limits them.
+
+  /**
+  * A message handed over to be sent to all users.
+  */
+  static final class Broadcast{
+
+    final Frame frame;
+    final boolean forward; // Whether it's also forwarded to linked nodes, having come from this one.
+
+    Broadcast(Frame frame, boolean forward){
+
+      this.frame = frame;
+      this.forward = forward;
+    }
+  }
+
+  /**
+  * Class constructor.
+  * @param name Name of the channel.
+  * @param password Channel password, {@code "null"} for none.
+  */
+  public ChannelState(String name, String password){
+
+    this.name = name;
+    this.password = password;
+    members = new AtomicReference<Client[]>(NO_CLIENTS);
+    broadcasts = new ConcurrentLinkedQueue<String>();
+    outgoing = new ConcurrentLinkedQueue<Broadcast>();
+    sending = new AtomicBoolean(false);
+    metrics = new ChannelMetrics(this);
+  }
+
+  /**
+  * Return the name of the channel.
+  * @return Channel name.
+  */
+  public String getName(){
+    return name;
+  }
+
+  /**
+  * Return the channel's traffic metrics.
+  * @return The metrics.
+  */
+  public ChannelMetrics getMetrics(){
+    return metrics;
+  }
+
+  /**
+  * Return the channel's persistent message log.
+  * @return The log, {@code null} if the channel isn't logged.
+  */
+  public ChannelLog getLog(){
+    return log;
+  }
+
+  /**
+  * Set the channel's persistent message log.
+  * @param log The log, {@code null} for none.
+  * @return The log replaced, {@code null} if none.
+  */
+  public ChannelLog setLog(ChannelLog log){
+
+    ChannelLog old = this.log;
+    this.log = log;
+    return old;
+  }
+
+  /**
+  * Return the recent messages kept for new users.
+  * @return The messages, {@code null} if none are kept.
+  */
+  public RecentMessages getRecent(){
+    return recent;
+  }
+
+  /**
+  * Set the recent messages kept for new users.
+  * @param recent The messages, {@code null} to keep none.
+  */
+  public void setRecent(RecentMessages recent){
+    this.recent = recent;
+  }
+
+  /**
+  * Record a message in the channel's recent messages and log, and return the users it's to be sent to.
+  * Locked against {@code join()} calls made while sending a new user the recorded messages, so the user
+  * gets the message either from the record or from the return value, never both or neither.
+  * @param frame The message.
+  * @return Snapshot of the users at the time the message was recorded.
+  */
+  public synchronized Client[] record(Frame frame){
+
+    RecentMessages r = recent;
+    if (r != null)
+      r.add(frame);
+    ChannelLog l = log;
+    if (l != null)
+      l.append(frame);
+    return members.get();
+  }
+
+  /**
+  * Take one of the chat messages the channel is allowed, under the server's limit. Locks only the bucket,
+  * which with the NIO engine, only the channel's event loop uses.
+  * @param rate Messages per second.
+  * @param burst Messages at once.
+  * @param now Output of {@code System.nanoTime()}.
+  * @return {@code false} if the channel is over its limit.
+  */
+  public boolean takeMessage(double rate, int burst, long now){
+
+    synchronized (messages){
+      return messages.take(rate, burst, now);
+    }
+  }
+
+  /**
+  * Return the channel password.
+  * @return Channel password.
+  */
+  public String getPassword(){
+    return password;
+  }
+
+  /**
+  * Change the channel password.
+  * @param password New password.
+  */
+  public void setPassword(String password){
+    this.password = password;
+  }
+
+  /**
+  * Return a snapshot of the channel's users. The array must not be modified.
+  * @return Array of users at the time of the call.
+  */
+  public Client[] members(){
+    return members.get();
+  }
+
+  /**
+  * Return the number of users in the channel.
+  * @return User count.
+  */
+  public int size(){
+    return members.get().length;
+  }
+
+  /**
+  * Check if a user with the given username is in the channel.
+  * @param username Username to check for.
+  * @return {@code true} if found.
+  */
+  public boolean contains(String username){
+
+    for (Client c : members.get()){
+      if (username.equals(c.getUsername()))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+  * Add a user to the channel, unless the channel is full or the username is in use.
+  * @param client The user, with its username set.
+  * @param maxUsers Maximum number of users allowed.
+  * @return {@code true} if added.
+  */
+  public boolean join(Client client, int maxUsers){
+
+    Client[] curr;
+    Client[] next;
+    do{
+      curr = members.get();
+      if (curr.length >= maxUsers)
+        return false;
+      for (Client c : curr){
+        if (c.getUsername().equals(client.getUsername()))
+          return false;
+      }
+      next = new Client[curr.length + 1];
+      System.arraycopy(curr, 0, next, 0, curr.length);
+      next[curr.length] = client;
+    }while (!(members.compareAndSet(curr, next)));
+    return true;
+  }
+
+  /**
+  * Remove a user from the channel.
+  * @param client The user to remove.
+  * @return {@code true} if the user was in the channel.
+  */
+  public boolean leave(Client client){
+
+    Client[] curr;
+    Client[] next;
+    do{
+      curr = members.get();
+      int index = -1;
+      for (int i = 0; i < curr.length; i++){
+        if (curr[i] == client){
+          index = i;
+          break;
+        }
+      }
+      if (index == -1)
+        return false;
+      if (curr.length == 1){
+        next = NO_CLIENTS;
+      }else{
+        next = new Client[curr.length - 1];
+        System.arraycopy(curr, 0, next, 0, index);
+        System.arraycopy(curr, index + 1, next, index, curr.length - index - 1);
+      }
+    }while (!(members.compareAndSet(curr, next)));
+    return true;
+  }
+
+  /**
+  * Remove all users from the channel.
+  * @return The users removed.
+  */
+  public Client[] clear(){
+    return members.getAndSet(NO_CLIENTS);
+  }
+
+  /**
+  * Queue a notification for all users of the channel.
+  * @param msg Notification text.
+  */
+  public void addBroadcast(String msg){
+    broadcasts.add(msg);
+  }
+
+  /**
+  * Take the next queued notification.
+  * @return Notification text, {@code null} if none.
+  */
+  public String pollBroadcast(){
+    return broadcasts.poll();
+  }
+
+  /**
+  * Check if there are notifications waiting to be sent.
+  * @return {@code true} if any.
+  */
+  public boolean hasBroadcasts(){
+    return !(broadcasts.isEmpty());
+  }
+
+  /**
+  * Hand over a message to be sent to all users, after those handed over before it.
+  * @param broadcast The message.
+  */
+  void handOver(Broadcast broadcast){
+    outgoing.add(broadcast);
+  }
+
+  /**
+  * Become the thread sending the messages handed over, unless another one is.
+  * @return {@code true} if the caller is to send them, then call {@code stopSending()}.
+  */
+  boolean startSending(){
+    return !(outgoing.isEmpty()) && sending.compareAndSet(false, true);
+  }
+
+  /**
+  * Take the next message handed over. Only called by the thread sending them.
+  * @return The message, {@code null} if none is left.
+  */
+  Broadcast nextBroadcast(){
+    return outgoing.poll();
+  }
+
+  /**
+  * Stop being the thread sending the messages handed over.
+  * @return {@code true} if more were handed over meanwhile, which the caller is to try sending again, as
+  * the threads handing them over may have left them to it.
+  */
+  boolean stopSending(){
+
+    sending.set(false);
+    return !(outgoing.isEmpty());
+  }
+}
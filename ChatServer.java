@@ -0,0 +1,1507 @@
+package com.umarabdul.jschat;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLContext;
+
+
+/**
+* The JSChat server engine: channels, users, the block list, and the connection handling shared by all engines.
+* It has no dependency on AWT or Swing, so it can run on machines without a display, either behind the
+* {@code JSChatServer} admin panel or from {@code HeadlessServer}.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class ChatServer implements Runnable{
+
+  private String host = "localhost";
+  private int port = 4444;
+  private ConcurrentHashMap<String, ChannelState> channels; // Maps channel names to their state.
+  private Set<String> blockedUsers; // Hashed, so checking a login against a large block list is O(1).
+  private volatile boolean active = false;
+  private boolean nioEngine = false;
+  private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+  private int workers = Runtime.getRuntime().availableProcessors(); // Event loops of the NIO engine.
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private OutboundQueue.Policy overflowPolicy = OutboundQueue.Policy.DROP_OLDEST;
+  private Listener listener;
+  private Metrics metrics;
+  private File logDirectory = null; // Channel logs are kept in sub-directories of this, if set.
+  private long logSegmentSize = DEFAULT_LOG_SEGMENT_SIZE;
+  private long logRetentionBytes = DEFAULT_LOG_RETENTION_BYTES;
+  private long logRetentionAge = DEFAULT_LOG_RETENTION_AGE;
+  private ExecutorService logWriters = null; // Write the appends of all channel logs, started with the first log.
+  private int replayCount = DEFAULT_REPLAY_COUNT;
+  private int recentCount = 0; // Messages kept in memory per channel for new users, 0 for none.
+  private long recentBytes = DEFAULT_RECENT_BYTES;
+  private int pauseBacklog = DEFAULT_PAUSE_BACKLOG;
+  private boolean compression = true; // Whether clients may negotiate compressed frames.
+  private SSLContext tls = null; // Encrypts every connection, if set.
+  private Federation federation = null; // Links to other nodes, if set.
+  private volatile NioChannelEngine nio = null; // The engine serving, if it's the NIO one.
+  private int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+  private int maxHandshakes = DEFAULT_MAX_HANDSHAKES;
+  private double connectRate = DEFAULT_CONNECT_RATE;
+  private int connectBurst = DEFAULT_CONNECT_BURST;
+  private volatile Admission admission = null; // Limits on connections yet to log in, while serving.
+  private int pingInterval = DEFAULT_PING_INTERVAL;
+  private volatile double userRate = 0; // Chat messages per second allowed from a user, 0 for no limit.
+  private volatile int userBurst = DEFAULT_USER_BURST;
+  private volatile double channelRate = 0; // Chat messages per second allowed in a channel, 0 for no limit.
+  private volatile int channelBurst = DEFAULT_CHANNEL_BURST;
+
+  // Constants.
+  public static final int MIN_USERNAME_LENGTH = 3; // minimum number of characters in a username.
+  public static final int MAX_USERNAME_LENGTH = 20; // maximum number of characters in a username.
+  public static final int MIN_CHANNEL_LENGTH = 3; // minimum channel name.
+  public static final int MAX_CHANNEL_LENGTH = 20; // maximum channel name.
+  public static final int MAX_CHANNEL_USERS = 500; // maximum number of users to allow per channel.
+  public static final String ENGINE_THREADS = "Threads"; // A thread per client, platform or virtual, doing blocking reads.
+  public static final String ENGINE_NIO = "NIO"; // A fixed pool of event loops, with channels shared out between them.
+  public static final int DEFAULT_QUEUE_CAPACITY = 256; // Default number of outgoing messages to queue per client.
+  public static final long DEFAULT_LOG_SEGMENT_SIZE = 16L * 1024 * 1024; // Size at which a channel log starts a new segment.
+  public static final long DEFAULT_LOG_RETENTION_BYTES = 256L * 1024 * 1024; // Size of log retained per channel.
+  public static final long DEFAULT_LOG_RETENTION_AGE = 7L * 24 * 3600 * 1000; // Age of logged messages retained, in milliseconds.
+  public static final int DEFAULT_REPLAY_COUNT = 20; // Logged messages sent to users joining a channel.
+  public static final int DEFAULT_PAUSE_BACKLOG = 100; // Messages held for a paused client, past which they're dropped and counted.
+  public static final long DEFAULT_RECENT_BYTES = 256 * 1024; // Payload bytes of recent messages kept per channel.
+  public static final int DEFAULT_ACCEPT_BACKLOG = 1024; // Connections the OS queues until accepted; capped by the OS, e.g. somaxconn.
+  public static final int DEFAULT_MAX_HANDSHAKES = 10000; // Connections yet to log in, past which the oldest make room for new ones.
+  public static final double DEFAULT_CONNECT_RATE = 10; // New connections per second from an address, once its burst is used.
+  public static final int DEFAULT_CONNECT_BURST = 50; // New connections from an address taken at once.
+  public static final int DEFAULT_PING_INTERVAL = 30000; // Time a client can be quiet before it's pinged, in milliseconds.
+  public static final int PING_TIMEOUT = 10000; // Time a client that answers pings has to answer one, in milliseconds.
+  public static final int DEFAULT_USER_BURST = 10; // Chat messages a user can send at once, when limited.
+  public static final int DEFAULT_CHANNEL_BURST = 50; // Chat messages a channel takes at once, when limited.
+  private static final Frame USER_THROTTLED = Frame.text(Frame.NOTICE, "[NOTIFICATION] : You're sending messages too fast, some were dropped!");
+  private static final Frame CHANNEL_THROTTLED = Frame.text(Frame.NOTICE, "[NOTIFICATION] : The channel is too busy, some of your messages were dropped!");
+  private static final Pattern ALPHA_NUM = Pattern.compile("^[A-Za-z0-9 ]{1,9999}$");
+  private static final int LOG_WRITERS = 2; // Threads writing the channel logs, shared by every channel.
+
+  /**
+  * Receives status changes of the server, such as an admin panel or a console log.
+  * Called from the server's threads.
+  */
+  public interface Listener{
+
+    /**
+    * The server is ready to accept connections.
+    * @param host Host bound to.
+    * @param port Port bound to.
+    */
+    void serverStarted(String host, int port);
+
+    /**
+    * The server has stopped, and all users have been disconnected.
+    * @param reason Why the server stopped.
+    */
+    void serverStopped(String reason);
+
+    /**
+    * A user joined or left a channel.
+    */
+    void usersChanged();
+  }
+
+  /**
+  * Default constructor.
+  */
+  public ChatServer(){
+
+    channels = new ConcurrentHashMap<String, ChannelState>();
+    blockedUsers = ConcurrentHashMap.newKeySet();
+    metrics = new Metrics(this);
+  }
+
+  /**
+  * Set the listener to notify of status changes.
+  * @param listener The listener, {@code null} for none.
+  */
+  public void setListener(Listener listener){
+    this.listener = listener;
+  }
+
+  /**
+  * Return the server's metrics, through which they can be published.
+  * @return The metrics.
+  */
+  public Metrics getMetrics(){
+    return metrics;
+  }
+
+  /**
+  * Return the host to bind to.
+  * @return Hostname or IP.
+  */
+  public String getHost(){
+    return host;
+  }
+
+  /**
+  * Set the host to bind to.
+  * @param host Hostname or IP.
+  */
+  public void setHost(String host){
+    this.host = host;
+  }
+
+  /**
+  * Return the port to bind to, or the port bound to once started.
+  * @return Port number.
+  */
+  public int getPort(){
+    return port;
+  }
+
+  /**
+  * Set the port to bind to.
+  * @param port Port number, {@code 0} for any free port.
+  * @throws IllegalArgumentException if out of range.
+  */
+  public void setPort(int port){
+
+    if (port < 0 || port > 65535)
+      throw new IllegalArgumentException("port out of range!");
+    this.port = port;
+  }
+
+  /**
+  * Select the server engine.
+  * @param engine {@code ENGINE_THREADS} or {@code ENGINE_NIO}.
+  */
+  public void setEngine(String engine){
+    nioEngine = ENGINE_NIO.equalsIgnoreCase(engine);
+  }
+
+  /**
+  * Return the selected server engine.
+  * @return {@code ENGINE_THREADS} or {@code ENGINE_NIO}.
+  */
+  public String getEngine(){
+    return (nioEngine) ? ENGINE_NIO : ENGINE_THREADS;
+  }
+
+  /**
+  * Select the type of threads used by the threaded engine.
+  * @param executionMode Platform or virtual threads.
+  */
+  public void setExecutionMode(ExecutionMode executionMode){
+    this.executionMode = executionMode;
+  }
+
+  /**
+  * Return the type of threads used by the threaded engine.
+  * @return The execution mode.
+  */
+  public ExecutionMode getExecutionMode(){
+    return executionMode;
+  }
+
+  /**
+  * Set the number of event loops the NIO engine shares the channels out between.
+  * @param workers Number of event loops, about one per CPU.
+  * @throws IllegalArgumentException if less than 1.
+  */
+  public void setWorkers(int workers){
+
+    if (workers < 1)
+      throw new IllegalArgumentException("workers out of range!");
+    this.workers = workers;
+  }
+
+  /**
+  * Return the number of event loops of the NIO engine.
+  * @return Number of event loops.
+  */
+  public int getWorkers(){
+    return workers;
+  }
+
+  /**
+  * Set the number of outgoing messages to queue per client.
+  * @param queueCapacity Queue size.
+  * @throws IllegalArgumentException if less than 1.
+  */
+  public void setQueueCapacity(int queueCapacity){
+
+    if (queueCapacity < 1)
+      throw new IllegalArgumentException("queue size out of range!");
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+  * Return the number of outgoing messages queued per client.
+  * @return Queue size.
+  */
+  public int getQueueCapacity(){
+    return queueCapacity;
+  }
+
+  /**
+  * Set what happens when a client's outgoing queue is full.
+  * @param overflowPolicy The policy.
+  */
+  public void setOverflowPolicy(OutboundQueue.Policy overflowPolicy){
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+  * Return what happens when a client's outgoing queue is full.
+  * @return The policy.
+  */
+  public OutboundQueue.Policy getOverflowPolicy(){
+    return overflowPolicy;
+  }
+
+  /**
+  * Enable persistent channel logs, kept in a sub-directory per channel. Takes effect when the server starts.
+  * @param logDirectory Directory of the logs, {@code null} to disable them.
+  */
+  public void setLogDirectory(File logDirectory){
+    this.logDirectory = logDirectory;
+  }
+
+  /**
+  * Return the directory of the channel logs.
+  * @return The directory, {@code null} if logs are disabled.
+  */
+  public File getLogDirectory(){
+    return logDirectory;
+  }
+
+  /**
+  * Set the size at which a channel log starts a new segment.
+  * @param logSegmentSize Segment size in bytes.
+  * @throws IllegalArgumentException if too small to hold a message, or too large to map.
+  */
+  public void setLogSegmentSize(long logSegmentSize){
+
+    if (logSegmentSize < ChannelLog.RECORD_HEADER + Frame.MAX_PAYLOAD || logSegmentSize > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("log segment size out of range!");
+    this.logSegmentSize = logSegmentSize;
+  }
+
+  /**
+  * Return the size at which a channel log starts a new segment.
+  * @return Segment size in bytes.
+  */
+  public long getLogSegmentSize(){
+    return logSegmentSize;
+  }
+
+  /**
+  * Set how much of each channel's log is retained. Whole segments are deleted, oldest first, once either
+  * limit is exceeded.
+  * @param bytes Size retained per channel, {@code 0} for no limit.
+  * @param age Age of messages retained, in milliseconds, {@code 0} for no limit.
+  * @throws IllegalArgumentException if negative.
+  */
+  public void setLogRetention(long bytes, long age){
+
+    if (bytes < 0 || age < 0)
+      throw new IllegalArgumentException("log retention out of range!");
+    logRetentionBytes = bytes;
+    logRetentionAge = age;
+  }
+
+  /**
+  * Return the size of log retained per channel.
+  * @return Size in bytes, {@code 0} for no limit.
+  */
+  public long getLogRetentionBytes(){
+    return logRetentionBytes;
+  }
+
+  /**
+  * Return the age of logged messages retained.
+  * @return Age in milliseconds, {@code 0} for no limit.
+  */
+  public long getLogRetentionAge(){
+    return logRetentionAge;
+  }
+
+  /**
+  * Set the number of logged messages sent to users joining a channel. Takes effect when the server starts.
+  * @param replayCount Number of messages, {@code 0} for none.
+  * @throws IllegalArgumentException if negative.
+  */
+  public void setReplayCount(int replayCount){
+
+    if (replayCount < 0)
+      throw new IllegalArgumentException("replay count out of range!");
+    this.replayCount = replayCount;
+  }
+
+  /**
+  * Return the number of logged messages sent to users joining a channel.
+  * @return Number of messages.
+  */
+  public int getReplayCount(){
+    return replayCount;
+  }
+
+  /**
+  * Keep the most recent messages of every channel in memory, and send them to users as they join, ahead of
+  * any from the channel logs. Takes effect when the server starts.
+  * @param count Messages kept per channel, {@code 0} for none.
+  * @param bytes Payload bytes kept per channel at most.
+  * @throws IllegalArgumentException if negative.
+  */
+  public void setRecentMessages(int count, long bytes){
+
+    if (count < 0 || bytes < 0)
+      throw new IllegalArgumentException("recent messages out of range!");
+    recentCount = count;
+    recentBytes = bytes;
+  }
+
+  /**
+  * Return the number of recent messages kept per channel.
+  * @return Message count, {@code 0} if none are kept.
+  */
+  public int getRecentCount(){
+    return recentCount;
+  }
+
+  /**
+  * Return the payload bytes of recent messages kept per channel at most.
+  * @return Size in bytes.
+  */
+  public long getRecentBytes(){
+    return recentBytes;
+  }
+
+  /**
+  * Set the number of messages held for a client that paused its messages. Older ones are dropped once it's
+  * reached, and the client is told how many it missed when it resumes.
+  * @param pauseBacklog Messages held, {@code 0} to hold none.
+  * @throws IllegalArgumentException if negative.
+  */
+  public void setPauseBacklog(int pauseBacklog){
+
+    if (pauseBacklog < 0)
+      throw new IllegalArgumentException("pause backlog out of range!");
+    this.pauseBacklog = pauseBacklog;
+  }
+
+  /**
+  * Return the number of messages held for a client that paused its messages.
+  * @return Messages held.
+  */
+  public int getPauseBacklog(){
+    return pauseBacklog;
+  }
+
+  /**
+  * Set the number of connections the OS queues for the server until it accepts them, such as while it's
+  * busy, or has as many connections yet to log in as allowed. Takes effect when the server starts.
+  * @param acceptBacklog Queue length, which the OS may cap.
+  * @throws IllegalArgumentException if less than 1.
+  */
+  public void setAcceptBacklog(int acceptBacklog){
+
+    if (acceptBacklog < 1)
+      throw new IllegalArgumentException("accept backlog out of range!");
+    this.acceptBacklog = acceptBacklog;
+  }
+
+  /**
+  * Return the number of connections the OS queues for the server until it accepts them.
+  * @return Queue length.
+  */
+  public int getAcceptBacklog(){
+    return acceptBacklog;
+  }
+
+  /**
+  * Set the number of connections allowed to be yet to log in. Past it, the oldest is closed for each new one,
+  * once it has had {@code Admission.MIN_LOGIN_TIME} to log in. Takes effect when the server starts.
+  * @param maxHandshakes Connections yet to log in.
+  * @throws IllegalArgumentException if less than 1.
+  */
+  public void setMaxHandshakes(int maxHandshakes){
+
+    if (maxHandshakes < 1)
+      throw new IllegalArgumentException("max handshakes out of range!");
+    this.maxHandshakes = maxHandshakes;
+  }
+
+  /**
+  * Return the number of connections allowed to be yet to log in.
+  * @return Connections yet to log in.
+  */
+  public int getMaxHandshakes(){
+    return maxHandshakes;
+  }
+
+  /**
+  * Limit the rate of new connections from every address, other than loopback ones. Connections over the
+  * limit are closed as soon as they're accepted. Takes effect when the server starts.
+  * @param rate Connections per second, once the burst is used; {@code 0} for no limit.
+  * @param burst Connections taken at once.
+  * @throws IllegalArgumentException if the rate is negative, or the burst less than 1.
+  */
+  public void setConnectRate(double rate, int burst){
+
+    if (rate < 0 || burst < 1)
+      throw new IllegalArgumentException("connection rate out of range!");
+    connectRate = rate;
+    connectBurst = burst;
+  }
+
+  /**
+  * Return the rate of new connections allowed from an address.
+  * @return Connections per second, {@code 0} for no limit.
+  */
+  public double getConnectRate(){
+    return connectRate;
+  }
+
+  /**
+  * Return the number of new connections taken at once from an address.
+  * @return Connections.
+  */
+  public int getConnectBurst(){
+    return connectBurst;
+  }
+
+  /**
+  * Set the time a logged in client can be quiet before it's sent a {@code PING}. Clients that have answered
+  * one before and don't answer within {@code PING_TIMEOUT} are taken for dead, and dropped from their
+  * channel. Clients of the legacy protocol are never pinged. Takes effect when the server starts.
+  * @param pingInterval Time in milliseconds, {@code 0} to never ping.
+  * @throws IllegalArgumentException if negative, or positive and less than a second.
+  */
+  public void setPingInterval(int pingInterval){
+
+    if (pingInterval < 0 || (pingInterval > 0 && pingInterval < 1000))
+      throw new IllegalArgumentException("ping interval out of range!");
+    this.pingInterval = pingInterval;
+  }
+
+  /**
+  * Return the time a logged in client can be quiet before it's pinged.
+  * @return Time in milliseconds, {@code 0} if clients are never pinged.
+  */
+  public int getPingInterval(){
+    return pingInterval;
+  }
+
+  /**
+  * Limit the chat messages every user can send. Messages over the limit are dropped before they're
+  * broadcast, and the user is told. Takes effect at once, even while the server is running.
+  * @param rate Messages per second, once the burst is used; {@code 0} for no limit.
+  * @param burst Messages sent at once.
+  * @throws IllegalArgumentException if the rate is negative, or the burst less than 1.
+  */
+  public void setUserRate(double rate, int burst){
+
+    if (rate < 0 || burst < 1)
+      throw new IllegalArgumentException("user message rate out of range!");
+    userBurst = burst;
+    userRate = rate;
+  }
+
+  /**
+  * Return the chat messages allowed per second from a user.
+  * @return Messages per second, {@code 0} for no limit.
+  */
+  public double getUserRate(){
+    return userRate;
+  }
+
+  /**
+  * Return the chat messages a user can send at once.
+  * @return Messages.
+  */
+  public int getUserBurst(){
+    return userBurst;
+  }
+
+  /**
+  * Limit the chat messages every channel takes from its users, together. Messages over the limit are dropped
+  * before they're broadcast, and their senders told. Takes effect at once, even while the server is running.
+  * @param rate Messages per second, once the burst is used; {@code 0} for no limit.
+  * @param burst Messages taken at once.
+  * @throws IllegalArgumentException if the rate is negative, or the burst less than 1.
+  */
+  public void setChannelRate(double rate, int burst){
+
+    if (rate < 0 || burst < 1)
+      throw new IllegalArgumentException("channel message rate out of range!");
+    channelBurst = burst;
+    channelRate = rate;
+  }
+
+  /**
+  * Return the chat messages allowed per second in a channel.
+  * @return Messages per second, {@code 0} for no limit.
+  */
+  public double getChannelRate(){
+    return channelRate;
+  }
+
+  /**
+  * Return the chat messages a channel takes at once.
+  * @return Messages.
+  */
+  public int getChannelBurst(){
+    return channelBurst;
+  }
+
+  /**
+  * Return the limits on connections yet to log in, applied by the engine serving.
+  * @return The limits, {@code null} if the server isn't running.
+  */
+  Admission getAdmission(){
+    return admission;
+  }
+
+  /**
+  * Allow or refuse compression for clients that offer it. Refused clients use the plain binary protocol.
+  * @param compression {@code true} to allow.
+  */
+  public void setCompression(boolean compression){
+    this.compression = compression;
+  }
+
+  /**
+  * Check if clients may negotiate compression.
+  * @return {@code true} if allowed.
+  */
+  public boolean getCompression(){
+    return compression;
+  }
+
+  /**
+  * Encrypt every connection with TLS. Only supported by the NIO engine.
+  * @param tls Context with the server's key and certificate, such as from {@code TlsChannel.createContext()};
+  * {@code null} for plain connections.
+  */
+  public void setTls(SSLContext tls){
+    this.tls = tls;
+  }
+
+  /**
+  * Return the TLS context connections are encrypted with.
+  * @return The context, {@code null} if connections are plain.
+  */
+  public SSLContext getTls(){
+    return tls;
+  }
+
+  /**
+  * Link the server's channels with those of other nodes. Takes effect when the server starts.
+  * @param federation The links to make, {@code null} for none.
+  */
+  public void setFederation(Federation federation){
+    this.federation = federation;
+  }
+
+  /**
+  * Return the links to other nodes.
+  * @return The federation, {@code null} if not linked.
+  */
+  public Federation getFederation(){
+    return federation;
+  }
+
+  /**
+  * Return the highest protocol version to agree on with clients.
+  * @return Protocol version.
+  */
+  int getMaxProtocol(){
+    return (compression) ? Frame.PROTOCOL_VERSION : Frame.PROTOCOL_BINARY;
+  }
+
+  /**
+  * Check if the server can start with its current settings.
+  * @return A message describing the problem, {@code null} if none.
+  */
+  public String checkSettings(){
+
+    if (host == null || host.length() == 0)
+      return "Hostname/IP required!";
+    if (!(nioEngine) && executionMode == ExecutionMode.VIRTUAL && !(ExecutionMode.virtualThreadsSupported()))
+      return "Virtual threads need Java 21+!";
+    if (!(nioEngine) && tls != null)
+      return "TLS needs the NIO engine!";
+    if (recentCount > queueCapacity || (logDirectory != null && replayCount > queueCapacity))
+      return "Messages sent to joining users can't exceed the queue size!";
+    return null;
+  }
+
+  /**
+  * Ask a running server to stop. Returns immediately; the listener is notified once it has stopped.
+  */
+  public void stop(){
+    active = false;
+  }
+
+  /**
+  * Test if a given string contains only alphabets (upper and lowercase) and whitespace.
+  * @param str String to test.
+  * @return {@code true} on success.
+  */
+  public static boolean isAlphaNum(String str){
+    return ALPHA_NUM.matcher(str).find();
+  }
+
+  /**
+  * Check if a name can be used for a channel.
+  * @param name Channel name.
+  * @return A message describing the problem, {@code null} if valid.
+  */
+  public static String checkChannelName(String name){
+
+    if (name.length() < MIN_CHANNEL_LENGTH)
+      return "Channel name too short!";
+    if (!(isAlphaNum(name)))
+      return "Invalid channel name!";
+    if (name.length() > MAX_CHANNEL_LENGTH)
+      return "Channel name too long!";
+    return null;
+  }
+
+  /**
+  * Create a channel.
+  * @param name Name of channel, which must be valid.
+  * @param password Channel password, {@code "null"} for none.
+  * @return {@code false} if the channel already exists.
+  */
+  public boolean addChannel(String name, String password){
+
+    ChannelState ch = new ChannelState(name, password);
+    if (channels.putIfAbsent(name, ch) != null)
+      return false;
+    metrics.channelAdded(ch);
+    if (active){
+      openLog(ch);
+      keepRecent(ch);
+    }
+    return true;
+  }
+
+  /**
+  * Return the state of a channel.
+  * @param name Name of channel.
+  * @return The channel, {@code null} if not found.
+  */
+  public ChannelState getChannel(String name){
+    return channels.get(name);
+  }
+
+  /**
+  * Return all channels.
+  * @return Snapshot of the channels.
+  */
+  public ChannelState[] getChannels(){
+    return channels.values().toArray(new ChannelState[0]);
+  }
+
+  /**
+  * Return the names of all channels.
+  * @return Channel names.
+  */
+  public Set<String> getChannelNames(){
+    return channels.keySet();
+  }
+
+  /**
+  * Return the number of channels.
+  * @return Channel count.
+  */
+  public int getChannelCount(){
+    return channels.size();
+  }
+
+  /**
+  * Return the number of users in all channels.
+  * @return User count.
+  */
+  public int getUserCount(){
+
+    int count = 0;
+    for (ChannelState ch : channels.values())
+      count += ch.size();
+    return count;
+  }
+
+  /**
+  * Return the blocked usernames.
+  * @return Live view of the block list.
+  */
+  public Set<String> getBlockedUsers(){
+    return Collections.unmodifiableSet(blockedUsers);
+  }
+
+  /**
+  * Delete a channel and disconnect all of it's clients.
+  * @param name Name of channel to delete.
+  */
+  public void deleteChannel(String name){
+
+    ChannelState ch = channels.remove(name);
+    if (ch == null)
+      return;
+    metrics.channelRemoved(ch);
+    for (Client client : ch.clear()){
+      left(ch, client);
+      client.close();
+    }
+    closeLog(ch);
+  }
+
+  /**
+  * Disconnect all users in a channel, without deleting the channel itself.
+  * @param name Name of channel.
+  */
+  public void deleteChannelUsers(String name){
+
+    ChannelState ch = channels.get(name);
+    if (ch == null)
+      return;
+    for (Client client : ch.clear()){
+      left(ch, client);
+      client.close();
+    }
+  }
+
+  /**
+  * Check if the given channel contains the given username as an active user.
+  * @param channel Name of channel.
+  * @param username Username to check for.
+  * @return {@code true} if a match is found.
+  */
+  public boolean channelUserExists(String channel, String username){
+
+    ChannelState ch = channels.get(channel);
+    return ch != null && ch.contains(username);
+  }
+
+  /**
+  * Load a configuration file, replacing the current channels. Lines are in the form {@code Host:host},
+  * {@code Port:port}, {@code Channel:name<<>>password}, {@code Blocked:username}, and
+  * {@code UserRate:rate:burst} and {@code ChannelRate:rate:burst}. Invalid channel names are skipped.
+  * @param file File to load.
+  * @throws IOException on read failure or a malformed line.
+  */
+  public void loadConfig(File file) throws IOException{
+
+    for (String name : channels.keySet())
+      deleteChannel(name);
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try{
+      String line;
+      String data[];
+      while ((line = reader.readLine()) != null){
+        data = line.split(":", 2);
+        if (data.length != 2)
+          continue;
+        if (data[0].equals("Host")){
+          host = data[1].trim();
+        }else if (data[0].equals("Port")){
+          try{
+            setPort(Integer.parseInt(data[1].trim()));
+          }catch(IllegalArgumentException e){
+            throw new IOException("invalid port: " + data[1].trim());
+          }
+        }else if (data[0].equals("Channel")){
+          String[] channelData = data[1].trim().split("<<>>");
+          String cname = channelData[0];
+          String cpass = (channelData.length > 1) ? channelData[1] : "null";
+          if (checkChannelName(cname) == null && !(addChannel(cname, cpass)))
+            channels.get(cname).setPassword(cpass);
+        }else if (data[0].equals("Blocked")){
+          blockUser(data[1].trim());
+        }else if (data[0].equals("UserRate") || data[0].equals("ChannelRate")){
+          String[] limit = data[1].trim().split(":");
+          try{
+            if (data[0].equals("UserRate"))
+              setUserRate(Double.parseDouble(limit[0]), Integer.parseInt(limit[1]));
+            else
+              setChannelRate(Double.parseDouble(limit[0]), Integer.parseInt(limit[1]));
+          }catch(RuntimeException e){
+            throw new IOException("invalid rate limit: " + data[1].trim());
+          }
+        }
+      }
+    }finally{
+      reader.close();
+    }
+  }
+
+  /**
+  * Save the host, port, channels, block list and message rate limits in the format read by {@code loadConfig()}.
+  * @param file File to write.
+  * @throws IOException on write failure.
+  */
+  public void saveConfig(File file) throws IOException{
+
+    BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+    try{
+      writer.write(String.format("Host:%s\nPort:%s\n", host, port));
+      for (ChannelState ch : channels.values())
+        writer.write(String.format("Channel:%s<<>>%s\n", ch.getName(), ch.getPassword()));
+      for (String bl : blockedUsers)
+        writer.write(String.format("Blocked:%s\n", bl));
+      writer.write(String.format("UserRate:%s:%d\nChannelRate:%s:%d\n", userRate, userBurst, channelRate, channelBurst));
+    }finally{
+      writer.close();
+    }
+  }
+
+  /**
+  * Handles server connections using the selected engine, until stopped.
+  */
+  @Override
+  public void run(){
+
+    String quitMsg;
+    admission = new Admission(metrics, maxHandshakes, connectRate, connectBurst);
+    if (nioEngine){
+      nio = new NioChannelEngine(this);
+      quitMsg = nio.serve(host, port);
+      nio = null;
+    }else{
+      quitMsg = serveThreaded();
+    }
+    // Handle server shutdown.
+    active = false;
+    admission = null;
+    if (federation != null)
+      federation.stop();
+    for (String name : channels.keySet())
+      deleteChannelUsers(name);
+    for (ChannelState ch : channels.values())
+      closeLog(ch);
+    synchronized (this){
+      if (logWriters != null)
+        logWriters.shutdown(); // Once every log is closed.
+      logWriters = null;
+    }
+    if (quitMsg == null)
+      quitMsg = "Server stopped!";
+    if (listener != null){
+      listener.usersChanged();
+      listener.serverStopped(quitMsg);
+    }
+  }
+
+  /**
+  * Accept connections and take them through to the login without a thread each, then hand every one to a
+  * thread of its own, which logs it in and keeps reading from it.
+  * @return A message describing why the server stopped, {@code null} if stopped by the user.
+  */
+  private String serveThreaded(){
+    return new HandshakeStage(this).serve(host, port);
+  }
+
+  /**
+  * Log in a connection whose login has arrived, and keep reading from it, on a thread of its own.
+  * @param stage The stage handing it off, to be told once the thread is done with it.
+  * @param client The client, in blocking mode.
+  * @param login The login received.
+  */
+  void handOff(HandshakeStage stage, Client client, Frame login){
+    executionMode.start(new ConnHandler(stage, client, login));
+  }
+
+  /**
+  * Called by the engine in use once it's ready to accept connections.
+  * @param boundPort The port actually bound to, which differs from the configured one if that was {@code 0}.
+  */
+  void serverStarted(int boundPort){
+
+    port = boundPort;
+    for (ChannelState ch : channels.values()){
+      openLog(ch);
+      keepRecent(ch);
+    }
+    active = true;
+    if (federation != null){
+      try{
+        federation.start();
+      }catch(IOException e){
+        System.err.println("Unable to accept links from other nodes: " + e.getMessage());
+      }
+    }
+    if (listener != null)
+      listener.serverStarted(host, port);
+  }
+
+  /**
+  * Open the persistent log of a channel, if logs are enabled. The channel carries on without one if it
+  * can't be opened.
+  * @param ch The channel.
+  */
+  private void openLog(ChannelState ch){
+
+    if (logDirectory == null || ch.getLog() != null)
+      return;
+    try{
+      ch.setLog(new ChannelLog(new File(logDirectory, ch.getName()), logSegmentSize, logRetentionBytes, logRetentionAge, replayCount, getLogWriters()));
+    }catch(IOException e){
+      System.err.println("Unable to open the log of " + ch.getName() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+  * Return the threads writing the channel logs, starting them if needed. A few threads serve every log, so
+  * idle channels cost none.
+  */
+  private synchronized ExecutorService getLogWriters(){
+
+    if (logWriters == null){
+      logWriters = Executors.newFixedThreadPool(LOG_WRITERS, new ThreadFactory(){
+        @Override
+        public Thread newThread(Runnable task){
+          Thread t = new Thread(task, "log-writer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return logWriters;
+  }
+
+  /**
+  * Start keeping the recent messages of a channel, if enabled, or stop if disabled since last started.
+  * @param ch The channel.
+  */
+  private void keepRecent(ChannelState ch){
+
+    RecentMessages recent = ch.getRecent();
+    if (recentCount == 0)
+      ch.setRecent(null);
+    else if (recent == null || recent.getCapacity() != recentCount || recent.getMaxBytes() != recentBytes)
+      ch.setRecent(new RecentMessages(recentCount, recentBytes));
+  }
+
+  /**
+  * Close the persistent log of a channel, if it has one.
+  * @param ch The channel.
+  */
+  private void closeLog(ChannelState ch){
+
+    ChannelLog log = ch.setLog(null);
+    if (log != null)
+      log.close();
+  }
+
+  /**
+  * Check if the server is running.
+  * @return {@code true} if active.
+  */
+  public boolean isActive(){
+    return active;
+  }
+
+  /**
+  * Authenticate a freshly accepted client, and add it to the requested channel on success.
+  * The client is sent the reason and closed on failure.
+  * @param client Client to authenticate.
+  * @param frame An {@code AUTH} frame, or in the legacy protocol, a string in the form {@code username<<>>channel<<>>password}.
+  * @return Name of the channel joined, {@code null} on failure.
+  */
+  String authenticate(Client client, Frame frame){
+
+    String channel = login(client, frame);
+    metrics.loggedIn(client, channel != null);
+    return channel;
+  }
+
+  private String login(Client client, Frame frame){
+
+    String params[] = loginParams(frame);
+    if (params == null){
+      client.close();
+      return null;
+    }
+    String username = params[0].trim();
+    String channel = params[1].trim();
+    String password = params[2].trim();
+    ChannelState ch = channels.get(channel);
+    if (ch == null){
+      client.send(Frame.text(Frame.AUTH_FAIL, "Invalid channel!"));
+      client.close();
+      return null;
+    }
+    if (ch.size() >= MAX_CHANNEL_USERS){
+      client.send(Frame.text(Frame.AUTH_FAIL, "Maximum channel users attained!"));
+      client.close();
+      return null;
+    }
+    if (isAlphaNum(username) != true || username.length() < MIN_USERNAME_LENGTH || username.length() > MAX_USERNAME_LENGTH || ch.contains(username) || blockedUsers.contains(username) || (federation != null && federation.hasUser(channel, username))){
+      client.send(Frame.text(Frame.AUTH_FAIL, "Username taken/invalid"));
+      client.close();
+      return null;
+    }
+    String orgPass = ch.getPassword();
+    if (orgPass != null && orgPass.length() != 0){
+      if (!(orgPass.equals(password))){
+        client.send(Frame.text(Frame.AUTH_FAIL, "Authentication failed!"));
+        client.close();
+        return null;
+      }
+    }
+    client.setLoginTime(System.currentTimeMillis());
+    client.setUsername(username);
+    client.send(new Frame(Frame.AUTH_OK, (byte)0, new byte[0]));
+    if (pingInterval > 0 && client.getProtocol() != Frame.PROTOCOL_LEGACY)
+      client.ping(client.getLoginTime()); // Clients that answer are held to answering from then on.
+    client.startOutboundQueue(queueCapacity, overflowPolicy, executionMode);
+    if (!(joinChannel(ch, client))){ // Lost a race with another login.
+      client.close();
+      return null;
+    }
+    if (blockedUsers.contains(username)){ // Blocked while logging in, after the eviction was pushed.
+      ch.leave(client);
+      client.close();
+      return null;
+    }
+    if (federation != null)
+      federation.joined(channel, username);
+    if (listener != null)
+      listener.usersChanged();
+    ch.addBroadcast(String.format("[NOTIFICATION] : %s has joined!", username));
+    return channel;
+  }
+
+  /**
+  * Return the fields of a login.
+  * @param frame An {@code AUTH} frame, or in the legacy protocol, a string in the form {@code username<<>>channel<<>>password}.
+  * @return The username, channel and password, untrimmed, {@code null} if the frame is not a login.
+  */
+  static String[] loginParams(Frame frame){
+
+    if (frame == null)
+      return null;
+    String params[];
+    switch (frame.getType()){
+      case Frame.AUTH:
+        params = frame.getFields();
+        break;
+      case Frame.CHAT:
+        params = frame.getText().split("<<>>");
+        break;
+      default:
+        return null;
+    }
+    return (params.length == 3) ? params : null;
+  }
+
+  /**
+  * Add a client to a channel, first sending it the messages kept in memory, or if none are, the most recent
+  * ones of the channel's log. The backlog is read without holding up the channel; only messages recorded
+  * meanwhile are sent with the channel locked, so none are missed or repeated before the client starts
+  * receiving live ones. The backlog is cut short, oldest first, to what fits in the client's queue.
+  * @param ch The channel.
+  * @param client The client, logged in.
+  * @return {@code false} if the channel is full or the username is in use.
+  */
+  private boolean joinChannel(ChannelState ch, Client client){
+
+    RecentMessages recent = ch.getRecent();
+    ChannelLog log = ch.getLog();
+    if (recent != null){
+      long next = recent.replay(client, recent.getNextSequence() - backfillRoom(client));
+      synchronized (ch){
+        recent.replay(client, Math.max(next, recent.getNextSequence() - backfillRoom(client)));
+        return ch.join(client, MAX_CHANNEL_USERS);
+      }
+    }
+    if (log != null && replayCount > 0){
+      long next = log.replay(client, log.getNextSequence() - Math.min(replayCount, backfillRoom(client)));
+      synchronized (ch){
+        log.replay(client, Math.max(next, log.getNextSequence() - backfillRoom(client)));
+        return ch.join(client, MAX_CHANNEL_USERS);
+      }
+    }
+    return ch.join(client, MAX_CHANNEL_USERS);
+  }
+
+  /**
+  * Return how many more messages can be sent to a client joining a channel without overflowing its queue,
+  * so its backlog is cut short instead of setting off the overflow policy.
+  * @param client The client, with its outbound queue started.
+  * @return Free space in the queue.
+  */
+  private int backfillRoom(Client client){
+    return Math.max(0, queueCapacity - client.getQueueDepth());
+  }
+
+  /**
+  * Process a message received from a user of a channel. Shared by all server engines.
+  * @param channel Name of the user's channel.
+  * @param client The sender.
+  * @param frame Frame received, {@code Frame.EMPTY} if none, {@code null} if the connection failed.
+  * @return {@code false} if the client was removed from the channel.
+  */
+  boolean processMessage(String channel, Client client, Frame frame){
+
+    ChannelState ch = channels.get(channel);
+    if (ch == null){
+      client.close();
+      return false;
+    }
+    if (frame == null){
+      leaveChannel(ch, client);
+      return false;
+    }
+    switch (frame.getType()){
+      case Frame.QUIT:
+        leaveChannel(ch, client);
+        return false;
+      case Frame.PAUSE: // Stop writing to the client, so a user not reading doesn't hold up the channel.
+        client.pause(pauseBacklog);
+        break;
+      case Frame.RESUME:
+        client.resume();
+        break;
+      case Frame.PING:
+        client.send(Frame.PONG_FRAME);
+        break;
+      case Frame.PONG:
+        client.ponged();
+        break;
+      case Frame.USERS:
+        Client[] local = ch.members();
+        String users = formatUserList(local);
+        if (federation != null)
+          users += federation.formatUsers(channel, local.length);
+        Frame list = Frame.text(Frame.USERS, users);
+        client.send(list);
+        ch.getMetrics().sent(list.encodedSize(client.getProtocol()));
+        break;
+      case Frame.CHAT:
+        if (!(withinRate(ch, client)))
+          break;
+        ChannelMetrics stats = ch.getMetrics();
+        stats.received(frame.encodedSize(client.getProtocol()));
+        if (frame.getPayload().length > 0) // Even if only whitespace, which is broadcast as the bare prefix.
+          broadcast(ch, Frame.line(client.getPrefix(), frame.getPayload()), true);
+        break;
+      default: // Nothing received, or not expected from a client.
+        break;
+    }
+    return true;
+  }
+
+  /**
+  * Check a chat message against the sender's and the channel's rate limits, before it costs a broadcast.
+  * A message over either is dropped, and counted; the sender is told the first time, and again only after
+  * one of its messages went through. Allocates nothing.
+  * @param ch The channel.
+  * @param client The sender.
+  * @return {@code true} if the message is to be broadcast.
+  */
+  private boolean withinRate(ChannelState ch, Client client){
+
+    double uRate = userRate;
+    double cRate = channelRate;
+    if (uRate == 0 && cRate == 0)
+      return true;
+    long now = System.nanoTime();
+    Frame notice;
+    if (uRate != 0 && !(client.takeMessage(uRate, userBurst, now)))
+      notice = USER_THROTTLED;
+    else if (cRate != 0 && !(ch.takeMessage(cRate, channelBurst, now)))
+      notice = CHANNEL_THROTTLED;
+    else{
+      client.setThrottled(false);
+      return true;
+    }
+    ch.getMetrics().throttled();
+    if (!(client.setThrottled(true)))
+      client.send(notice);
+    return false;
+  }
+
+  /**
+  * Check on a logged in client that may have gone away without closing its connection, such as when its
+  * machine or network went down. A client quiet for the ping interval is sent a {@code PING}; one that has
+  * answered a ping before, and leaves this unanswered for {@code PING_TIMEOUT}, is taken for dead. Clients
+  * that never answered are pinged again every interval, in case they're not dead but too old to know pings.
+  * Paused clients are left alone until they resume, since they don't read, and their backlog is bounded.
+  * Called by the engines' timer wheels, so costs nothing until a check is due. Shared by all server engines.
+  * @param client The client.
+  * @param now Output of {@code System.currentTimeMillis()}.
+  * @return Time until the client is to be checked again in milliseconds, {@code -1} if it's dead.
+  */
+  long heartbeat(Client client, long now){
+
+    if (client.isPaused()) // A ping would only be held in the backlog, and go unanswered.
+      return pingInterval;
+    long last = client.getLastReceived();
+    long sent = client.getPingSent();
+    if (sent > last){ // Unanswered.
+      long waited = now - sent;
+      if (client.answersPings()){
+        if (waited < PING_TIMEOUT)
+          return PING_TIMEOUT - waited;
+        metrics.reaped();
+        return -1;
+      }
+      if (waited < pingInterval)
+        return pingInterval - waited;
+    }else if (now - last < pingInterval){
+      return pingInterval - (now - last);
+    }
+    if (client.getProtocol() == Frame.PROTOCOL_LEGACY)
+      return pingInterval;
+    client.ping(now);
+    return client.answersPings() ? Math.min(PING_TIMEOUT, pingInterval) : pingInterval; // Answered, it's due again an interval on.
+  }
+
+  /**
+  * Format the user list of a channel, as sent in reply to a {@code USERS} request.
+  * @param clients Users of the channel.
+  * @return The user list.
+  */
+  public static String formatUserList(Client[] clients){
+
+    String msg = "\n            Channel Users\n            -------------\n\n";
+    for (int i = 0; i < clients.length; i++)
+      msg += String.format("  %03d   -   %-16s  (active for: %s)\n", i+1, clients[i].getUsername(), clients[i].computeLoginDuration());
+    return msg;
+  }
+
+  /**
+  * Remove a client from its channel and notify the other users.
+  * @param ch The channel.
+  * @param client The client leaving.
+  */
+  private void leaveChannel(ChannelState ch, Client client){
+
+    if (ch.leave(client)){
+      left(ch, client);
+      ch.addBroadcast(String.format("[NOTIFICATION] : %s has left!", client.getUsername()));
+    }
+    client.close();
+    if (listener != null)
+      listener.usersChanged();
+  }
+
+  /**
+  * Send all pending notifications of a channel to its users.
+  * @param channel Name of channel.
+  */
+  void flushBroadcasts(String channel){
+
+    ChannelState ch = channels.get(channel);
+    if (ch == null)
+      return;
+    String msg;
+    while ((msg = ch.pollBroadcast()) != null)
+      broadcast(ch, Frame.text(Frame.NOTICE, msg), true);
+  }
+
+  /**
+  * Send a message to all users of a channel, recording it first if it's a chat message and the channel keeps
+  * its messages. The message is handed over to the channel, and sent by whichever thread is sending the
+  * channel's messages, after those handed over before it; if none is, the caller sends them all until none
+  * are left. So every user gets the channel's messages in one order without a lock held while sending, and
+  * callers never wait on each other.
+  * @param ch The channel.
+  * @param frame The message.
+  * @param forward Whether to forward it to the linked nodes, having come from this one.
+  */
+  private void broadcast(ChannelState ch, Frame frame, boolean forward){
+
+    ch.handOver(new ChannelState.Broadcast(frame, forward));
+    while (ch.startSending()){
+      ChannelState.Broadcast b;
+      while ((b = ch.nextBroadcast()) != null)
+        fanOut(ch, b);
+      if (!(ch.stopSending()))
+        break;
+    }
+  }
+
+  /**
+  * Send a message handed over to a channel to its users, and to the linked nodes with users there.
+  */
+  private void fanOut(ChannelState ch, ChannelState.Broadcast b){
+
+    Frame frame = b.frame;
+    boolean record = (frame.getType() == Frame.CHAT && (ch.getRecent() != null || ch.getLog() != null));
+    Client[] recipients = (record) ? ch.record(frame) : ch.members();
+    long start = System.nanoTime();
+    for (Client r : recipients){
+      if (r.getProtocol() >= Frame.PROTOCOL_DEFLATE){
+        try{
+          frame.toBytes(Frame.PROTOCOL_DEFLATE); // Compressed once here, rather than by whichever writer gets to it first.
+        }catch(IOException e){}
+        break;
+      }
+    }
+    long bytes = 0;
+    for (Client r : recipients){
+      r.send(frame);
+      bytes += frame.encodedSize(r.getProtocol());
+    }
+    ChannelMetrics stats = ch.getMetrics();
+    if (frame.getType() == Frame.CHAT)
+      stats.fannedOut(System.nanoTime() - start);
+    stats.sent(bytes);
+    if (b.forward && federation != null)
+      federation.forward(ch.getName(), frame);
+  }
+
+  /**
+  * Tell the linked nodes, if any, that a user has left a channel.
+  * @param ch The channel.
+  * @param client The user, already removed.
+  */
+  private void left(ChannelState ch, Client client){
+
+    if (federation != null)
+      federation.left(ch.getName(), client.getUsername());
+  }
+
+  /**
+  * Send a message forwarded by another node to the users of a channel, recording chat messages as though sent
+  * here. With the NIO engine, the message is handed to the event loop of the channel, the only thread that
+  * may write to its clients.
+  * @param channel Name of the channel.
+  * @param frame The message.
+  */
+  void deliverRemote(String channel, Frame frame){
+
+    NioChannelEngine engine = nio;
+    if (engine == null){
+      deliver(channel, frame);
+      return;
+    }
+    engine.execute(channel, new Runnable(){
+      @Override
+      public void run(){
+        deliver(channel, frame);
+      }
+    });
+  }
+
+  private void deliver(String channel, Frame frame){
+
+    ChannelState ch = channels.get(channel);
+    if (ch == null || !(active))
+      return;
+    broadcast(ch, frame, false);
+  }
+
+  /**
+  * Called by the federation when the users of a linked node change.
+  */
+  void remoteMembersChanged(){
+
+    if (listener != null)
+      listener.usersChanged();
+  }
+
+  /**
+  * Send pending notifications of all channels. Used by engines that only flush a channel when one of its
+  * users sends something, so that notifications such as blocked users reach idle channels.
+  */
+  void flushAllBroadcasts(){
+
+    for (ChannelState ch : channels.values()){
+      if (ch.hasBroadcasts())
+        flushBroadcasts(ch.getName());
+    }
+  }
+
+  /**
+  * Add a username to the block list, and evict the user from every channel they're in. Blocked users are
+  * refused at login, so channel handlers never need to check the list.
+  * @param username Username to block.
+  * @return {@code false} if the user was already blocked.
+  */
+  public boolean blockUser(String username){
+
+    if (!(blockedUsers.add(username)))
+      return false;
+    for (ChannelState ch : channels.values()){
+      for (Client client : ch.members()){
+        if (username.equals(client.getUsername()) && ch.leave(client)){
+          left(ch, client);
+          client.close();
+          ch.addBroadcast(String.format("[NOTIFICATION] : %s has been blocked!", username));
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+  * Remove a username from the block list.
+  * @param username Username to unblock.
+  * @return {@code false} if the user was not blocked.
+  */
+  public boolean unblockUser(String username){
+    return blockedUsers.remove(username);
+  }
+
+  /**
+  * Handles a connection whose login has arrived, authenticate it, and keep reading from it.
+  */
+  public class ConnHandler implements Runnable{
+
+    private HandshakeStage stage;
+    private Client client;
+    private Frame login;
+
+    public ConnHandler(HandshakeStage stage, Client client, Frame login){
+
+      this.stage = stage;
+      this.client = client;
+      this.login = login;
+    }
+
+    @Override
+    public void run(){
+
+      try{
+        String channel = authenticate(client, login);
+        if (channel == null)
+          return;
+        readClient(channel, client);
+      }catch(Exception e){
+        e.printStackTrace();
+        client.close();
+      }finally{
+        stage.finished(client);
+      }
+    }
+  }
+
+  /**
+  * Read from a client with blocking I/O until it leaves its channel. A blocked thread costs no CPU while
+  * the client is quiet, and with virtual threads, little memory either.
+  * @param channel Name of the client's channel.
+  * @param client The client to read from.
+  */
+  private void readClient(String channel, Client client){
+
+    flushBroadcasts(channel);
+    client.setTimeout(0);
+    boolean member = true;
+    Frame frame;
+    while (member && active){
+      frame = client.receiveFrame();
+      if (!(active))
+        break;
+      member = processMessage(channel, client, frame);
+      flushBroadcasts(channel);
+    }
+  }
+}
@@ -2,6 +2,13 @@ package com.umarabdul.jschat;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -19,7 +26,31 @@ public class Client{
   private DataOutputStream writer;
   private int timeout = 50; // Default read timeout, in milliseconds. The lower, the more loop cycles executed in some places, the faster messages are exchanged.
   private String username = null;
+  private byte[] prefix = null; // Start of the user's chat lines, encoded once.
   private long loginTime = 0;
+  private OutboundQueue<Frame> outbound = null; // Messages waiting to be written by the drainer thread, if enabled.
+  private int protocol = Frame.PROTOCOL_LEGACY; // Wire format in use, see Frame.
+  private volatile Compression compression = null; // Stream state, with the compressed protocol.
+  private final long connectTime; // When the connection was wrapped, for handshake latency.
+  private volatile long lastReceived; // When data last arrived, from System.currentTimeMillis().
+  private volatile long pingSent = 0; // When the last PING was sent.
+  private volatile boolean answersPings = false; // Whether the peer has ever answered a PING.
+  private TimerWheel.Timeout heartbeat = null; // Next check that the peer is alive, on the wheel of the thread checking.
+  private final TokenBucket messages = new TokenBucket(); // Chat messages allowed, used by the thread reading.
+  private boolean throttled = false; // Whether the last chat message was over a limit, and the user told so.
+  private final LongAdder sendFailures = new LongAdder();
+  private final LongAdder writes = new LongAdder(); // Writes to the socket, each a system call.
+  private volatile boolean paused = false; // Whether messages are held back at the user's request.
+  private ArrayDeque<Frame> backlog = null; // Messages held while paused, guarded by pauseLock.
+  private int backlogLimit = 0;
+  private long missed = 0; // Messages dropped from the backlog while paused.
+  private final Object pauseLock = new Object();
+
+  public static final int FRAME_TIMEOUT = 5000; // Time allowed for the rest of a frame to arrive once it has started, in milliseconds.
+  public static final int MAX_BATCH = 64 * 1024; // Most bytes of queued messages gathered into a single write.
+  public static final int COALESCE_BYTES = 1400; // Writes smaller than this, about a TCP segment, wait briefly for more messages.
+  public static final long COALESCE_WINDOW = 200000; // Most time a user's small write waits for more messages, in nanoseconds.
+  private static final BufferPool BUFFERS = new BufferPool(MAX_BATCH, 64, false); // Batches are gathered in, shared by every client's drainer.
 
   /**
   * Class constructor. Wraps the socket object and sets the default timeout.
@@ -33,6 +64,44 @@ public class Client{
     reader = new DataInputStream(sock.getInputStream());
     writer = new DataOutputStream(sock.getOutputStream());
     this.sock = sock;
+    connectTime = System.nanoTime();
+    lastReceived = System.currentTimeMillis();
+  }
+
+  /**
+  * Constructor for a connection taken through the protocol offer by another client, such as a {@code NioClient},
+  * and carried on in blocking mode. The protocol agreed, with its compression state, and the connection time
+  * carry over, and data the other client read but didn't use is read first.
+  * @param sock A {@code Socket} object to wrap, in blocking mode.
+  * @param handshake The client the connection was used through until now.
+  * @param buffered Data read from the connection but not yet used.
+  * @throws IOException on {@code Socket.setSoTimeout(int)} failure.
+  */
+  Client(Socket sock, Client handshake, byte[] buffered) throws IOException{
+
+    sock.setSoTimeout(timeout);
+    InputStream in = sock.getInputStream();
+    if (buffered.length != 0)
+      in = new SequenceInputStream(new ByteArrayInputStream(buffered), in);
+    reader = new DataInputStream(in);
+    writer = new DataOutputStream(sock.getOutputStream());
+    this.sock = sock;
+    connectTime = handshake.connectTime;
+    lastReceived = handshake.lastReceived;
+    protocol = handshake.protocol;
+    compression = handshake.compression;
+  }
+
+  /**
+  * Constructor for subclasses that perform their own I/O on a {@code SocketChannel}, such as {@code NioClient}.
+  * No data streams are created.
+  * @param channel The socket channel to wrap.
+  */
+  protected Client(SocketChannel channel){
+
+    this.sock = channel.socket();
+    connectTime = System.nanoTime();
+    lastReceived = System.currentTimeMillis();
   }
 
   /**
@@ -47,30 +116,545 @@ public class Client{
   }
 
   /**
-  * Send the given data to the wrapped socket.
+  * Return the protocol version in use.
+  * @return {@code Frame.PROTOCOL_LEGACY} or a binary protocol version.
+  */
+  public int getProtocol(){
+    return protocol;
+  }
+
+  /**
+  * Set the protocol version in use.
+  * @param protocol Protocol version.
+  */
+  public void setProtocol(int protocol){
+
+    this.protocol = protocol;
+    compression = (protocol >= Frame.PROTOCOL_DEFLATE) ? new Compression() : null;
+  }
+
+  /**
+  * Offer the highest protocol version supported to the server. Must be the first message sent on the connection.
+  * @return {@code true} if the server agreed on a protocol. On {@code false}, the server does not support
+  * negotiation and has most likely closed the connection, so the caller should reconnect in the legacy format.
+  */
+  public boolean negotiate(){
+    return negotiate(Frame.PROTOCOL_VERSION);
+  }
+
+  /**
+  * Offer a protocol version to the server. Must be the first message sent on the connection.
+  * @param version Highest version to use, such as {@code Frame.PROTOCOL_BINARY} to do without compression.
+  * @return {@code true} if the server agreed on a protocol.
+  * @see negotiate()
+  */
+  public boolean negotiate(int version){
+
+    if (!(send(Frame.text(Frame.CHAT, Frame.HELLO + version))))
+      return false;
+    String rsp = receive();
+    if (rsp == null || !(rsp.startsWith(Frame.HELLO)))
+      return false;
+    try{
+      setProtocol(Math.min(Integer.parseInt(rsp.substring(Frame.HELLO.length()).trim()), version));
+      return true;
+    }catch(NumberFormatException e){
+      return false;
+    }
+  }
+
+  /**
+  * Answer the protocol offer of a client, if the given frame is one. Used by the server on the first frame
+  * received from a connection.
+  * @param frame First frame received.
+  * @return {@code true} if the frame was a protocol offer and has been answered.
+  */
+  public boolean answerHello(Frame frame){
+    return answerHello(frame, Frame.PROTOCOL_VERSION);
+  }
+
+  /**
+  * Answer the protocol offer of a client, if the given frame is one, agreeing on no higher than the given version.
+  * @param frame First frame received.
+  * @param maxVersion Highest version to agree on, such as {@code Frame.PROTOCOL_BINARY} to do without compression.
+  * @return {@code true} if the frame was a protocol offer and has been answered.
+  */
+  public boolean answerHello(Frame frame, int maxVersion){
+
+    if (protocol != Frame.PROTOCOL_LEGACY || frame.getType() != Frame.CHAT)
+      return false;
+    String text = frame.getText();
+    if (!(text.startsWith(Frame.HELLO)))
+      return false;
+    int version;
+    try{
+      version = Math.max(Frame.PROTOCOL_LEGACY, Math.min(Integer.parseInt(text.substring(Frame.HELLO.length()).trim()), maxVersion));
+    }catch(NumberFormatException e){
+      return false;
+    }
+    send(Frame.text(Frame.CHAT, Frame.HELLO + version)); // Answered in the legacy format, before switching.
+    setProtocol(version);
+    return true;
+  }
+
+  /**
+  * Send outgoing data through a bounded queue drained by a dedicated thread, so that a slow reader
+  * does not block the caller of {@code send()}. The thread gathers what's queued into a single write, and
+  * while that's less than {@code COALESCE_BYTES}, first gives way to other threads, such as the one sending,
+  * so a burst, such as a join notice, a few lines and a user list, goes out in one system call and segment.
+  * With a thread per client, waiting any longer costs more in context switches than the writes it saves.
+  * @param capacity Maximum number of messages to queue.
+  * @param policy What to do when the queue is full.
+  * @param mode Kind of thread to drain the queue with.
+  */
+  public void startOutboundQueue(int capacity, OutboundQueue.Policy policy, ExecutionMode mode){
+
+    outbound = new OutboundQueue<Frame>(capacity, policy);
+    mode.start(new Runnable(){
+      @Override
+      public void run(){
+        Frame frame;
+        ArrayList<Frame> batch = new ArrayList<Frame>();
+        while ((frame = outbound.take()) != null){
+          batch.clear();
+          batch.add(frame);
+          int size = frame.encodedSize(protocol);
+          while (size < MAX_BATCH){
+            if (size < COALESCE_BYTES && outbound.size() == 0)
+              Thread.yield();
+            if ((frame = outbound.poll()) == null)
+              break;
+            batch.add(frame);
+            size += frame.encodedSize(protocol);
+          }
+          if (!((batch.size() == 1) ? write(batch.get(0)) : write(batch))){
+            sendFailed();
+            close();
+            return;
+          }
+        }
+      }
+    }, true);
+  }
+
+  /**
+  * Return the number of messages waiting in the outbound queue.
+  * @return Queue depth, {@code 0} if the queue is not enabled.
+  */
+  public int getQueueDepth(){
+    return (outbound == null) ? 0 : outbound.size();
+  }
+
+  /**
+  * Return the number of messages dropped because the outbound queue was full.
+  * @return Count of dropped messages.
+  */
+  public long getDroppedCount(){
+    return (outbound == null) ? 0 : outbound.getDropped();
+  }
+
+  /**
+  * Send the given data to the wrapped socket. Sentinels such as {@code [quit]} are sent as the matching frame type.
   * @param text String data to send.
   * @return {@code true} on success.
+  * @see send(Frame)
   */
   public boolean send(String text){
+    return send(Frame.fromLegacy(text));
+  }
+
+  /**
+  * Send a frame to the wrapped socket. If the outbound queue is enabled, the frame is queued instead, and
+  * while paused, it's held in the backlog.
+  * @param frame Frame to send.
+  * @return {@code true} on success. With the outbound queue enabled, {@code false} means the connection was dropped.
+  */
+  public boolean send(Frame frame){
+
+    if (paused && hold(frame))
+      return true;
+    return transmit(frame);
+  }
+
+  /**
+  * Send frames in a single write, or queue them together if the outbound queue is enabled. While paused,
+  * they're held in the backlog.
+  * @param frames Frames to send, in order.
+  * @return {@code true} on success. With the outbound queue enabled, {@code false} means the connection was dropped.
+  */
+  public boolean sendAll(List<Frame> frames){
+
+    if (paused){
+      for (Frame frame : frames){
+        if (!(send(frame)))
+          return false;
+      }
+      return true;
+    }
+    return transmitAll(frames);
+  }
+
+  /**
+  * Send a frame, or queue it if the outbound queue is enabled. Overridden by clients with their own I/O.
+  * @param frame Frame to send.
+  * @return {@code true} on success.
+  */
+  protected boolean transmit(Frame frame){
+
+    if (outbound == null){
+      if (write(frame))
+        return true;
+      sendFailed();
+      return false;
+    }
+    if (outbound.offer(frame))
+      return true;
+    sendFailed();
+    close(); // Queue is full and the policy is to disconnect, or the connection is already closed.
+    return false;
+  }
+
+  /**
+  * Send frames in a single write, or queue them in one step if the outbound queue is enabled, so that the
+  * drainer writes them together. Overridden by clients with their own I/O.
+  * @param frames Frames to send, in order.
+  * @return {@code true} on success.
+  */
+  protected boolean transmitAll(List<Frame> frames){
+
+    if (outbound == null){
+      if (write(frames))
+        return true;
+      sendFailed();
+      return false;
+    }
+    if (outbound.offerAll(frames))
+      return true;
+    sendFailed();
+    close();
+    return false;
+  }
+
+  /**
+  * Stop sending messages to the client at its request, holding them in a backlog until resumed. Once the
+  * backlog is full, the oldest messages are dropped and counted.
+  * @param limit Most messages to hold.
+  */
+  public void pause(int limit){
+
+    synchronized (pauseLock){
+      if (paused)
+        return;
+      backlog = new ArrayDeque<Frame>();
+      backlogLimit = limit;
+      missed = 0;
+      paused = true;
+    }
+  }
+
+  /**
+  * Resume sending messages, starting with the backlog, written in one batch. If any messages were dropped,
+  * the batch starts with a notification of how many. Messages sent meanwhile follow the backlog.
+  */
+  public void resume(){
+
+    synchronized (pauseLock){
+      if (!(paused))
+        return;
+      ArrayList<Frame> batch = new ArrayList<Frame>(backlog.size() + 1);
+      if (missed > 0)
+        batch.add(Frame.text(Frame.NOTICE, String.format("[NOTIFICATION] : %d messages missed while paused!", missed)));
+      batch.addAll(backlog);
+      backlog = null;
+      if (!(batch.isEmpty()))
+        transmitAll(batch);
+      paused = false; // Only now, so no message overtakes the backlog.
+    }
+  }
+
+  /**
+  * Check if the client has paused its messages.
+  * @return {@code true} if paused.
+  */
+  public boolean isPaused(){
+    return paused;
+  }
+
+  /**
+  * Add a frame to the backlog, if still paused.
+  * @return {@code false} if resumed meanwhile, and the frame is to be sent.
+  */
+  private boolean hold(Frame frame){
+
+    synchronized (pauseLock){
+      if (!(paused))
+        return false;
+      if (backlog.size() >= backlogLimit){
+        if (backlogLimit == 0){
+          missed++;
+          return true;
+        }
+        backlog.poll();
+        missed++;
+      }
+      backlog.add(frame);
+      return true;
+    }
+  }
+
+  /**
+  * Count a message that could not be sent.
+  */
+  protected void sendFailed(){
+    sendFailures.increment();
+  }
+
+  /**
+  * Return the number of messages that could not be sent, because the connection failed or the outbound
+  * queue refused them. Messages discarded by the queue's drop policies are counted by {@code getDroppedCount()}.
+  * @return Count of failed sends.
+  */
+  public long getSendFailures(){
+    return sendFailures.sum();
+  }
+
+  /**
+  * Count a write to the socket.
+  */
+  protected void wrote(){
+    writes.increment();
+  }
+
+  /**
+  * Return the number of writes made to the socket, each a system call, and at least one TCP segment.
+  * @return Count of writes.
+  */
+  public long getWriteCount(){
+    return writes.sum();
+  }
+
+  /**
+  * Return the time the connection was wrapped, soon after it was accepted or opened.
+  * @return Output of {@code System.nanoTime()} at the time.
+  */
+  public long getConnectTime(){
+    return connectTime;
+  }
+
+  /**
+  * Note that data arrived from the peer, showing it's still there.
+  */
+  protected void received(){
+    lastReceived = System.currentTimeMillis();
+  }
+
+  /**
+  * Return the time data last arrived from the peer, or if none has, the connection was wrapped.
+  * @return Output of {@code System.currentTimeMillis()} at the time.
+  */
+  public long getLastReceived(){
+    return lastReceived;
+  }
+
+  /**
+  * Send the peer a {@code PING}, and note the time, for its answer to be waited for.
+  * @param now Output of {@code System.currentTimeMillis()}.
+  * @return {@code true} on success.
+  */
+  public boolean ping(long now){
+
+    pingSent = now;
+    return send(Frame.PING_FRAME);
+  }
+
+  /**
+  * Return the time the last {@code PING} was sent.
+  * @return Output of {@code System.currentTimeMillis()} at the time, {@code 0} if none was.
+  */
+  public long getPingSent(){
+    return pingSent;
+  }
+
+  /**
+  * Note that the peer answered a {@code PING}, so it's known to, and may be held to doing so.
+  */
+  public void ponged(){
+    answersPings = true;
+  }
+
+  /**
+  * Check if the peer has ever answered a {@code PING}. Older peers don't know of them.
+  * @return {@code true} if it has.
+  */
+  public boolean answersPings(){
+    return answersPings;
+  }
+
+  /**
+  * Take one of the chat messages the user is allowed. Only used by the thread reading from the client.
+  * @param rate Messages per second.
+  * @param burst Messages at once.
+  * @param now Output of {@code System.nanoTime()}.
+  * @return {@code false} if the user is over its limit.
+  */
+  public boolean takeMessage(double rate, int burst, long now){
+    return messages.take(rate, burst, now);
+  }
+
+  /**
+  * Note whether the user's last chat message was dropped for being over a limit.
+  * @param throttled {@code true} if it was.
+  * @return The previous value.
+  */
+  public boolean setThrottled(boolean throttled){
+
+    boolean was = this.throttled;
+    this.throttled = throttled;
+    return was;
+  }
+
+  /**
+  * Set the timeout of the client's heartbeat. Only used by the thread whose wheel it's scheduled on.
+  * @param heartbeat The timeout, {@code null} for none.
+  */
+  void setHeartbeat(TimerWheel.Timeout heartbeat){
+    this.heartbeat = heartbeat;
+  }
+
+  /**
+  * Return the timeout of the client's heartbeat.
+  * @return The timeout, {@code null} if none was set.
+  */
+  TimerWheel.Timeout getHeartbeat(){
+    return heartbeat;
+  }
+
+  /**
+  * Write a frame directly to the wrapped socket.
+  * @param frame Frame to write.
+  * @return {@code true} on success.
+  */
+  private boolean write(Frame frame){
     
     try{
-      writer.writeUTF(text);
+      writer.write(encode(frame));
+      wrote();
+      return true;
+    }catch(Exception e){
+      return false;
+    }
+  }
+
+  /**
+  * Write frames directly to the wrapped socket, with a single write. They're gathered in a buffer taken from
+  * a pool shared by every client, and given back once written, so the write allocates nothing. Frames that
+  * don't fit in the buffer together are written in as many writes as needed.
+  * @param frames Frames to write.
+  * @return {@code true} on success.
+  */
+  private boolean write(List<Frame> frames){
+
+    ByteBuffer buf = BUFFERS.acquire();
+    try{
+      for (Frame f : frames){
+        byte[] bytes = encode(f);
+        if (bytes.length > buf.remaining() && buf.position() > 0){
+          writer.write(buf.array(), 0, buf.position());
+          wrote();
+          buf.clear();
+        }
+        if (bytes.length > buf.remaining()){ // Larger than the buffer.
+          writer.write(bytes);
+          wrote();
+        }else{
+          buf.put(bytes);
+        }
+      }
+      if (buf.position() > 0){
+        writer.write(buf.array(), 0, buf.position());
+        wrote();
+      }
       return true;
     }catch(Exception e){
       return false;
+    }finally{
+      BUFFERS.release(buf);
     }
   }
 
+  /**
+  * Return the encoded form of a frame for this connection. Must be called in the order frames are written,
+  * since compressed frames may depend on the ones before them.
+  * @param frame Frame to encode.
+  * @return The encoded frame.
+  * @throws IOException if the frame can't be encoded.
+  */
+  protected byte[] encode(Frame frame) throws IOException{
+
+    Compression c = compression;
+    return (c == null) ? frame.toBytes(protocol) : c.encode(frame, protocol);
+  }
+
+  /**
+  * Decompress a frame received, if it's compressed.
+  * @param frame Frame as received.
+  * @return The plain frame.
+  * @throws IOException on malformed data, or a compressed frame on a connection that didn't agree to compression.
+  */
+  protected Frame decode(Frame frame) throws IOException{
+
+    if (frame == null || frame.getFlags() == 0)
+      return frame;
+    Compression c = compression;
+    if (c == null)
+      throw new IOException("compressed frame without compression");
+    return c.decode(frame);
+  }
+
   /**
   * Receive data from the wrapped socket.
-  * @return String data received, {@code ""} on timeout, {@code null} on failure.
+  * @return String data received, {@code ""} on timeout, {@code null} on failure. Control frames are returned
+  * as their legacy sentinels.
+  * @see receiveFrame
   */
   public String receive(){
 
+    Frame frame = receiveFrame();
+    return (frame == null) ? null : frame.toLegacy();
+  }
+
+  /**
+  * Receive a frame from the wrapped socket.
+  * @return Frame received, {@code Frame.EMPTY} on timeout, {@code null} on failure.
+  */
+  public Frame receiveFrame(){
+
     try{
-      return reader.readUTF();
+      if (protocol == Frame.PROTOCOL_LEGACY){
+        Frame frame = Frame.fromLegacy(reader.readUTF());
+        received();
+        return frame;
+      }
+      int type;
+      try{
+        type = reader.read();
+      }catch(SocketTimeoutException e){
+        return Frame.EMPTY;
+      }
+      if (type < 0)
+        return null;
+      received();
+      // A timeout in the middle of a frame would lose our place in the stream, so allow more time for the rest.
+      if (timeout != 0)
+        sock.setSoTimeout(FRAME_TIMEOUT);
+      try{
+        return decode(Frame.readBody((byte)type, reader));
+      }finally{
+        if (timeout != 0)
+          sock.setSoTimeout(timeout);
+      }
     }catch(SocketTimeoutException e1){
-      return "";
+      return (protocol == Frame.PROTOCOL_LEGACY) ? Frame.EMPTY : null; // Binary frames only time out mid-frame here.
     }catch(Exception e2){
       return null;
     }
@@ -82,15 +666,10 @@ public class Client{
   */
   public String receiveWait(){
 
-    while (true){
-      try{
-        return reader.readUTF();
-      }catch(SocketTimeoutException e1){
-        continue;
-      }catch(Exception e2){
-        return null;
-      }
-    }
+    Frame frame;
+    while ((frame = receiveFrame()) == Frame.EMPTY)
+      continue;
+    return (frame == null) ? null : frame.toLegacy();
   }
 
   /**
@@ -122,6 +701,9 @@ public class Client{
   */
   public void close(){
 
+    if (outbound != null)
+      outbound.close();
+    endCompression();
     try{
       reader.close();
       writer.close();
@@ -129,12 +711,24 @@ public class Client{
     }catch(IOException e){}
   }
 
+  /**
+  * Release the native memory held for compression, once the connection is closed.
+  */
+  protected void endCompression(){
+
+    Compression c = compression;
+    if (c != null)
+      c.end();
+  }
+
   /**
   * Assign a username to the wrapped socket. Called after authentication.
   * @param username Username to assign.
   */
   public void setUsername(String username){
+
     this.username = username;
+    prefix = (username == null) ? null : ("(" + username + ") > ").getBytes(StandardCharsets.UTF_8);
   }
 
   /**
@@ -146,6 +740,15 @@ public class Client{
     return username;
   }
 
+  /**
+  * Return the start of the user's chat lines as broadcast, {@code (username) > }, encoded as UTF-8. The array
+  * is shared, and must not be modified.
+  * @return The encoded prefix, {@code null} if no username is assigned.
+  */
+  public byte[] getPrefix(){
+    return prefix;
+  }
+
   /**
   * Record login time for the user of the wrapped socket.
   * @param loginTime Result of {@code System.currentTimeMillis()} at the time of user's successful authentication.
@@ -0,0 +1,225 @@
+package com.umarabdul.jschat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+* Deflate compression of frame payloads, used on connections that negotiated {@code PROTOCOL_DEFLATE}.
+* Payloads smaller than {@code MIN_SIZE} are sent as they are, as are those that compression doesn't shrink.
+*
+* Two forms are used, marked by the frame flags:
+*
+* <ul>
+*   <li>{@code FLAG_DEFLATE}: the payload is compressed on its own, primed with a dictionary of text common
+*   in chat traffic. Broadcasts use this form, so a message is compressed once, before it's handed to its
+*   recipients, and the same bytes are written to every one of them (see {@code Frame.toBytes()}).</li>
+*   <li>{@code FLAG_DEFLATE_STREAM}: the payload is the next part of a deflate stream kept for the life of
+*   the connection, so a message is compressed against everything sent before it on the connection. User
+*   lists use this form; consecutive lists of a channel are mostly the same, and shrink to a few bytes.</li>
+* </ul>
+*
+* An instance holds the stream state of one connection, for each direction. Stream parts must be decoded
+* in the order they were encoded, which is the order they're written in. The compressors used for frames on
+* their own are shared by every connection, from a small pool.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class Compression{
+
+  public static final int MIN_SIZE = 128; // Payloads smaller than this, in bytes, are not compressed.
+  public static final byte[] DICTIONARY = String.join("",
+    "the and you that this for what have with just not but are was your can will how about know like",
+    " Channel Users\n            -------------\n\n  0",
+    "(active for: 0.0 secs)\n  0 mins)\n  0 hrs)\n  00",
+    "   -                   (active for: ",
+    "[NOTIFICATION] : has been blocked! messages missed while paused! has left! has joined!",
+    " > ", ") > ").getBytes(StandardCharsets.UTF_8); // Most common strings last, where they're cheapest to refer to.
+
+  private static final int POOL_SIZE = 4; // Most compressors of each kind kept when not in use; each holds native memory.
+  private static final ArrayDeque<Deflater> DEFLATERS = new ArrayDeque<Deflater>(POOL_SIZE);
+  private static final ArrayDeque<Inflater> INFLATERS = new ArrayDeque<Inflater>(POOL_SIZE);
+
+  private Deflater out = null; // Stream state of each direction, created on first use.
+  private Inflater in = null;
+  private boolean ended = false;
+
+  /**
+  * Compress a payload on its own, primed with the dictionary.
+  * @param payload Payload to compress.
+  * @return The compressed payload, {@code null} if too small or not worth compressing.
+  */
+  public static byte[] deflate(byte[] payload){
+
+    if (payload.length < MIN_SIZE)
+      return null;
+    Deflater deflater;
+    synchronized (DEFLATERS){
+      deflater = DEFLATERS.poll();
+    }
+    if (deflater == null)
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try{
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(payload);
+      deflater.finish();
+      byte[] buf = new byte[payload.length];
+      int len = 0;
+      while (!(deflater.finished()) && len < buf.length)
+        len += deflater.deflate(buf, len, buf.length - len);
+      if (!(deflater.finished()))
+        return null; // No smaller than the original.
+      return Arrays.copyOf(buf, len);
+    }finally{
+      deflater.reset();
+      synchronized (DEFLATERS){
+        if (DEFLATERS.size() < POOL_SIZE){
+          DEFLATERS.push(deflater);
+          deflater = null;
+        }
+      }
+      if (deflater != null)
+        deflater.end();
+    }
+  }
+
+  /**
+  * Compress a payload as the next part of this connection's outgoing stream.
+  * @param payload Payload to compress.
+  * @return The compressed part, which is never {@code null}, since the stream must see every part encoded.
+  */
+  public synchronized byte[] deflateStream(byte[] payload){
+
+    if (ended)
+      throw new IllegalStateException("connection closed");
+    if (out == null){
+      out = new Deflater(Deflater.DEFAULT_COMPRESSION);
+      out.setDictionary(DICTIONARY);
+    }
+    out.setInput(payload);
+    byte[] buf = new byte[Math.max(64, payload.length / 4)];
+    int len = 0;
+    while (true){
+      len += out.deflate(buf, len, buf.length - len, Deflater.SYNC_FLUSH);
+      if (len < buf.length)
+        break; // Flushed everything.
+      buf = Arrays.copyOf(buf, buf.length * 2);
+    }
+    return Arrays.copyOf(buf, len);
+  }
+
+  /**
+  * Return the encoded form of a frame for this connection, compressing user lists as part of the
+  * connection's stream, and any other frame on its own if worth it.
+  * @param frame Frame to encode.
+  * @param protocol Protocol version of the connection.
+  * @return The encoded frame.
+  * @throws IOException if the frame can't be encoded.
+  */
+  public byte[] encode(Frame frame, int protocol) throws IOException{
+
+    if (frame.getType() != Frame.USERS || frame.getPayload().length < MIN_SIZE)
+      return frame.toBytes(protocol);
+    byte[] part = deflateStream(frame.getPayload());
+    return new Frame(frame.getType(), (byte)(frame.getFlags() | Frame.FLAG_DEFLATE_STREAM), part).toBytes(Frame.PROTOCOL_BINARY);
+  }
+
+  /**
+  * Return a frame with its payload decompressed, if it was compressed.
+  * @param frame Frame as received.
+  * @return The frame, or a copy of it with the plain payload.
+  * @throws IOException on malformed data.
+  */
+  public Frame decode(Frame frame) throws IOException{
+
+    byte flags = frame.getFlags();
+    byte[] payload;
+    if ((flags & Frame.FLAG_DEFLATE_STREAM) != 0){
+      synchronized (this){
+        if (ended)
+          throw new IOException("connection closed");
+        if (in == null)
+          in = new Inflater();
+        payload = inflate(in, frame.getPayload(), false);
+      }
+    }else if ((flags & Frame.FLAG_DEFLATE) != 0){
+      Inflater inflater;
+      synchronized (INFLATERS){
+        inflater = INFLATERS.poll();
+      }
+      if (inflater == null)
+        inflater = new Inflater();
+      try{
+        payload = inflate(inflater, frame.getPayload(), true);
+      }finally{
+        inflater.reset();
+        synchronized (INFLATERS){
+          if (INFLATERS.size() < POOL_SIZE){
+            INFLATERS.push(inflater);
+            inflater = null;
+          }
+        }
+        if (inflater != null)
+          inflater.end();
+      }
+    }else{
+      return frame;
+    }
+    return new Frame(frame.getType(), (byte)(flags & ~(Frame.FLAG_DEFLATE | Frame.FLAG_DEFLATE_STREAM)), payload);
+  }
+
+  /**
+  * Inflate all of the given data.
+  * @param whole Whether the data is a complete deflate stream, rather than a flushed part of one.
+  */
+  private static byte[] inflate(Inflater inflater, byte[] data, boolean whole) throws IOException{
+
+    inflater.setInput(data);
+    byte[] buf = new byte[Math.max(256, data.length * 4)];
+    int len = 0;
+    try{
+      while (true){
+        int n = inflater.inflate(buf, len, buf.length - len);
+        len += n;
+        if (inflater.needsDictionary()){
+          inflater.setDictionary(DICTIONARY);
+          continue;
+        }
+        if (inflater.finished() || (n == 0 && inflater.needsInput() && len < buf.length))
+          break;
+        if (len == buf.length){
+          if (buf.length > Frame.MAX_PAYLOAD)
+            throw new IOException("compressed frame too large");
+          buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+      }
+    }catch(DataFormatException e){
+      throw new IOException("malformed compressed frame: " + e.getMessage());
+    }
+    if (whole && !(inflater.finished()))
+      throw new IOException("truncated compressed frame");
+    return Arrays.copyOf(buf, len);
+  }
+
+  /**
+  * Release the native memory of the stream state.
+  */
+  public synchronized void end(){
+
+    if (out != null)
+      out.end();
+    if (in != null)
+      in.end();
+    out = null;
+    in = null;
+    ended = true;
+  }
+}
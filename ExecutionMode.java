@@ -0,0 +1,98 @@
+package com.umarabdul.jschat;
+
+import java.lang.reflect.Method;
+
+
+/**
+* Decides what kind of threads are used for handling connections. Virtual threads need Java 21 or later;
+* they are looked up at runtime so that JSChat still builds and runs on older versions, where
+* {@code VIRTUAL} falls back to platform threads.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public enum ExecutionMode{
+
+  PLATFORM("Platform"), // A regular thread per task.
+  VIRTUAL("Virtual"); // A Java 21 virtual thread per task, with blocking I/O in place of timeout polling.
+
+  private String label;
+  private static Object virtualBuilder = null; // Result of Thread.ofVirtual(), if supported.
+  private static Method builderStart = null; // Thread.Builder.start(Runnable)
+
+  static{
+    try{
+      virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builderStart = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+    }catch(Exception e){
+      virtualBuilder = null;
+    }
+  }
+
+  private ExecutionMode(String label){
+    this.label = label;
+  }
+
+  /**
+  * Check if the running JVM supports virtual threads.
+  * @return {@code true} if supported.
+  */
+  public static boolean virtualThreadsSupported(){
+    return virtualBuilder != null;
+  }
+
+  /**
+  * Return the mode named by the {@code jschat.threads} system property ({@code platform} or {@code virtual}).
+  * @return The named mode, {@code PLATFORM} if not set or invalid.
+  */
+  public static ExecutionMode fromProperty(){
+
+    String name = System.getProperty("jschat.threads", "platform");
+    return name.equalsIgnoreCase("virtual") ? VIRTUAL : PLATFORM;
+  }
+
+  /**
+  * Check if tasks started by this mode actually run on virtual threads.
+  * @return {@code true} for {@code VIRTUAL} on a JVM that supports it.
+  */
+  public boolean isVirtual(){
+    return this == VIRTUAL && virtualThreadsSupported();
+  }
+
+  /**
+  * Start a new thread of this mode to run the given task.
+  * @param task Task to run.
+  * @param daemon Whether a platform thread should be a daemon. Virtual threads are always daemons.
+  * @return The started thread.
+  */
+  public Thread start(Runnable task, boolean daemon){
+
+    if (isVirtual()){
+      try{
+        return (Thread)builderStart.invoke(virtualBuilder, task);
+      }catch(Exception e){
+        e.printStackTrace();
+      }
+    }
+    Thread t = new Thread(task);
+    t.setDaemon(daemon);
+    t.start();
+    return t;
+  }
+
+  /**
+  * Start a new non-daemon thread of this mode to run the given task.
+  * @param task Task to run.
+  * @return The started thread.
+  */
+  public Thread start(Runnable task){
+    return start(task, false);
+  }
+
+  @Override
+  public String toString(){
+    return label;
+  }
+}
@@ -0,0 +1,538 @@
+package com.umarabdul.jschat;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+* Links server processes, called nodes, so that a channel can have users on any of them. Every node listens for
+* links from other nodes, and connects to the ones it's given as peers, keeping the links up while it runs. Nodes
+* tell each other which users join and leave their channels, so each one knows which nodes have members in which
+* channels; a message sent to a channel is delivered to the node's own users, and forwarded once over every link
+* to a node with members there, which delivers it to its users in turn.
+*
+* Messages are forwarded a single hop, so every node must be linked to every other; linking to a node that is
+* already linked the other way round is harmless, as only one link between two nodes is kept. Links use the
+* binary frame format, with these frame types of their own:
+*
+* <ul>
+*   <li>{@code LINK}: the first frame sent each way, with the node name and a random nonce as fields.</li>
+*   <li>{@code PROOF}: the second frame sent each way, proving the sender knows the shared secret: an
+*   HMAC-SHA256, keyed with the secret, of the sender's name, the nonce it was sent, and its own nonce. The
+*   node that made the link sends its proof first, and the other only answers with its own once that checks
+*   out, so neither can be used to prove the other. The secret itself is never sent.</li>
+*   <li>{@code JOIN}, {@code LEAVE}: a user of the sender joined or left a channel, with the channel and
+*   username as fields. Every member is sent as a {@code JOIN} when a link comes up.</li>
+*   <li>{@code FORWARD}: a message for a channel: the channel name as a field, then the type of the message
+*   and its payload.</li>
+* </ul>
+*
+* A link's outgoing frames go through a queue of {@code LINK_QUEUE} frames, written by a thread of its own; a
+* node that can't keep up is unlinked rather than holding up the channels, and linked again.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class Federation{
+
+  public static final byte LINK = 32;
+  public static final byte JOIN = 33;
+  public static final byte LEAVE = 34;
+  public static final byte FORWARD = 35;
+  public static final byte PROOF = 36;
+  public static final int NONCE_SIZE = 16; // Random bytes in the nonce of a new link.
+  public static final int RETRY_INTERVAL = 2000; // Time between attempts to link to a peer, in milliseconds.
+  public static final int LINK_TIMEOUT = 5000; // Time allowed for a new link to identify itself, in milliseconds.
+  public static final int LINK_QUEUE = 65536; // Frames queued per link before the node is unlinked.
+
+  private final ChatServer server;
+  private final String name;
+  private final SecretKeySpec secret;
+  private final SecureRandom random;
+  private String host = "localhost";
+  private int port = -1; // Port to accept links on, -1 for none.
+  private final ArrayList<InetSocketAddress> peers; // Nodes to link to.
+  private final CopyOnWriteArrayList<Link> links; // Links up, at most one per node.
+  private volatile ServerSocket acceptor = null;
+  private volatile boolean running = false;
+
+  /**
+  * A link to another node.
+  */
+  private class Link{
+
+    final Client conn;
+    final String peer; // Name of the node at the other end.
+    final boolean outgoing; // Whether this node made the link.
+    final ConcurrentHashMap<String, Set<String>> members; // Users of the node, by channel.
+
+    Link(Client conn, String peer, boolean outgoing){
+
+      this.conn = conn;
+      this.peer = peer;
+      this.outgoing = outgoing;
+      members = new ConcurrentHashMap<String, Set<String>>();
+    }
+
+    /**
+    * Check if this link takes precedence over another one to the same node. Both nodes settle on the link made
+    * by the node with the lower name; of two links made the same way, the newer one replaces the older.
+    */
+    boolean preferredTo(Link other){
+      return outgoing == (name.compareTo(peer) < 0) || outgoing == other.outgoing;
+    }
+  }
+
+  /**
+  * Class constructor.
+  * @param server The server whose channels are linked.
+  * @param name Name of this node, unique among the linked nodes.
+  * @param secret Secret shared by the linked nodes, to refuse links from anything else.
+  * @throws IllegalArgumentException if the name or the secret is empty.
+  */
+  public Federation(ChatServer server, String name, String secret){
+
+    if (name == null || name.length() == 0)
+      throw new IllegalArgumentException("node name required!");
+    if (secret == null || secret.length() == 0)
+      throw new IllegalArgumentException("link secret required!");
+    this.server = server;
+    this.name = name;
+    this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    random = new SecureRandom();
+    peers = new ArrayList<InetSocketAddress>();
+    links = new CopyOnWriteArrayList<Link>();
+  }
+
+  /**
+  * Return the name of this node.
+  * @return Node name.
+  */
+  public String getName(){
+    return name;
+  }
+
+  /**
+  * Accept links from other nodes on the given address. Takes effect when the server starts.
+  * @param host Host to bind to.
+  * @param port Port to bind to, {@code 0} for any.
+  */
+  public void listen(String host, int port){
+
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+  * Return the port links are accepted on.
+  * @return Bound port while running, else the configured one; {@code -1} if links aren't accepted.
+  */
+  public int getPort(){
+
+    ServerSocket s = acceptor;
+    return (s != null) ? s.getLocalPort() : port;
+  }
+
+  /**
+  * Add a node to link to. Takes effect when the server starts.
+  * @param host Host of the node.
+  * @param port Port the node accepts links on.
+  */
+  public void addPeer(String host, int port){
+    peers.add(InetSocketAddress.createUnresolved(host, port));
+  }
+
+  /**
+  * Return the names of the nodes linked.
+  * @return Node names.
+  */
+  public String[] getLinkedNodes(){
+
+    ArrayList<String> names = new ArrayList<String>();
+    for (Link l : links)
+      names.add(l.peer);
+    return names.toArray(new String[0]);
+  }
+
+  /**
+  * Start accepting links, and linking to the peers. Called by the server once it has started.
+  * @throws IOException if the link port can't be bound.
+  */
+  void start() throws IOException{
+
+    running = true;
+    if (port != -1){
+      acceptor = new ServerSocket(port, 50, InetAddress.getByName(host));
+      startThread("link-acceptor", new Runnable(){
+        @Override
+        public void run(){
+          accept();
+        }
+      });
+    }
+    for (InetSocketAddress peer : peers){
+      startThread("link-" + peer, new Runnable(){
+        @Override
+        public void run(){
+          connect(peer);
+        }
+      });
+    }
+  }
+
+  /**
+  * Close all links, and stop accepting and making them. Called by the server as it stops.
+  */
+  void stop(){
+
+    running = false;
+    try{
+      if (acceptor != null)
+        acceptor.close();
+    }catch(IOException e){}
+    acceptor = null;
+    for (Link l : links)
+      l.conn.close();
+  }
+
+  private static void startThread(String name, Runnable task){
+
+    Thread t = new Thread(task, name);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+  * Accept links until stopped, handing each to a thread of its own.
+  */
+  private void accept(){
+
+    ServerSocket s = acceptor;
+    while (running){
+      try{
+        Socket sock = s.accept();
+        startThread("link-in", new Runnable(){
+          @Override
+          public void run(){
+            serve(sock, false);
+          }
+        });
+      }catch(IOException e){
+        if (running)
+          e.printStackTrace();
+        return;
+      }
+    }
+  }
+
+  /**
+  * Keep a link to a peer up until stopped, linking again after every failure.
+  */
+  private void connect(InetSocketAddress peer){
+
+    String known = null; // Name of the node, once linked.
+    while (running){
+      try{
+        if (known == null || !(isLinked(known))) // Not while it's linked the other way round.
+          known = serve(new Socket(peer.getHostString(), peer.getPort()), true);
+      }catch(IOException e){}
+      try{
+        Thread.sleep(RETRY_INTERVAL);
+      }catch(InterruptedException e){
+        return;
+      }
+    }
+  }
+
+  /**
+  * Check if a node is linked.
+  */
+  private boolean isLinked(String node){
+
+    for (Link l : links){
+      if (l.peer.equals(node))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+  * Identify a new link, each end proving it knows the secret, then read from it until it fails or is replaced.
+  * @param sock Socket of the link.
+  * @param outgoing Whether this node made the link.
+  * @return Name of the node at the other end, {@code null} if it failed to identify itself.
+  */
+  private String serve(Socket sock, boolean outgoing){
+
+    Client conn;
+    try{
+      conn = new Client(sock);
+    }catch(IOException e){
+      try{
+        sock.close();
+      }catch(IOException e1){}
+      return null;
+    }
+    conn.setProtocol(Frame.PROTOCOL_BINARY);
+    conn.setTimeout(LINK_TIMEOUT);
+    byte[] bytes = new byte[NONCE_SIZE];
+    random.nextBytes(bytes);
+    String nonce = hex(bytes);
+    conn.send(fields(LINK, name, nonce));
+    Frame hello = conn.receiveFrame();
+    String[] id = (hello == null || hello.getType() != LINK) ? null : hello.getFields();
+    if (id == null || id.length != 2 || id[0].equals(name) || id[1].equals(nonce)){
+      conn.close();
+      return null;
+    }
+    byte[] proof = proof(name, id[1], nonce);
+    if (outgoing)
+      conn.send(new Frame(PROOF, (byte)0, proof));
+    Frame answer = conn.receiveFrame();
+    if (answer == null || answer.getType() != PROOF || !(MessageDigest.isEqual(proof(id[0], nonce, id[1]), answer.getPayload()))){
+      conn.close();
+      return null;
+    }
+    if (!(outgoing))
+      conn.send(new Frame(PROOF, (byte)0, proof));
+    conn.setTimeout(0);
+    conn.startOutboundQueue(LINK_QUEUE, OutboundQueue.Policy.DISCONNECT, ExecutionMode.PLATFORM);
+    Link link = new Link(conn, id[0], outgoing);
+    if (!(register(link))){
+      conn.close();
+      return link.peer;
+    }
+    Frame frame;
+    while ((frame = conn.receiveFrame()) != null && running)
+      receive(link, frame);
+    conn.close();
+    links.remove(link);
+    if (link.members.size() != 0)
+      server.remoteMembersChanged();
+    return link.peer;
+  }
+
+  /**
+  * Add a link, unless a link to the same node takes precedence, and send it every member of this node.
+  * Synchronized with membership changes, so none is missed or sent out of order.
+  * @return {@code false} if the link is not needed.
+  */
+  private synchronized boolean register(Link link){
+
+    for (Link l : links){
+      if (!(l.peer.equals(link.peer)))
+        continue;
+      if (!(link.preferredTo(l)))
+        return false;
+      links.remove(l);
+      l.conn.close();
+    }
+    links.add(link);
+    for (ChannelState ch : server.getChannels()){
+      for (Client c : ch.members())
+        link.conn.send(fields(JOIN, ch.getName(), c.getUsername()));
+    }
+    return true;
+  }
+
+  /**
+  * Handle a frame received from a linked node.
+  */
+  private void receive(Link link, Frame frame){
+
+    switch (frame.getType()){
+      case JOIN:
+      case LEAVE:
+        String[] f = frame.getFields();
+        if (f.length != 2)
+          return;
+        Set<String> users = link.members.get(f[0]);
+        if (frame.getType() == JOIN){
+          if (users == null){
+            users = ConcurrentHashMap.newKeySet();
+            link.members.put(f[0], users); // Only this thread changes the members of the link.
+          }
+          users.add(f[1]);
+        }else if (users != null && users.remove(f[1]) && users.isEmpty()){
+          link.members.remove(f[0]);
+        }
+        server.remoteMembersChanged();
+        break;
+      case FORWARD:
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.getPayload()));
+        try{
+          String channel = in.readUTF();
+          byte type = in.readByte();
+          byte[] payload = new byte[in.available()];
+          in.readFully(payload);
+          server.deliverRemote(channel, new Frame(type, (byte)0, payload));
+        }catch(IOException e){}
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+  * Tell the linked nodes that a user of this node joined a channel.
+  * @param channel Name of the channel.
+  * @param username The user.
+  */
+  synchronized void joined(String channel, String username){
+
+    if (!(running))
+      return;
+    Frame frame = fields(JOIN, channel, username);
+    for (Link l : links)
+      l.conn.send(frame);
+  }
+
+  /**
+  * Tell the linked nodes that a user of this node left a channel.
+  * @param channel Name of the channel.
+  * @param username The user.
+  */
+  synchronized void left(String channel, String username){
+
+    if (!(running))
+      return;
+    Frame frame = fields(LEAVE, channel, username);
+    for (Link l : links)
+      l.conn.send(frame);
+  }
+
+  /**
+  * Forward a message of a channel to every linked node with members in it. The frame is encoded once, and
+  * the same bytes are sent to all of them.
+  * @param channel Name of the channel.
+  * @param msg The message, as sent to the channel's users.
+  */
+  void forward(String channel, Frame msg){
+
+    Frame frame = null;
+    for (Link l : links){
+      if (!(l.members.containsKey(channel)))
+        continue;
+      if (frame == null){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(msg.getPayload().length + channel.length() + 3);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try{
+          out.writeUTF(channel);
+          out.writeByte(msg.getType());
+          out.write(msg.getPayload());
+        }catch(IOException e){
+          return;
+        }
+        frame = new Frame(FORWARD, (byte)0, bytes.toByteArray());
+      }
+      l.conn.send(frame);
+    }
+  }
+
+  /**
+  * Check if a linked node has a user of the given name in a channel.
+  * @param channel Name of the channel.
+  * @param username The username.
+  * @return {@code true} if one has.
+  */
+  boolean hasUser(String channel, String username){
+
+    for (Link l : links){
+      Set<String> users = l.members.get(channel);
+      if (users != null && users.contains(username))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+  * Format the users of a channel on the linked nodes, to follow the channel's own in its user list.
+  * @param channel Name of the channel.
+  * @param count Number of users already listed.
+  * @return The lines of the list, empty if none.
+  */
+  String formatUsers(String channel, int count){
+
+    StringBuilder sb = new StringBuilder();
+    for (Link l : links){
+      Set<String> users = l.members.get(channel);
+      if (users == null)
+        continue;
+      for (String u : users)
+        sb.append(String.format("  %03d   -   %-16s  (on %s)\n", ++count, u, l.peer));
+    }
+    return sb.toString();
+  }
+
+  /**
+  * Return the number of users a channel has on the linked nodes.
+  * @param channel Name of the channel.
+  * @return User count.
+  */
+  int countUsers(String channel){
+
+    int count = 0;
+    for (Link l : links){
+      Set<String> users = l.members.get(channel);
+      if (users != null)
+        count += users.size();
+    }
+    return count;
+  }
+
+  /**
+  * Return the proof a node gives of knowing the secret, for the nonces of a new link.
+  * @param node Name of the node giving the proof.
+  * @param sent The nonce it was sent.
+  * @param own The nonce it sent.
+  */
+  private byte[] proof(String node, String sent, String own){
+
+    try{
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(secret);
+      return mac.doFinal(fields(PROOF, node, sent, own).getPayload());
+    }catch(GeneralSecurityException e){
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+  * Return bytes as a hex string.
+  */
+  private static String hex(byte[] bytes){
+
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes)
+      sb.append(String.format("%02x", b));
+    return sb.toString();
+  }
+
+  /**
+  * Create a frame of string fields.
+  */
+  private static Frame fields(byte type, String... values){
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try{
+      for (String v : values)
+        out.writeUTF(v);
+    }catch(IOException e){
+      throw new IllegalArgumentException("field too long!");
+    }
+    return new Frame(type, (byte)0, bytes.toByteArray());
+  }
+}
@@ -0,0 +1,362 @@
+package com.umarabdul.jschat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+
+/**
+* A single message of the JSChat protocol.
+*
+* Two wire formats are supported. The legacy format (version 0) is a {@code writeUTF()} string per message,
+* with control messages identified by sentinel strings such as {@code [quit]}. The binary format (version 1)
+* is a 6 byte header followed by the payload:
+*
+* <pre>
+*   +--------+---------+------------------+------------------+
+*   | type   | flags   | length (int32)   | payload          |
+*   | 1 byte | 1 byte  | 4 bytes          | length bytes     |
+*   +--------+---------+------------------+------------------+
+* </pre>
+*
+* Every connection starts in the legacy format. A client that supports the binary format sends
+* {@code [hello]<<>>version} as its first message; a server that supports it replies the same way with the
+* version to use, and both sides switch. Older servers reject the hello, and the client reconnects in the
+* legacy format.
+*
+* Version 2 is the binary format with compressed payloads, marked by the frame flags (see
+* {@code Compression}). A client offers it only if it wants compression, and a server with compression
+* disabled answers with version 1; either side can still talk to one that only knows version 1.
+*
+* Frames are immutable. A frame broadcast to a channel is encoded once per protocol version, and the same
+* bytes are written to every recipient.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class Frame{
+
+  // Protocol versions.
+  public static final int PROTOCOL_LEGACY = 0;
+  public static final int PROTOCOL_BINARY = 1;
+  public static final int PROTOCOL_DEFLATE = 2; // Binary, with compression.
+  public static final int PROTOCOL_VERSION = PROTOCOL_DEFLATE; // Highest version supported.
+  public static final String HELLO = "[hello]<<>>"; // Prefix of the version negotiation message.
+  public static final int HEADER_SIZE = 6;
+  public static final int MAX_PAYLOAD = 1024 * 1024; // Largest payload accepted, in bytes.
+
+  // Frame types.
+  public static final byte NONE = 0; // No data, used for read timeouts. Never sent.
+  public static final byte AUTH = 1; // Client login: username, channel, and password fields.
+  public static final byte AUTH_OK = 2; // Login accepted.
+  public static final byte AUTH_FAIL = 3; // Login rejected, with the reason as text.
+  public static final byte CHAT = 4; // A chat message, as typed by a client or as broadcast by the server.
+  public static final byte NOTICE = 5; // A server notification.
+  public static final byte USERS = 6; // Request for the channel's user list (empty), or the list itself.
+  public static final byte QUIT = 7; // Client is leaving.
+  public static final byte PAUSE = 8; // Client asks for messages to be held until it resumes. Binary protocol only.
+  public static final byte RESUME = 9; // Client asks for the held messages, and for messages to flow again.
+  public static final byte PING = 10; // Asks the peer to answer with a PONG, to show it's still there. Binary protocol only.
+  public static final byte PONG = 11; // Answer to a PING.
+
+  // Frame flags.
+  public static final byte FLAG_DEFLATE = 0x01; // Payload compressed on its own, with the shared dictionary.
+  public static final byte FLAG_DEFLATE_STREAM = 0x02; // Payload is the next part of the connection's compressed stream.
+
+  /**
+  * Returned by reads that timed out.
+  */
+  public static final Frame EMPTY = new Frame(NONE, (byte)0, new byte[0]);
+
+  /**
+  * Heartbeat frames, shared by every connection.
+  */
+  public static final Frame PING_FRAME = new Frame(PING, (byte)0, new byte[0]);
+  public static final Frame PONG_FRAME = new Frame(PONG, (byte)0, new byte[0]);
+
+  private final byte type;
+  private final byte flags;
+  private final byte[] payload;
+  // Encoded forms, created on first use and shared by every recipient of the frame.
+  private volatile byte[] legacyBytes = null;
+  private volatile byte[] binaryBytes = null;
+  private volatile byte[] deflatedBytes = null; // Compressed if worth it, else the same as binaryBytes.
+
+  /**
+  * Class constructor.
+  * @param type Frame type.
+  * @param flags Frame flags.
+  * @param payload Raw payload.
+  */
+  public Frame(byte type, byte flags, byte[] payload){
+
+    this.type = type;
+    this.flags = flags;
+    this.payload = payload;
+  }
+
+  /**
+  * Create a frame carrying the given text.
+  * @param type Frame type.
+  * @param text Text to send, encoded as UTF-8.
+  * @return The frame.
+  */
+  public static Frame text(byte type, String text){
+    return new Frame(type, (byte)0, text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+  * Create the chat line broadcast for a message, from its bytes as received: the sender's prefix, then the
+  * message with the whitespace and control characters around it trimmed, as {@code String.trim()} would. The
+  * bytes of multi-byte UTF-8 characters are all above those trimmed, so the text needn't be decoded. A message
+  * of whitespace alone leaves the prefix on its own.
+  * @param prefix Encoded prefix of the sender's lines, see {@code Client.getPrefix()}.
+  * @param text Encoded message.
+  * @return The frame.
+  */
+  public static Frame line(byte[] prefix, byte[] text){
+
+    int start = 0;
+    int end = text.length;
+    while (start < end && (text[start] & 0xff) <= ' ')
+      start++;
+    while (end > start && (text[end - 1] & 0xff) <= ' ')
+      end--;
+    byte[] payload = new byte[prefix.length + end - start];
+    System.arraycopy(prefix, 0, payload, 0, prefix.length);
+    System.arraycopy(text, start, payload, prefix.length, end - start);
+    return new Frame(CHAT, (byte)0, payload);
+  }
+
+  /**
+  * Create a login frame.
+  * @param username Username to login with.
+  * @param channel Channel to join.
+  * @param password Channel password.
+  * @return The frame.
+  */
+  public static Frame auth(String username, String channel, String password){
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try{
+      out.writeUTF(username);
+      out.writeUTF(channel);
+      out.writeUTF(password);
+    }catch(IOException e){
+      throw new IllegalArgumentException("login field too long!");
+    }
+    return new Frame(AUTH, (byte)0, bytes.toByteArray());
+  }
+
+  /**
+  * Map a message received in the legacy format to a frame.
+  * @param text The message.
+  * @return A {@code QUIT} or {@code USERS} frame for the matching sentinels, a {@code CHAT} frame otherwise.
+  */
+  public static Frame fromLegacy(String text){
+
+    if (text.equals("[quit]"))
+      return new Frame(QUIT, (byte)0, new byte[0]);
+    if (text.equals("[users]"))
+      return new Frame(USERS, (byte)0, new byte[0]);
+    return text(CHAT, text);
+  }
+
+  /**
+  * Return the legacy format representation of this frame.
+  * @return The string to send with {@code writeUTF()}.
+  */
+  public String toLegacy(){
+
+    switch (type){
+      case QUIT:
+        return "[quit]";
+      case AUTH_OK:
+        return "[+]";
+      case USERS:
+        return (payload.length == 0) ? "[users]" : getText();
+      case AUTH:
+        return String.join("<<>>", getFields());
+      default:
+        return getText();
+    }
+  }
+
+  /**
+  * Return the frame type.
+  * @return One of the frame type constants.
+  */
+  public byte getType(){
+    return type;
+  }
+
+  /**
+  * Return the frame flags.
+  * @return Flags byte.
+  */
+  public byte getFlags(){
+    return flags;
+  }
+
+  /**
+  * Return the raw payload.
+  * @return Payload bytes.
+  */
+  public byte[] getPayload(){
+    return payload;
+  }
+
+  /**
+  * Decode the payload as text.
+  * @return The payload as a string.
+  */
+  public String getText(){
+    return new String(payload, StandardCharsets.UTF_8);
+  }
+
+  /**
+  * Decode the fields of an {@code AUTH} frame.
+  * @return Array of fields, empty if the payload is malformed.
+  */
+  public String[] getFields(){
+
+    ArrayList<String> fields = new ArrayList<String>();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    try{
+      while (in.available() > 0)
+        fields.add(in.readUTF());
+    }catch(IOException e){
+      return new String[0];
+    }
+    return fields.toArray(new String[0]);
+  }
+
+  /**
+  * Write this frame to a stream.
+  * @param out Stream to write to.
+  * @param protocol Protocol version of the connection.
+  * @throws IOException on write failure.
+  */
+  public void write(DataOutputStream out, int protocol) throws IOException{
+    out.write(toBytes(protocol));
+  }
+
+  /**
+  * Return the encoded form of this frame. The array is shared, and must not be modified.
+  * @param protocol Protocol version of the connection.
+  * @return The encoded frame.
+  * @throws IOException if the frame can't be encoded, such as a legacy message over 64 KB.
+  */
+  public byte[] toBytes(int protocol) throws IOException{
+
+    byte[] bytes;
+    if (protocol == PROTOCOL_LEGACY){
+      if ((bytes = legacyBytes) == null){
+        String text = toLegacy();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() + 2);
+        new DataOutputStream(out).writeUTF(text);
+        legacyBytes = bytes = out.toByteArray();
+      }
+      return bytes;
+    }
+    if (protocol >= PROTOCOL_DEFLATE){
+      if ((bytes = deflatedBytes) == null){
+        byte[] compressed = (type == USERS || flags != 0) ? null : Compression.deflate(payload); // User lists are compressed per connection.
+        bytes = (compressed == null) ? toBytes(PROTOCOL_BINARY) : new Frame(type, FLAG_DEFLATE, compressed).toBytes(PROTOCOL_BINARY);
+        deflatedBytes = bytes;
+      }
+      return bytes;
+    }
+    if ((bytes = binaryBytes) == null){
+      bytes = new byte[payload.length + HEADER_SIZE];
+      ByteBuffer.wrap(bytes).put(type).put(flags).putInt(payload.length).put(payload);
+      binaryBytes = bytes;
+    }
+    return bytes;
+  }
+
+  /**
+  * Return the size of this frame on the wire, for metrics. Exact for the binary format, and for the
+  * compressed one once encoded; for the legacy format, exact unless the text contains characters that
+  * {@code writeUTF()} encodes differently from UTF-8.
+  * @param protocol Protocol version of the connection.
+  * @return Size in bytes.
+  */
+  public int encodedSize(int protocol){
+
+    byte[] bytes;
+    if (protocol >= PROTOCOL_DEFLATE && (bytes = deflatedBytes) != null)
+      return bytes.length;
+    return payload.length + ((protocol == PROTOCOL_LEGACY) ? 2 : HEADER_SIZE);
+  }
+
+  /**
+  * Read the rest of a binary frame whose type byte has already been read.
+  * @param type The frame type.
+  * @param in Stream to read from.
+  * @return The frame.
+  * @throws IOException on read failure or invalid length.
+  */
+  public static Frame readBody(byte type, DataInputStream in) throws IOException{
+
+    byte flags = in.readByte();
+    int len = in.readInt();
+    if (len < 0 || len > MAX_PAYLOAD)
+      throw new IOException("invalid frame length: " + len);
+    byte[] payload = new byte[len];
+    in.readFully(payload);
+    return new Frame(type, flags, payload);
+  }
+
+  /**
+  * Decode a frame from a buffer, if it contains a complete one.
+  * @param buf Buffer in read mode. Its position is moved past the frame if one is decoded.
+  * @param protocol Protocol version of the connection.
+  * @return The frame, {@code null} if more data is needed.
+  * @throws IOException on malformed input.
+  */
+  public static Frame decode(ByteBuffer buf, int protocol) throws IOException{
+
+    int start = buf.position();
+    if (protocol == PROTOCOL_LEGACY){
+      if (buf.remaining() < 2)
+        return null;
+      int len = buf.getShort(start) & 0xffff;
+      if (buf.remaining() < len + 2)
+        return null;
+      byte[] data = new byte[len + 2];
+      buf.get(data);
+      return fromLegacy(new DataInputStream(new ByteArrayInputStream(data)).readUTF());
+    }
+    if (buf.remaining() < HEADER_SIZE)
+      return null;
+    int len = buf.getInt(start + 2);
+    if (len < 0 || len > MAX_PAYLOAD)
+      throw new IOException("invalid frame length: " + len);
+    if (buf.remaining() < len + HEADER_SIZE)
+      return null;
+    byte type = buf.get();
+    byte flags = buf.get();
+    buf.getInt();
+    byte[] payload = new byte[len];
+    buf.get(payload);
+    return new Frame(type, flags, payload);
+  }
+
+  /**
+  * Return the number of bytes needed to hold the frame at the buffer's position, once its length is known.
+  * @param buf Buffer in read mode.
+  * @param protocol Protocol version of the connection.
+  * @return Size of the frame in bytes, {@code -1} if the header is not yet complete.
+  */
+  public static int frameSize(ByteBuffer buf, int protocol){
+
+    if (protocol == PROTOCOL_LEGACY)
+      return (buf.remaining() < 2) ? -1 : (buf.getShort(buf.position()) & 0xffff) + 2;
+    return (buf.remaining() < HEADER_SIZE) ? -1 : buf.getInt(buf.position() + 2) + HEADER_SIZE;
+  }
+}
@@ -0,0 +1,252 @@
+package com.umarabdul.jschat;
+
+import java.net.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+* Accepts connections for the threaded engine, and takes them through the protocol offer to the login on a
+* single selector, without a thread each. Only once a connection's login has arrived is it switched to blocking
+* mode and handed to a thread of its own, so connections that are slow to log in, or never do, cost no thread.
+*
+* The connections yet to log in are kept, limited and timed out by the server's {@code Admission}, the same as
+* with the NIO engine. The stage's {@code TimerWheel} holds their deadlines, and once they're handed off, the
+* heartbeats that find clients gone without closing their connections, which are then closed so their threads
+* drop them from their channels.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class HandshakeStage{
+
+  private ChatServer server;
+  private Admission admission;
+  private Selector selector;
+  private SelectionKey acceptKey;
+  private ArrayList<NioClient> loggedIn; // Connections whose login arrived during this pass, with it in logins.
+  private ArrayList<Frame> logins;
+  private TimerWheel timers; // Deadlines of connections, used by the stage's thread alone.
+  private ConcurrentLinkedQueue<Client> finished; // Clients whose threads are done, for their heartbeats to be cancelled.
+
+  /**
+  * Class constructor.
+  * @param server The server to hand logged in connections to, with the limits to apply.
+  */
+  public HandshakeStage(ChatServer server){
+
+    this.server = server;
+    admission = server.getAdmission();
+    loggedIn = new ArrayList<NioClient>();
+    logins = new ArrayList<Frame>();
+    timers = new TimerWheel();
+    finished = new ConcurrentLinkedQueue<Client>();
+  }
+
+  /**
+  * Bind to the given address and accept connections until the server is stopped. Broadcasts added by other
+  * threads, such as for blocked users, are sent every {@code NioChannelEngine.SELECT_TIMEOUT}.
+  * @param host Host to bind to.
+  * @param port Port to bind to.
+  * @return A message describing why the server stopped, {@code null} if stopped by the user.
+  */
+  public String serve(String host, int port){
+
+    ServerSocketChannel listener = null;
+    try{
+      selector = Selector.open();
+      listener = ServerSocketChannel.open();
+      listener.bind(new InetSocketAddress(InetAddress.getByName(host), port), server.getAcceptBacklog());
+      listener.configureBlocking(false);
+      acceptKey = listener.register(selector, SelectionKey.OP_ACCEPT);
+    }catch(Exception e){
+      closeQuietly(listener);
+      closeQuietly(selector);
+      return "Error starting server!";
+    }
+    server.serverStarted(listener.socket().getLocalPort());
+    String quitMsg = null;
+    long lastFlush = System.currentTimeMillis();
+    while (server.isActive()){
+      try{
+        selector.select(NioChannelEngine.SELECT_TIMEOUT);
+      }catch(IOException e){
+        e.printStackTrace();
+        quitMsg = "Server error!";
+        server.stop();
+        break;
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()){
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!(key.isValid()))
+          continue;
+        if (key.isAcceptable())
+          accept(listener);
+        else
+          read((NioClient)key.attachment());
+      }
+      handOff();
+      Client done;
+      while ((done = finished.poll()) != null)
+        done.getHeartbeat().cancel();
+      long now = System.currentTimeMillis();
+      timers.advance(now);
+      if (acceptKey.interestOps() == 0 && admission.canAccept(now))
+        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+      if (now - lastFlush >= NioChannelEngine.SELECT_TIMEOUT){
+        lastFlush = now;
+        server.flushAllBroadcasts();
+      }
+    }
+    admission.closeAll();
+    closeQuietly(listener);
+    closeQuietly(selector);
+    return quitMsg;
+  }
+
+  /**
+  * Accept pending connections as long as the admission allows, closing those over their address's rate, and
+  * register the rest for reading. Once it doesn't, stop accepting until it does.
+  * @param listener The listening channel.
+  */
+  private void accept(ServerSocketChannel listener){
+
+    SocketChannel sc;
+    long now = System.currentTimeMillis();
+    try{
+      while (admission.canAccept(now) && (sc = listener.accept()) != null){
+        if (!(admission.allow(sc.socket())))
+          continue;
+        server.getMetrics().accepted();
+        NioClient client = new NioClient(sc, null);
+        admission.add(client, timers);
+        try{
+          sc.configureBlocking(false);
+          client.setKey(sc.register(selector, SelectionKey.OP_READ, client));
+        }catch(IOException e){
+          drop(client);
+        }
+      }
+    }catch(IOException e){
+      e.printStackTrace();
+    }
+    if (!(admission.canAccept(now)))
+      acceptKey.interestOps(0);
+  }
+
+  /**
+  * Read the protocol offer, if any, and the login, after which the connection is handed off at the end of the pass.
+  * @param client The client to read from.
+  */
+  private void read(NioClient client){
+
+    if (!(client.read())){
+      drop(client);
+      return;
+    }
+    Frame frame;
+    while (client.getKey().isValid()){
+      try{
+        if ((frame = client.nextFrame()) == null)
+          return;
+      }catch(IOException e){
+        drop(client);
+        return;
+      }
+      if (client.answerHello(frame, server.getMaxProtocol()))
+        continue;
+      admission.remove(client);
+      client.getKey().cancel();
+      loggedIn.add(client);
+      logins.add(frame);
+      return;
+    }
+  }
+
+  /**
+  * Switch the connections whose login arrived to blocking mode, and hand each to a thread of its own to be
+  * logged in and read, with its heartbeat scheduled. Their keys were cancelled, and are dropped from the
+  * selector first.
+  */
+  private void handOff(){
+
+    if (loggedIn.size() == 0)
+      return;
+    try{
+      selector.selectNow();
+    }catch(IOException e){}
+    for (int i = 0; i < loggedIn.size(); i++){
+      NioClient client = loggedIn.get(i);
+      Client blocking;
+      try{
+        blocking = client.toBlocking();
+      }catch(IOException e){
+        client.close();
+        continue;
+      }
+      watch(blocking);
+      server.handOff(this, blocking, logins.get(i));
+    }
+    loggedIn.clear();
+    logins.clear();
+  }
+
+  /**
+  * Check on a client every so often, closing it if it has gone away without closing its connection. See
+  * {@code ChatServer.heartbeat()}.
+  * @param client The client, handed off.
+  */
+  private void watch(Client client){
+
+    if (server.getPingInterval() == 0)
+      return;
+    client.setHeartbeat(timers.schedule(new Runnable(){
+      @Override
+      public void run(){
+        if (client.getSocket().isClosed())
+          return;
+        long next = server.heartbeat(client, System.currentTimeMillis());
+        if (next < 0)
+          client.close(); // Its thread then drops it from its channel.
+        else
+          timers.schedule(client.getHeartbeat(), next);
+      }
+    }, server.getPingInterval()));
+  }
+
+  /**
+  * Note that the thread a client was handed to is done with it, for its heartbeat to be cancelled. Called
+  * by that thread.
+  * @param client The client.
+  */
+  void finished(Client client){
+
+    if (client.getHeartbeat() != null)
+      finished.add(client);
+  }
+
+  /**
+  * Close a connection that failed before logging in.
+  * @param client The failed client.
+  */
+  private void drop(NioClient client){
+
+    admission.remove(client);
+    client.close();
+  }
+
+  private static void closeQuietly(Closeable obj){
+
+    try{
+      if (obj != null)
+        obj.close();
+    }catch(IOException e){}
+  }
+}
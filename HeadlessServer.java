@@ -0,0 +1,331 @@
+package com.umarabdul.jschat;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import javax.management.JMException;
+
+
+/**
+* Runs the JSChat server from the command line, without the admin panel. Nothing from AWT or Swing is
+* loaded, so it starts quickly and works on machines without a display. Settings come from the same
+* configuration files saved by the admin panel, and from command line options, applied in the order given.
+*
+* Usage: java -cp jschat.jar com.umarabdul.jschat.HeadlessServer [options]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class HeadlessServer implements ChatServer.Listener{
+
+  private static final String USAGE = String.join("\n",
+    "Usage: java -cp jschat.jar com.umarabdul.jschat.HeadlessServer [options]",
+    "  -c, --config <file>          Load host, port, channels and blocked users from a config file",
+    "  -h, --host <host>            Host to bind to (default: localhost)",
+    "  -p, --port <port>            Port to bind to, 0 for any (default: 4444)",
+    "  --channel <name[:password]>  Add a channel; may be repeated",
+    "  --block <username>           Block a username; may be repeated",
+    "  --engine <threads|nio>       Server engine (default: threads)",
+    "  --threads <platform|virtual> Thread type of the threaded engine (default: platform)",
+    "  --workers <n>                Event loops of the nio engine (default: one per CPU)",
+    "  --queue <size>               Outgoing messages queued per client (default: " + ChatServer.DEFAULT_QUEUE_CAPACITY + ")",
+    "  --overflow <policy>          drop_oldest, drop_newest or disconnect (default: drop_oldest)",
+    "  --compression <on|off>       Let clients negotiate compressed frames (default: on)",
+    "  --tls <keystore>             Encrypt connections with the key in a PKCS12 or JKS keystore (nio engine only)",
+    "  --tls-password <password>    Password of the keystore (default: $JSCHAT_TLS_PASSWORD)",
+    "  --pause-backlog <n>          Messages held for a client that paused (default: " + ChatServer.DEFAULT_PAUSE_BACKLOG + ")",
+    "  --backlog <n>                Connections queued by the OS until accepted (default: " + ChatServer.DEFAULT_ACCEPT_BACKLOG + ")",
+    "  --max-handshakes <n>         Connections yet to log in, past which the oldest make room (default: " + ChatServer.DEFAULT_MAX_HANDSHAKES + ")",
+    "  --connect-rate <n[:burst]>   New connections per second from an address, 0 for no limit (default: "
+      + (int)ChatServer.DEFAULT_CONNECT_RATE + ":" + ChatServer.DEFAULT_CONNECT_BURST + ")",
+    "  --user-rate <n[:burst]>      Chat messages per second from a user, 0 for no limit (default: 0:"
+      + ChatServer.DEFAULT_USER_BURST + ")",
+    "  --channel-rate <n[:burst]>   Chat messages per second in a channel, 0 for no limit (default: 0:"
+      + ChatServer.DEFAULT_CHANNEL_BURST + ")",
+    "  --ping <s>                   Ping clients quiet for this long, dropping them if they stop answering; 0 for never (default: "
+      + ChatServer.DEFAULT_PING_INTERVAL / 1000 + ")",
+    "  --node <name>                Name of this node, to link its channels with other nodes",
+    "  --link-port <port>           Accept links from other nodes on this port, 0 for any",
+    "  --peer <host:port>           Link to the node accepting links there; may be repeated",
+    "  --link-secret <secret>       Secret shared by the linked nodes, never sent over the links (default: $JSCHAT_LINK_SECRET)",
+    "  --metrics <[host:]port>      Serve metrics at http://host:port/metrics (default host: 127.0.0.1)",
+    "  --jmx                        Publish metrics as JMX MBeans",
+    "  --log-dir <dir>              Keep a persistent message log per channel under this directory",
+    "  --log-segment <MB>           Size at which a channel log starts a new segment (default: " + (ChatServer.DEFAULT_LOG_SEGMENT_SIZE >> 20) + ")",
+    "  --log-retain <MB>            Log size retained per channel, 0 for no limit (default: " + (ChatServer.DEFAULT_LOG_RETENTION_BYTES >> 20) + ")",
+    "  --log-age <hours>            Age of logged messages retained, 0 for no limit (default: " + (ChatServer.DEFAULT_LOG_RETENTION_AGE / 3600000) + ")",
+    "  --recent <n>                 Recent messages kept in memory per channel for joining users, at most --queue (default: 0)",
+    "  --recent-kb <size>           Payload of recent messages kept per channel, in KB (default: " + (ChatServer.DEFAULT_RECENT_BYTES >> 10) + ")",
+    "  --replay <n>                 Logged messages sent to users joining a channel, at most --queue (default: " + ChatServer.DEFAULT_REPLAY_COUNT + ")",
+    "  --help                       Show this message");
+
+  private volatile String stopReason = null;
+
+  public static void main(String args[]){
+
+    ChatServer server = new ChatServer();
+    try{
+      if (!(configure(server, args))){
+        System.out.println(USAGE);
+        return;
+      }
+    }catch(IllegalArgumentException | IOException e){
+      System.err.println("Error: " + e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    String error = server.checkSettings();
+    if (error != null){
+      System.err.println("Error: " + error);
+      System.exit(2);
+    }
+    if (server.getChannelCount() == 0)
+      System.out.println("Warning: no channels configured, all logins will be refused.");
+    HeadlessServer log = new HeadlessServer();
+    server.setListener(log);
+    final Thread serving = Thread.currentThread();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+      @Override
+      public void run(){
+        if (!(server.isActive()))
+          return;
+        server.stop();
+        try{
+          serving.join(2000); // Let connected users be closed cleanly.
+        }catch(InterruptedException e){}
+      }
+    }));
+    server.run();
+    server.getMetrics().stopHttp();
+    if (!("Server stopped!".equals(log.stopReason)))
+      System.exit(1);
+  }
+
+  /**
+  * Apply command line options to a server.
+  * @param server The server to configure.
+  * @param args Command line options.
+  * @return {@code false} if help was requested.
+  * @throws IllegalArgumentException on an invalid option or value.
+  * @throws IOException if a config file can't be read.
+  */
+  public static boolean configure(ChatServer server, String args[]) throws IOException{
+
+    File keystore = null;
+    String tlsPassword = System.getenv("JSCHAT_TLS_PASSWORD");
+    String node = null;
+    int linkPort = -1;
+    ArrayList<String> peers = new ArrayList<String>();
+    String linkSecret = System.getenv("JSCHAT_LINK_SECRET");
+    for (int i = 0; i < args.length; i++){
+      String opt = args[i];
+      if (opt.equals("--help"))
+        return false;
+      if (opt.equals("--jmx")){
+        try{
+          server.getMetrics().enableJmx();
+        }catch(JMException e){
+          throw new IOException("JMX registration failed: " + e.getMessage());
+        }
+        continue;
+      }
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException("missing value for " + opt);
+      String value = args[++i];
+      switch (opt){
+        case "-c":
+        case "--config":
+          server.loadConfig(new File(value));
+          break;
+        case "-h":
+        case "--host":
+          server.setHost(value);
+          break;
+        case "-p":
+        case "--port":
+          server.setPort(parseInt(opt, value));
+          break;
+        case "--channel":
+          int sep = value.indexOf(':');
+          String name = (sep == -1) ? value : value.substring(0, sep);
+          String password = (sep == -1) ? "null" : value.substring(sep + 1);
+          String error = ChatServer.checkChannelName(name);
+          if (error != null)
+            throw new IllegalArgumentException(error);
+          if (!(server.addChannel(name, password)))
+            server.getChannel(name).setPassword(password);
+          break;
+        case "--block":
+          server.blockUser(value);
+          break;
+        case "--engine":
+          if (!(value.equalsIgnoreCase(ChatServer.ENGINE_THREADS) || value.equalsIgnoreCase(ChatServer.ENGINE_NIO)))
+            throw new IllegalArgumentException("unknown engine: " + value);
+          server.setEngine(value);
+          break;
+        case "--threads":
+          server.setExecutionMode(ExecutionMode.valueOf(value.toUpperCase()));
+          break;
+        case "--workers":
+          server.setWorkers(parseInt(opt, value));
+          break;
+        case "--queue":
+          server.setQueueCapacity(parseInt(opt, value));
+          break;
+        case "--overflow":
+          server.setOverflowPolicy(OutboundQueue.Policy.valueOf(value.toUpperCase()));
+          break;
+        case "--compression":
+          if (!(value.equals("on") || value.equals("off")))
+            throw new IllegalArgumentException("invalid value for " + opt + ": " + value);
+          server.setCompression(value.equals("on"));
+          break;
+        case "--tls":
+          keystore = new File(value);
+          break;
+        case "--tls-password":
+          tlsPassword = value;
+          break;
+        case "--node":
+          node = value;
+          break;
+        case "--link-port":
+          linkPort = parseInt(opt, value);
+          break;
+        case "--peer":
+          if (value.lastIndexOf(':') < 1)
+            throw new IllegalArgumentException("invalid value for " + opt + ": " + value);
+          peers.add(value);
+          break;
+        case "--link-secret":
+          linkSecret = value;
+          break;
+        case "--pause-backlog":
+          server.setPauseBacklog(parseInt(opt, value));
+          break;
+        case "--backlog":
+          server.setAcceptBacklog(parseInt(opt, value));
+          break;
+        case "--max-handshakes":
+          server.setMaxHandshakes(parseInt(opt, value));
+          break;
+        case "--user-rate":
+          int userBurst = value.indexOf(':');
+          if (userBurst == -1)
+            server.setUserRate(parseInt(opt, value), server.getUserBurst());
+          else
+            server.setUserRate(parseInt(opt, value.substring(0, userBurst)), parseInt(opt, value.substring(userBurst + 1)));
+          break;
+        case "--channel-rate":
+          int channelBurst = value.indexOf(':');
+          if (channelBurst == -1)
+            server.setChannelRate(parseInt(opt, value), server.getChannelBurst());
+          else
+            server.setChannelRate(parseInt(opt, value.substring(0, channelBurst)), parseInt(opt, value.substring(channelBurst + 1)));
+          break;
+        case "--ping":
+          server.setPingInterval(parseInt(opt, value) * 1000);
+          break;
+        case "--connect-rate":
+          int burst = value.indexOf(':');
+          if (burst == -1)
+            server.setConnectRate(parseInt(opt, value), server.getConnectBurst());
+          else
+            server.setConnectRate(parseInt(opt, value.substring(0, burst)), parseInt(opt, value.substring(burst + 1)));
+          break;
+        case "--metrics":
+          int colon = value.lastIndexOf(':');
+          String metricsHost = (colon == -1) ? "127.0.0.1" : value.substring(0, colon);
+          server.getMetrics().startHttp(new InetSocketAddress(metricsHost, parseInt(opt, value.substring(colon + 1))));
+          InetSocketAddress addr = server.getMetrics().getHttpAddress();
+          System.out.printf("Metrics at http://%s:%d/metrics%n", addr.getHostString(), addr.getPort());
+          break;
+        case "--log-dir":
+          server.setLogDirectory(new File(value));
+          break;
+        case "--log-segment":
+          server.setLogSegmentSize(parseInt(opt, value) * 1024L * 1024);
+          break;
+        case "--log-retain":
+          server.setLogRetention(parseInt(opt, value) * 1024L * 1024, server.getLogRetentionAge());
+          break;
+        case "--log-age":
+          server.setLogRetention(server.getLogRetentionBytes(), parseInt(opt, value) * 3600000L);
+          break;
+        case "--recent":
+          server.setRecentMessages(parseInt(opt, value), server.getRecentBytes());
+          break;
+        case "--recent-kb":
+          server.setRecentMessages(server.getRecentCount(), parseInt(opt, value) * 1024L);
+          break;
+        case "--replay":
+          server.setReplayCount(parseInt(opt, value));
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option: " + opt);
+      }
+    }
+    if (keystore != null){ // Loaded last, since the password may come after it.
+      if (tlsPassword == null)
+        throw new IllegalArgumentException("keystore password required, with --tls-password or $JSCHAT_TLS_PASSWORD");
+      server.setTls(TlsChannel.createContext(keystore, tlsPassword.toCharArray()));
+    }
+    if (linkPort != -1 || peers.size() != 0){
+      if (node == null)
+        throw new IllegalArgumentException("--node required to link with other nodes");
+      if (linkSecret == null || linkSecret.length() == 0)
+        throw new IllegalArgumentException("link secret required, with --link-secret or $JSCHAT_LINK_SECRET");
+      Federation fed = new Federation(server, node, linkSecret);
+      if (linkPort != -1)
+        fed.listen(server.getHost(), linkPort);
+      for (String peer : peers){
+        int colon = peer.lastIndexOf(':');
+        fed.addPeer(peer.substring(0, colon), parseInt("--peer", peer.substring(colon + 1)));
+      }
+      server.setFederation(fed);
+    }
+    return true;
+  }
+
+  private static int parseInt(String opt, String value){
+
+    try{
+      return Integer.parseInt(value);
+    }catch(NumberFormatException e){
+      throw new IllegalArgumentException("invalid number for " + opt + ": " + value);
+    }
+  }
+
+  /**
+  * Log the address being served, with the time taken to get there since the JVM started and the heap in use.
+  * @param host Host bound to.
+  * @param port Port bound to.
+  */
+  @Override
+  public void serverStarted(String host, int port){
+
+    Runtime rt = Runtime.getRuntime();
+    System.out.printf("Server started on %s:%d in %d ms (heap used: %.1f MB)%n", host, port,
+      ManagementFactory.getRuntimeMXBean().getUptime(), (rt.totalMemory() - rt.freeMemory()) / (1024.0 * 1024));
+  }
+
+  /**
+  * Log why the server stopped.
+  * @param reason Why the server stopped.
+  */
+  @Override
+  public void serverStopped(String reason){
+
+    stopReason = reason;
+    System.out.println(reason);
+  }
+
+  /**
+  * Not logged; joins and leaves are announced in the channels themselves.
+  */
+  @Override
+  public void usersChanged(){}
+}
@@ -0,0 +1,153 @@
+package com.umarabdul.jschat;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+
+/**
+* A latency histogram in the style of HdrHistogram: values are counted in buckets whose width grows with
+* the value, so that every recorded value is kept to within 2% across the whole range, in fixed memory.
+* Values below 128 are counted exactly, and each power of two above that is split into 64 linear
+* sub-buckets. Safe for concurrent recording without locking; the count, sum and maximum are striped
+* ({@code LongAdder}, {@code LongAccumulator}), so threads recording at once only meet on a bucket they
+* share. Used for the server's latency metrics and by the benchmarks.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class Histogram{
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final LongBinaryOperator MAX = new LongBinaryOperator(){
+    @Override
+    public long applyAsLong(long a, long b){
+      return Math.max(a, b);
+    }
+  };
+
+  private final AtomicLongArray counts;
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(MAX, 0);
+  private final long highest;
+
+  /**
+  * Class constructor.
+  * @param highest Highest value to track; larger values are recorded as this.
+  */
+  public Histogram(long highest){
+
+    this.highest = highest;
+    counts = new AtomicLongArray(index(highest) + 1);
+  }
+
+  private static int index(long value){
+
+    if (value < SUB_BUCKETS)
+      return (int)value;
+    int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1; // Shift that brings the value under SUB_BUCKETS * 2.
+    return exp * (SUB_BUCKETS / 2) + (int)(value >>> exp);
+  }
+
+  private static long valueAt(int index){
+
+    if (index < SUB_BUCKETS)
+      return index;
+    int exp = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+    long sub = index - exp * (SUB_BUCKETS / 2);
+    return ((sub + 1) << exp) - 1; // Highest value of the bucket, as HdrHistogram reports.
+  }
+
+  /**
+  * Record a value.
+  * @param value The value, negative values are recorded as {@code 0}.
+  */
+  public void record(long value){
+
+    value = Math.max(0, Math.min(value, highest));
+    counts.incrementAndGet(index(value));
+    total.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+  * Return the number of values recorded.
+  * @return Value count.
+  */
+  public long getCount(){
+    return total.sum();
+  }
+
+  /**
+  * Return the sum of the values recorded.
+  * @return Sum of values.
+  */
+  public long getSum(){
+    return sum.sum();
+  }
+
+  /**
+  * Return the largest value recorded.
+  * @return Maximum value.
+  */
+  public long getMax(){
+    return max.get();
+  }
+
+  /**
+  * Return the mean of the values recorded.
+  * @return Mean, {@code 0} if none.
+  */
+  public double getMean(){
+
+    long n = total.sum();
+    return (n == 0) ? 0 : (double)sum.sum() / n;
+  }
+
+  /**
+  * Return the value at a percentile.
+  * @param percentile Percentile, from 0 to 100.
+  * @return Highest value of the bucket holding the percentile, {@code 0} if empty.
+  */
+  public long getValueAtPercentile(double percentile){
+
+    long n = total.sum();
+    if (n == 0)
+      return 0;
+    long target = Math.max(1, (long)Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++){
+      seen += counts.get(i);
+      if (seen >= target)
+        return Math.min(valueAt(i), max.get());
+    }
+    return max.get();
+  }
+
+  /**
+  * Print the percentile distribution, in the layout of HdrHistogram's {@code outputPercentileDistribution()}.
+  * @param out Stream to print to.
+  * @param unit Divisor applied to values before printing.
+  */
+  public void printDistribution(PrintStream out, double unit){
+
+    out.printf("%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+    long n = total.sum();
+    double[] percentiles = {0, 10, 20, 30, 40, 50, 55, 60, 65, 70, 75, 77.5, 80, 82.5, 85, 87.5, 90, 92.5, 95,
+      96.25, 97.5, 98.75, 99, 99.5, 99.9, 99.99, 99.999, 100};
+    for (double p : percentiles){
+      long seen = (long)Math.ceil(p / 100 * n);
+      String inv = (p == 100) ? "" : String.format("%.2f", 1 / (1 - p / 100));
+      out.printf("%12.3f %14.12f %10d %14s%n", getValueAtPercentile(p) / unit, p / 100, seen, inv);
+    }
+    out.printf("#[Mean    = %12.3f, Max = %12.3f]%n", getMean() / unit, max.get() / unit);
+    out.printf("#[Total count = %d]%n", n);
+  }
+}
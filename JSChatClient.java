@@ -6,6 +6,11 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.time.LocalDateTime;
@@ -29,13 +34,15 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
   private JTextField usernameField;
   private JTextField channelField;
   private JPasswordField channelPasswd;
+  private JCheckBox tlsBox;
   private String host;
   private int port;
   private String username;
   private String channel;
   private JLabel notification;
   private JLabel handlerNotification;
-  private JTextArea messages;
+  private JList<String> messages;
+  private MessageHistory history; // Lines shown in the message view, bounded.
   private JScrollPane msgScroller;
   private JTextField textField;
   private JButton connectBtn;
@@ -45,10 +52,13 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
   private JButton pauseBtn;
   private JButton saveLogsBtn;
   private JButton quitBtn;
-  private boolean active = false;
+  private volatile boolean active = false;
   private Client clientObj;
-  private ArrayList<String> messageQueue;
-  private boolean pause = false;
+  private LinkedBlockingQueue<Frame> messageQueue; // Messages composed by the user, taken by the writer thread.
+  private Thread writerThread;
+  private volatile boolean pause = false;
+  private final Object pauseLock = new Object(); // Waited on by the reader thread while paused.
+  private ExecutionMode executionMode = ExecutionMode.fromProperty();
 
 
   /**
@@ -74,6 +84,7 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
     channelField = new JTextField(15);
     channelPasswd = new JPasswordField(15);
     usernameField = new JTextField(15);
+    tlsBox = new JCheckBox("TLS");
     connectBtn = new JButton("Connect");
     connectBtn.addActionListener(new ConnListener());
     JButton quitBtn = new JButton("Quit");
@@ -84,7 +95,7 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
       }
     });
 
-    GridLayout grid = new GridLayout(5, 2);
+    GridLayout grid = new GridLayout(6, 2);
     grid.setVgap(2);
     grid.setHgap(1);
     JPanel fieldsPanel = new JPanel(grid);
@@ -99,6 +110,8 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
     fieldsPanel.add(channelField);
     fieldsPanel.add(new JLabel("Channel Password:"));
     fieldsPanel.add(channelPasswd);
+    fieldsPanel.add(new JLabel("Encryption:"));
+    fieldsPanel.add(tlsBox);
     
     JPanel buttonsPanel = new JPanel();
     buttonsPanel.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
@@ -153,8 +166,7 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
         return;
       }
       connectBtn.setEnabled(false);
-      Thread t = new Thread(new Connector());
-      t.start();
+      executionMode.start(new Connector());
     }
   }
 
@@ -168,36 +180,45 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
 
       notification.setText("Connecting to server...");
       try{
-        Socket conn = new Socket(host, port);
-        clientObj = new Client(conn);
+        clientObj = new Client(openSocket());
         clientObj.setTimeout(5000);
+        if (!(clientObj.negotiate())){ // Older server, reconnect using the legacy protocol.
+          clientObj.close();
+          clientObj = new Client(openSocket());
+          clientObj.setTimeout(5000);
+        }
         notification.setText("Authenticating...");
         String channelPass = String.valueOf(channelPasswd.getPassword());
         if (channelPass.length() == 0)
           channelPass = "null";
-        clientObj.send(String.format("%s<<>>%s<<>>%s", username, channel, channelPass));
-        String rsp = clientObj.receive();
+        clientObj.send(Frame.auth(username, channel, channelPass));
+        Frame rsp = clientObj.receiveFrame();
         if (rsp == null){
           clientObj.close();
           notification.setText("Connection lost!");
           connectBtn.setEnabled(true);
           return;
         }
-        else if (rsp.length() == 0){
+        else if (rsp.getType() == Frame.NONE){
           clientObj.close();
           notification.setText("Connection timed out!");
           connectBtn.setEnabled(true);
           return;
         }else{
-          if (rsp.equals("[+]")){
+          if (rsp.getType() == Frame.AUTH_OK || rsp.toLegacy().equals("[+]")){
             notification.setText("Connection established!");
             loginFrame.setVisible(false);
           }else{
-            notification.setText(rsp);
+            clientObj.close();
+            notification.setText(rsp.getText());
             connectBtn.setEnabled(true);
             return;
           }
         }
+      }catch(SSLException e){
+        notification.setText("TLS handshake failed!");
+        connectBtn.setEnabled(true);
+        return;
       }catch(Exception e){
         notification.setText("Connection failed!");
         connectBtn.setEnabled(true);
@@ -208,6 +229,26 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
     }
   }
 
+  /**
+  * Connect to the server, over TLS if selected. The default TLS context is used, which trusts the certificates
+  * of the {@code javax.net.ssl.trustStore} property, and keeps sessions to resume on reconnecting.
+  * @return The connected socket.
+  * @throws IOException on failure, including {@code SSLException} if the handshake fails.
+  */
+  private Socket openSocket() throws IOException{
+
+    if (!(tlsBox.isSelected()))
+      return new Socket(host, port);
+    SSLSocket sock = (SSLSocket)SSLSocketFactory.getDefault().createSocket(host, port);
+    try{
+      sock.startHandshake(); // Fail here on an untrusted certificate, rather than on the first read.
+    }catch(IOException e){
+      sock.close();
+      throw e;
+    }
+    return sock;
+  }
+
   /**
   * Provides the UI for interacting with the server after connecting.
   */
@@ -218,14 +259,42 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
     mainPanel.setLayout(new BoxLayout(mainPanel, BoxLayout.Y_AXIS));
     mainPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
-    messages = new JTextArea(20, 50);
-    messages.setLineWrap(true);
-    messages.setWrapStyleWord(true);
-    messages.setEditable(false);
+    history = MessageHistory.fromProperty();
+    messages = new JList<String>(history){
+      private static final long serialVersionUID = 1L;
+      @Override
+      public boolean getScrollableTracksViewportWidth(){ // Lines are wrapped to the view instead.
+        return true;
+      }
+    };
     messages.setFont(new Font("monospaced", Font.PLAIN, 14));
+    messages.setCellRenderer(new MessageHistory.Renderer()); // Wraps lines, only ever rendering the rows in view.
+    messages.setVisibleRowCount(20);
+    messages.addComponentListener(new ComponentAdapter(){
+      private int width = -1;
+      @Override
+      public void componentResized(ComponentEvent e){ // Rows wrap to the new width; measure them again.
+        if (messages.getWidth() == width)
+          return;
+        width = messages.getWidth();
+        messages.setFixedCellHeight(1);
+        messages.setFixedCellHeight(-1);
+      }
+    });
     msgScroller = new JScrollPane(messages);
+    msgScroller.setPreferredSize(new Dimension(560, 380));
     msgScroller.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
     msgScroller.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+    history.setBatchListener(new Runnable(){
+      @Override
+      public void run(){ // Follow new lines, unless scrolled up to read older ones.
+        JScrollBar sbar = msgScroller.getVerticalScrollBar();
+        if (sbar.getValue() + sbar.getVisibleAmount() < sbar.getMaximum())
+          return;
+        msgScroller.validate();
+        messages.ensureIndexIsVisible(history.getSize() - 1);
+      }
+    });
     textField = new JTextField(30);
     sendBtn = new JButton("Send");
     clearBtn = new JButton("Clear logs");
@@ -240,7 +309,7 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
     pauseBtn.addActionListener(this);
     saveLogsBtn.addActionListener(this);
     handlerNotification = new JLabel(" ");
-    messageQueue = new ArrayList<String>();
+    messageQueue = new LinkedBlockingQueue<Frame>();
 
     JPanel inputPanel = new JPanel();
     inputPanel.add(textField);
@@ -265,8 +334,8 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
     setVisible(true);
     textField.requestFocus();
 
-    Thread t = new Thread(this);
-    t.start();
+    writerThread = executionMode.start(new Writer(), true);
+    executionMode.start(this);
   }
 
   /**
@@ -284,34 +353,44 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
         return;
       String msg = textField.getText().trim(); // Obtain text, clean trailing whitespaces.
       if (msg.length() != 0)
-        messageQueue.add(msg);
+        messageQueue.add(Frame.text(Frame.CHAT, msg));
       textField.setText("");
     }else if (src == clearBtn){ // Clear message log.
-      messages.setText("");
+      history.clear();
     }else if (src == quitBtn){ // Close connection and quit the app.
+      messageQueue.add(new Frame(Frame.QUIT, (byte)0, new byte[0]));
+      try{
+        writerThread.join(1000); // Let the writer send what's queued, up to the quit message.
+      }catch(InterruptedException e){}
       active = false;
-      clientObj.send("[quit]");
       clientObj.close();
       System.exit(0);
     }else if (src == showUsersBtn && active){ // Request for user listing.
-      messageQueue.add("[users]");
+      messageQueue.add(new Frame(Frame.USERS, (byte)0, new byte[0]));
     }else if (src == pauseBtn){
       // Pause or resume channel stream for the user. Incoming messages are queued while outgoing ones are discarded.
       if (pauseBtn.getText().equals("Pause")){
-        pause = true;
+        if (clientObj.getProtocol() != Frame.PROTOCOL_LEGACY) // Have the server hold our messages, instead of filling the socket.
+          messageQueue.add(new Frame(Frame.PAUSE, (byte)0, new byte[0]));
+        pause = true; // The reader stops once it's done with the message it's waiting for.
         pauseBtn.setText("Resume");
         sendBtn.setEnabled(false);
         showUsersBtn.setEnabled(false);
         handlerNotification.setText("Channel stream paused!");
       }else{
-        pause = false;
+        synchronized (pauseLock){
+          pause = false;
+          pauseLock.notifyAll();
+        }
+        if (clientObj.getProtocol() != Frame.PROTOCOL_LEGACY)
+          messageQueue.add(new Frame(Frame.RESUME, (byte)0, new byte[0]));
         pauseBtn.setText("Pause");
         sendBtn.setEnabled(true);
         showUsersBtn.setEnabled(true);
         handlerNotification.setText("Channel stream resumed!");
       }
     }else if (src == saveLogsBtn){
-      String log = messages.getText();
+      String log = history.getText();
       if (log.length() == 0){
         handlerNotification.setText("No message to log!");
         return;
@@ -333,47 +412,101 @@ public class JSChatClient extends JFrame implements ActionListener, Runnable{
   }
 
   /**
-  * Handles all incoming and outgoing messages.
+  * Reads incoming messages as they arrive, blocking in between, and adds them to the message view.
   */
   @Override
   public void run(){
 
-    String msg;
-    JScrollBar sbar = msgScroller.getVerticalScrollBar();
-    clientObj.setTimeout(50);
+    Frame frame;
+    clientObj.setTimeout(0); // Block until a message arrives; sending is left to the writer thread.
     LocalDateTime dateObj;
     DateTimeFormatter pattern = DateTimeFormatter.ofPattern("HH:mm:ss");
     while (active){
-      if (pause){
-        try{
-          Thread.sleep(200);
-        }catch(InterruptedException e){}
-        continue;
+      synchronized (pauseLock){
+        while (pause && active){
+          try{
+            pauseLock.wait();
+          }catch(InterruptedException e){
+            return;
+          }
+        }
+      }
+      frame = clientObj.receiveFrame();
+      if (frame == null){
+        connectionLost();
+        return;
       }
-      while (messageQueue.size() > 0 && active){ // Send messages composed by user.
-        msg = messageQueue.remove(0).trim();
-        if (clientObj.send(msg) == false){
-          handlerNotification.setText("Connection lost!");
-          sendBtn.setEnabled(false);
-          active = false;
+      switch (frame.getType()){
+        case Frame.CHAT:
+        case Frame.NOTICE:
+        case Frame.USERS: // Valid message received.
+          dateObj = LocalDateTime.now();
+          history.append(dateObj.format(pattern)+" "+frame.getText());
+          break;
+        case Frame.PING: // The server checking that we're still here.
+          messageQueue.add(Frame.PONG_FRAME);
+          break;
+        default: // Nothing to display.
+          break;
+      }
+    }
+  }
+
+  /**
+  * Sends the messages composed by the user as they are queued, blocking in between. Messages queued together,
+  * such as lines pasted at once, are gathered into a single write the way the server's drainer does.
+  */
+  public class Writer implements Runnable{
+
+    @Override
+    public void run(){
+
+      ArrayList<Frame> batch = new ArrayList<Frame>();
+      while (active){
+        batch.clear();
+        try{
+          Frame frame = messageQueue.take();
+          int size = 0;
+          while (frame != null){
+            batch.add(frame);
+            size += frame.encodedSize(clientObj.getProtocol());
+            if (frame.getType() == Frame.QUIT || size >= Client.MAX_BATCH)
+              break;
+            frame = (size < Client.COALESCE_BYTES) ? messageQueue.poll(Client.COALESCE_WINDOW, TimeUnit.NANOSECONDS) : messageQueue.poll();
+          }
+        }catch(InterruptedException e){
+          return;
+        }
+        if (!((batch.size() == 1) ? clientObj.send(batch.get(0)) : clientObj.sendAll(batch))){
+          connectionLost();
           return;
         }
+        if (batch.get(batch.size() - 1).getType() == Frame.QUIT)
+          return;
       }
-      // Check for incoming messages.
-      msg = clientObj.receive();
-      if (msg == null){
+    }
+  }
+
+  /**
+  * Stop the reader and writer threads after the connection failed, and tell the user.
+  */
+  private void connectionLost(){
+
+    if (!(active))
+      return;
+    active = false;
+    clientObj.close(); // Wakes up the reader, unless paused.
+    writerThread.interrupt();
+    synchronized (pauseLock){
+      pauseLock.notifyAll();
+    }
+    SwingUtilities.invokeLater(new Runnable(){
+      @Override
+      public void run(){
         handlerNotification.setText("Connection lost!");
         sendBtn.setEnabled(false);
-        active = false;
-        return;
       }
-      if (msg.length() != 0){ // Valid message received.
-        dateObj = LocalDateTime.now();
-        messages.append(dateObj.format(pattern)+" "+msg+"\n");
-        sbar.setValue(sbar.getMaximum()); // Scroll to bottom.
-      }
-      // Repeat ;)
-    }
+    });
   }
 
   /**
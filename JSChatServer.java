@@ -1,24 +1,23 @@
 package com.umarabdul.jschat;
 
-import java.net.*;
 import java.io.*;
 import java.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
 
 /**
 * JSChat: A fully functional, multi-threaded chat server with support for multiple users and channels.
+* This is the Swing admin panel; the server itself is {@code ChatServer}, which can also run without a
+* display using {@code HeadlessServer}.
 *
 * @author Umar Abdul
 * @version 1.0
 * @since 2020
 */
 
-public class JSChatServer extends JFrame implements ActionListener, Runnable{
+public class JSChatServer extends JFrame implements ActionListener, ChatServer.Listener{
 
   // Declaration of instance variables.
   private JTextField hostField;
@@ -26,6 +25,8 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
   private JTextField channelAddField;
   private JTextField blockUserField;
   private JTextField unblockUserField;
+  private JTextField userRateField;
+  private JTextField channelRateField;
   private JLabel channelCountLabel;
   private JLabel clientCountLabel;
   private JLabel blockCountLabel;
@@ -37,41 +38,37 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
   private JButton manageChannelsBtn;
   private JButton quitBtn;
   private JButton blockUserBtn;
+  private JButton userRateBtn;
+  private JButton channelRateBtn;
   private JButton saveConfigBtn;
   private JButton loadConfigBtn;
   private JLabel notification;
-  private String host;
-  private int port;
-  private HashMap<String, ArrayList<Client>> channels; // Maps channel names to ArrayList of their clients.
-  private ArrayList<String> blockedUsers;
-  private boolean active = false;
-  private int clientsCount = 0;
-  private ArrayList<String> handledChannels;
-  private HashMap<String, ArrayList<String>> channelBroadcast;
-  private HashMap<String, String> channelPasswords;
-
-  // Constants.
-  public static final int MIN_USERNAME_LENGTH = 3; // minimum number of characters in a username.
-  public static final int MAX_USERNAME_LENGTH = 20; // maximum number of characters in a username.
-  public static final int MIN_CHANNEL_LENGTH = 3; // minimum channel name.
-  public static final int MAX_CHANNEL_LENGTH = 20; // maximum channel name.
-  public static final int MAX_CHANNEL_USERS = 500; // maximum number of users to allow per channel.
-
+  private JComboBox<String> engineCombo;
+  private JComboBox<ExecutionMode> executionCombo;
+  private JComboBox<OutboundQueue.Policy> overflowCombo;
+  private JTextField queueSizeField;
+  private ChatServer server;
 
   /**
   * Default constructor.
   */
   public JSChatServer(){
+    this(new ChatServer());
+  }
+
+  /**
+  * Create an admin panel for the given server.
+  * @param server The server to manage.
+  */
+  public JSChatServer(ChatServer server){
 
     super("Admin Panel - JSChat");
-    channels = new HashMap<String, ArrayList<Client>>();
-    handledChannels = new ArrayList<String>();
-    channelBroadcast = new HashMap<String, ArrayList<String>>();
-    channelPasswords = new HashMap<String, String>();
-    blockedUsers = new ArrayList<String>();
+    this.server = server;
+    server.setListener(this);
     setDefaultCloseOperation(EXIT_ON_CLOSE);
   }
 
+
   /**
   * Sets up and render the server's control panel window.
   * This is the starting point of the application when working in server mode.
@@ -80,11 +77,14 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
   
     hostField = new JTextField(15);
     portField = new JTextField(15);
-    hostField.setText("localhost");
-    portField.setText("4444");
+    hostField.setText(server.getHost());
+    portField.setText(String.valueOf(server.getPort()));
     channelAddField = new JTextField(15);
     blockUserField = new JTextField(15);
     unblockUserField = new JTextField(15);
+    userRateField = new JTextField(15);
+    channelRateField = new JTextField(15);
+    showRates();
     channelCountLabel = new JLabel("0");
     clientCountLabel = new JLabel("0");
     blockCountLabel = new JLabel("0");
@@ -92,6 +92,8 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
     addChannelBtn = new JButton("Add channel");
     blockUserBtn = new JButton("Block user");
     unblockUserBtn = new JButton("Unblock user");
+    userRateBtn = new JButton("Limit users");
+    channelRateBtn = new JButton("Limit channels");
     channelsBtn = new JButton("Show channels");
     manageChannelsBtn = new JButton("Manage channels");
     quitBtn = new JButton("Quit");
@@ -104,17 +106,24 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
     blockUserBtn.addActionListener(this);
     showBlockUserBtn.addActionListener(this);
     unblockUserBtn.addActionListener(this);
+    userRateBtn.addActionListener(this);
+    channelRateBtn.addActionListener(this);
     channelsBtn.addActionListener(this);
     manageChannelsBtn.addActionListener(this);
     saveConfigBtn.addActionListener(this);
     loadConfigBtn.addActionListener(this);
     notification = new JLabel(" ");
+    engineCombo = new JComboBox<String>(new String[]{ChatServer.ENGINE_THREADS, ChatServer.ENGINE_NIO});
+    executionCombo = new JComboBox<ExecutionMode>(ExecutionMode.values());
+    overflowCombo = new JComboBox<OutboundQueue.Policy>(OutboundQueue.Policy.values());
+    queueSizeField = new JTextField(15);
+    queueSizeField.setText(String.valueOf(server.getQueueCapacity()));
 
     JPanel mainPanel = new JPanel();
     mainPanel.setLayout(new BoxLayout(mainPanel, BoxLayout.Y_AXIS));
     mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 10, 10, 10));
 
-    GridLayout grid = new GridLayout(8, 2);
+    GridLayout grid = new GridLayout(14, 2);
     grid.setVgap(2);
     grid.setHgap(4);
     JPanel fieldsPanel = new JPanel(grid);
@@ -122,12 +131,24 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
     fieldsPanel.add(hostField);
     fieldsPanel.add(new JLabel("Server port"));
     fieldsPanel.add(portField);
+    fieldsPanel.add(new JLabel("Server engine:"));
+    fieldsPanel.add(engineCombo);
+    fieldsPanel.add(new JLabel("Thread type:"));
+    fieldsPanel.add(executionCombo);
+    fieldsPanel.add(new JLabel("Client queue size:"));
+    fieldsPanel.add(queueSizeField);
+    fieldsPanel.add(new JLabel("Queue overflow:"));
+    fieldsPanel.add(overflowCombo);
     fieldsPanel.add(addChannelBtn);
     fieldsPanel.add(channelAddField);
     fieldsPanel.add(blockUserBtn);
     fieldsPanel.add(blockUserField);
     fieldsPanel.add(unblockUserBtn);
     fieldsPanel.add(unblockUserField);
+    fieldsPanel.add(userRateBtn);
+    fieldsPanel.add(userRateField);
+    fieldsPanel.add(channelRateBtn);
+    fieldsPanel.add(channelRateField);
     fieldsPanel.add(new JLabel("Active channels:"));
     fieldsPanel.add(channelCountLabel);
     fieldsPanel.add(new JLabel("Active users:"));
@@ -170,31 +191,26 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
     JButton src = (JButton)event.getSource();
     notification.setText(" ");
     if (src == serverBtn){
-      if (serverBtn.getText().equals("Stop") && active == true){ // Stop server and kill connection threads.
-        active = false;
+      if (serverBtn.getText().equals("Stop") && server.isActive()){ // Stop server and kill connection threads.
+        server.stop();
         serverBtn.setEnabled(false);
-      }else if (serverBtn.getText().equals("Start") && active == false){ // Start the server.
-        host = hostField.getText().trim();
-        if (host.length() == 0){
-          notification.setText("Hostname/IP required!");
+      }else if (serverBtn.getText().equals("Start") && !(server.isActive())){ // Start the server.
+        if (!(applySettings()))
           return;
-        }
-        try{
-          port = Integer.parseInt(portField.getText());
-          if (!(port > 0 && port < 65536))
-            throw new NumberFormatException("port out of range!");
-        }catch(NumberFormatException e){
-          notification.setText("Invalid port!");
+        String error = server.checkSettings();
+        if (error != null){
+          notification.setText(error);
           return;
         }
+        serverBtn.setEnabled(false);
+        setSettingsEnabled(false);
         // Dispatch a thread to handle incoming connections.
-        Thread t = new Thread(this);
-        t.start();
+        server.getExecutionMode().start(server);
       }
-      serverBtn.setText((active == true) ? "Stop" : "Start");
+      serverBtn.setText((server.isActive()) ? "Stop" : "Start");
     }else if (src == quitBtn){ // Kill server and exit.
-      if (active){
-        active = false;
+      if (server.isActive()){
+        server.stop();
         try{
           Thread.sleep(1000);
         }catch(InterruptedException e){}
@@ -203,25 +219,16 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
     }else if (src == addChannelBtn){ // Create a new channel.
       channelAddField.requestFocus();
       String name = channelAddField.getText().trim();
-      if (name.length() < MIN_CHANNEL_LENGTH){
-        notification.setText("Channel name too short!");
+      String error = ChatServer.checkChannelName(name);
+      if (error != null){
+        notification.setText(error);
         return;
       }
-      if (!(isAlphaNum(name))){
-        notification.setText("Invalid channel name!");
-        return;
-      }
-      if (name.length() > MAX_CHANNEL_LENGTH){
-        notification.setText("Channel name too long!");
-        return;
-      }
-      if (channels.containsKey(name)){
+      if (!(server.addChannel(name, "null"))){
         notification.setText("Channel already exists!");
         return;
       }
-      channels.put(name, new ArrayList<Client>());
       notification.setText("Channel created!");
-      channelPasswords.put(name, "null");
       channelAddField.setText("");
     }else if (src == blockUserBtn){ // Add a username to block list.
       blockUserField.requestFocus();
@@ -230,11 +237,10 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
         notification.setText("Target username required!");
         return;
       }
-      if (blockedUsers.contains(username)){
+      if (!(server.blockUser(username))){
         notification.setText("User already in block list!");
         return;
       }
-      blockedUsers.add(username);
       notification.setText("User blocked!");
       blockUserField.setText("");
     }else if (src == unblockUserBtn){ // Remove a username from block list.
@@ -244,57 +250,69 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
         notification.setText("Target username required!");
         return;
       }
-      if (!(blockedUsers.contains(username))){
+      if (!(server.unblockUser(username))){
         notification.setText("User not in block list!");
         return;
       }
-      blockedUsers.remove(blockedUsers.indexOf(username));
       notification.setText("User unblocked!");
       unblockUserField.setText("");
+    }else if (src == userRateBtn || src == channelRateBtn){ // Change a message rate limit, in messages per second.
+      JTextField field = (src == userRateBtn) ? userRateField : channelRateField;
+      field.requestFocus();
+      String[] limit = field.getText().trim().split(":");
+      try{
+        double rate = Double.parseDouble(limit[0]);
+        if (src == userRateBtn)
+          server.setUserRate(rate, (limit.length > 1) ? Integer.parseInt(limit[1]) : server.getUserBurst());
+        else
+          server.setChannelRate(rate, (limit.length > 1) ? Integer.parseInt(limit[1]) : server.getChannelBurst());
+        notification.setText((rate == 0) ? "Limit removed!" : "Limit set!");
+      }catch(IllegalArgumentException e){
+        notification.setText("Invalid limit, use rate[:burst]!");
+      }
+      showRates();
     }else if (src == channelsBtn){ // Show available channels.
-      if (channels.size() == 0){
+      if (server.getChannelCount() == 0){
         notification.setText("No channel available!");
         return;
       }
       showChannels();
     }else if (src == manageChannelsBtn){ // Manage available channels.
-      if (channels.size() != 0)
+      if (server.getChannelCount() != 0)
         new ChannelManager();
       else
         notification.setText("No channel available!");
     }else if (src == showBlockUserBtn){ // Create a window listing blocked users.
-      if (blockedUsers.size() == 0){
+      if (server.getBlockedUsers().size() == 0){
         notification.setText("Block list is empty!");
         return;
       }
       // Build table, setup GUI, and render.
-      String rows[][] = new String[blockedUsers.size()][2];
+      String[] names = server.getBlockedUsers().toArray(new String[0]);
+      Arrays.sort(names);
+      String rows[][] = new String[names.length][2];
       String cols[] = {"S/N", "Username"};
-      for (int i = 0; i < blockedUsers.size(); i++){
+      for (int i = 0; i < names.length; i++){
         rows[i][0] = String.valueOf(i+1);
-        rows[i][1] = blockedUsers.get(i);
+        rows[i][1] = names[i];
       }
       createTableWindow("Blocked Users", rows, cols, null);      
     }else if (src == saveConfigBtn){ // Save server configurations.
+      if (!(server.isActive()) && !(applySettings()))
+        return;
       JFileChooser chooser = new JFileChooser();
       chooser.showSaveDialog(this);
       File file = chooser.getSelectedFile();
       if (file == null)
         return;
       try{
-        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-        writer.write(String.format("Host:%s\nPort:%s\n", hostField.getText().trim(), portField.getText().trim()));
-        for (String ch : channels.keySet())
-          writer.write(String.format("Channel:%s<<>>%s\n", ch, channelPasswords.get(ch)));
-        for (String bl : blockedUsers)
-          writer.write(String.format("Blocked:%s\n", bl));
-        writer.close();
+        server.saveConfig(file);
         notification.setText("Configurations saved!");
       }catch(IOException e){
         notification.setText("Error saving configurations!");
       }
     }else if (src == loadConfigBtn){ // Load server configurations.
-      if (active){
+      if (server.isActive()){
         notification.setText("Stop server first!");
         return;
       }
@@ -303,117 +321,119 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
       File file = chooser.getSelectedFile();
       if (file == null)
         return;
-      hostField.setText("");
-      portField.setText("");
       channelAddField.setText("");
       blockUserField.setText("");
       unblockUserField.setText("");
-      channels.clear();
       try{
-        BufferedReader reader = new BufferedReader(new FileReader(file));
-        String line;
-        String data[];
-        while ((line = reader.readLine()) != null){
-          data = line.split(":");
-          if (data[0].equals("Host")){
-            hostField.setText(data[1].trim());
-          }else if (data[0].equals("Port")){
-            portField.setText(data[1].trim());
-          }else if (data[0].equals("Channel")){
-            String[] channelData = data[1].trim().split("<<>>");
-            String cname = channelData[0];
-            String cpass = channelData[1];
-            if (cname.length() >= MIN_CHANNEL_LENGTH && cname.length() <= MAX_CHANNEL_LENGTH && isAlphaNum(cname)){
-              channels.put(cname, new ArrayList<Client>());
-              channelPasswords.put(cname, cpass);
-            }
-          }else if (data[0].equals("Blocked")){
-            blockedUsers.add(data[1].trim());
-          }
-        }
-        reader.close();
+        server.loadConfig(file);
         notification.setText("Configuration loaded!");
       }catch(Exception e){
         e.printStackTrace();
         notification.setText("Error loading configurations!");
       }
+      hostField.setText(server.getHost());
+      portField.setText(String.valueOf(server.getPort()));
+      showRates();
     }
     updateCountLabels();
   }
 
   /**
-  * Test if a given string contains only alphabets (upper and lowercase) and whitespace.
-  * @param str String to test.
-  * @return {@code true} on success.
+  * Show the server's message rate limits in their fields, as {@code rate:burst}.
   */
-  public boolean isAlphaNum(String str){
+  private void showRates(){
+
+    userRateField.setText(String.format("%s:%d", formatRate(server.getUserRate()), server.getUserBurst()));
+    channelRateField.setText(String.format("%s:%d", formatRate(server.getChannelRate()), server.getChannelBurst()));
+  }
 
-    Pattern pattern = Pattern.compile("^[A-Za-z0-9 ]{1,9999}$"); // The regex rule in use.
-    Matcher match = pattern.matcher(str);
-    return match.find();
+  private static String formatRate(double rate){
+    return (rate == (long)rate) ? String.valueOf((long)rate) : String.valueOf(rate);
   }
 
   /**
-  * Update display for the count of active clients, blocked users, and active channels.
+  * Copy the settings entered in the panel to the server.
+  * @return {@code false} if a setting is invalid, after showing the reason.
   */
-  public void updateCountLabels(){
-    
-    blockCountLabel.setText(String.valueOf(blockedUsers.size()));
-    clientsCount = 0;
-    for (String name : channels.keySet())
-      clientsCount += channels.get(name).size();
-    clientCountLabel.setText(String.valueOf(clientsCount));
-    channelCountLabel.setText(String.valueOf(channels.size()));
+  private boolean applySettings(){
+
+    server.setHost(hostField.getText().trim());
+    try{
+      int port = Integer.parseInt(portField.getText().trim());
+      if (port == 0)
+        throw new NumberFormatException("port out of range!");
+      server.setPort(port);
+    }catch(IllegalArgumentException e){
+      notification.setText("Invalid port!");
+      return false;
+    }
+    try{
+      server.setQueueCapacity(Integer.parseInt(queueSizeField.getText().trim()));
+    }catch(IllegalArgumentException e){
+      notification.setText("Invalid queue size!");
+      return false;
+    }
+    server.setOverflowPolicy((OutboundQueue.Policy)overflowCombo.getSelectedItem());
+    server.setEngine((String)engineCombo.getSelectedItem());
+    server.setExecutionMode((ExecutionMode)executionCombo.getSelectedItem());
+    return true;
   }
 
   /**
-  * Delete a channel and disconnect all of it's clients.
-  * @param name Name of channel to delete.
+  * Enable or disable the settings that can't change while the server is running.
+  * @param enabled {@code true} to enable.
   */
-  public void deleteChannel(String name){
+  private void setSettingsEnabled(boolean enabled){
 
-    ArrayList<Client> clients = channels.remove(name);
-    channelPasswords.remove(name);
-    for (Client client : clients){
-      client.close();
-    }
-    handledChannels.remove(name);
+    engineCombo.setEnabled(enabled);
+    executionCombo.setEnabled(enabled);
+    overflowCombo.setEnabled(enabled);
+    queueSizeField.setEnabled(enabled);
   }
 
   /**
-  * Disconnect all users in a channel, without deleting the channel itself.
-  * @param name Name of channel.
+  * Show that the server is running.
+  * @param host Host bound to.
+  * @param port Port bound to.
   */
-  public void deleteChannelUsers(String name){
-
-    ArrayList<Client> clients = channels.get(name);
-    if (clients == null)
-      return;
-    Client client;
-    for (int i = 0; i < clients.size(); i++){
-      client = clients.remove(i);
-      client.close();
-    }
-    clients.clear();
+  @Override
+  public void serverStarted(String host, int port){
+
+    notification.setText("Server started!");
+    serverBtn.setText("Stop");
+    serverBtn.setEnabled(true);
   }
 
   /**
-  * Check if the given channel contains the given username as an active user.
-  * @param channel Name of channel.
-  * @param username Username to check for.
-  * @return {@code true} if a match is found.
+  * Reset the panel once the server has stopped.
+  * @param reason Why the server stopped.
   */
-  public boolean channelUserExists(String channel, String username){
+  @Override
+  public void serverStopped(String reason){
 
-    ArrayList<Client> clients = channels.get(channel);
-    if (clients == null)
-      return false;
-    Client client;
-    for (Client c : clients){
-      if (c.getUsername().equals(username))
-        return true;
-    }
-    return false;
+    updateCountLabels();
+    serverBtn.setText("Start");
+    serverBtn.setEnabled(true);
+    setSettingsEnabled(true);
+    notification.setText(reason);
+  }
+
+  /**
+  * Refresh the user count.
+  */
+  @Override
+  public void usersChanged(){
+    updateCountLabels();
+  }
+
+  /**
+  * Update display for the count of active clients, blocked users, and active channels.
+  */
+  public void updateCountLabels(){
+    
+    blockCountLabel.setText(String.valueOf(server.getBlockedUsers().size()));
+    clientCountLabel.setText(String.valueOf(server.getUserCount()));
+    channelCountLabel.setText(String.valueOf(server.getChannelCount()));
   }
 
   /**
@@ -421,17 +441,12 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
   */
   public void showChannels(){
 
-    String rows[][] = new String[channels.size()][3];
-    String names[] = new String[channels.size()];
-    int j = 0;
-    for (String n : channels.keySet()){
-      names[j] = n;
-      j++;
-    }
-    for (int i = 0; i < channels.size(); i++){
+    ChannelState[] snapshot = server.getChannels();
+    String rows[][] = new String[snapshot.length][3];
+    for (int i = 0; i < snapshot.length; i++){
       rows[i][0] = String.valueOf(i+1);
-      rows[i][1] = names[i];
-      rows[i][2] = String.valueOf(channels.get(names[i]).size());
+      rows[i][1] = snapshot[i].getName();
+      rows[i][2] = String.valueOf(snapshot[i].size());
     }
 
     String columns[] = {"S/N", "Channel Name", "Channel Users"};
@@ -445,18 +460,21 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
         int row = src.getSelectedRow();
         try{
           String cname = (String)src.getValueAt(row, 1); // Get channel name of selected row.
-          ArrayList<Client> clients = channels.get(cname);
-          if (clients.size() == 0)
+          ChannelState ch = server.getChannel(cname);
+          if (ch == null || ch.size() == 0)
             return;
+          Client[] clients = ch.members();
           // Build the users table.
-          String rows[][] = new String[clients.size()][3];
-          String cols[] = {"S/N", "Username", "Active for"};
+          String rows[][] = new String[clients.length][5];
+          String cols[] = {"S/N", "Username", "Active for", "Queued", "Dropped"};
           Client c;
-          for (int i = 0; i < clients.size(); i++){
-            c = clients.get(i);
+          for (int i = 0; i < clients.length; i++){
+            c = clients[i];
             rows[i][0] = String.valueOf(i+1);
             rows[i][1] = c.getUsername();
             rows[i][2] = c.computeLoginDuration();
+            rows[i][3] = String.valueOf(c.getQueueDepth());
+            rows[i][4] = String.valueOf(c.getDroppedCount());
           }
           // Render.
           createTableWindow(cname, rows, cols, null);
@@ -469,209 +487,6 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
     createTableWindow("Available Channels", rows, columns, listener);
   }
 
-  /**
-  * Handles server connections.
-  */
-  @Override
-  public void run(){
-
-    serverBtn.setEnabled(false);
-    ServerSocket sock = null;
-    try{
-      sock = new ServerSocket(port, 100, InetAddress.getByName(host));
-    }catch(Exception e){
-      notification.setText("Error starting server!");
-      serverBtn.setEnabled(true);
-      return;
-    }
-    try{
-      sock.setSoTimeout(500);
-    }catch(SocketException e1){}
-    notification.setText("Server started!");
-    serverBtn.setText("Stop");
-    serverBtn.setEnabled(true);
-    active = true;
-    Socket client;
-    Thread t;
-    String quitMsg = null;
-    while (active){
-      try{
-        client = sock.accept();
-        t = new Thread(new ConnHandler(client));
-        t.start();
-      }catch(SocketTimeoutException e2){
-        continue;
-      }catch(IOException e3){
-        // Kill server.
-        e3.printStackTrace();
-        active = false;
-        quitMsg = "Server error!";
-        break;
-      }
-    }
-    // Handle server shutdown.
-    try{
-      sock.close();
-    }catch(IOException e4){}
-    for (String name : channels.keySet())
-      deleteChannelUsers(name);
-    handledChannels.clear();
-    updateCountLabels();
-    serverBtn.setText("Start");
-    serverBtn.setEnabled(true);
-    if (quitMsg == null)
-      quitMsg = "Server stopped!";
-    notification.setText(quitMsg);
-  }
-
-  /**
-  * Handles a freshly accepted connection, authenticate it, and pass it to a channel handler.
-  */
-  public class ConnHandler implements Runnable{
-
-    private Socket sock;
-
-    public ConnHandler(Socket sock){
-      this.sock = sock;
-    }
-
-    @Override
-    public void run(){
-
-      Client client = null;
-      try{
-        client = new Client(sock);
-      }catch(Exception e){
-        e.printStackTrace();
-        client.close();
-        return;
-      }
-      client.setTimeout(5000);
-      String data = client.receive();
-      if (data == null || data.length() == 0){
-        client.close();
-        return;
-      }
-      try{
-        String params[] = data.split("<<>>");
-        if (params.length != 3){
-          client.close();
-          return;
-        }
-        String username = params[0].trim();
-        String channel = params[1].trim();
-        String password = params[2].trim();
-        if (!(channels.containsKey(channel))){
-          client.send("Invalid channel!");
-          client.close();
-          return;
-        }
-        if (channels.get(channel).size() >= MAX_CHANNEL_USERS){
-          client.send("Maximum channel users attained!");
-          client.close();
-          return;
-        }
-        if (isAlphaNum(username) != true || username.length() < MIN_USERNAME_LENGTH || username.length() > MAX_USERNAME_LENGTH || channelUserExists(channel, username) || blockedUsers.contains(username)){
-          client.send("Username taken/invalid");
-          client.close();
-          return;
-        }
-        String orgPass = channelPasswords.get(channel);
-        if (orgPass != null && orgPass.length() != 0){
-          if (!(orgPass.equals(password))){
-            client.send("Authentication failed!");
-            client.close();
-            return;
-          }
-        }
-        client.setLoginTime(System.currentTimeMillis());
-        client.setUsername(username);
-        client.send("[+]");
-        client.setTimeout(50); // Restore low timeout for faster loop circles.
-        channels.get(channel).add(client);
-        updateCountLabels();
-        // Dispatch a thread for the channel if none is available!
-        if (!(channelBroadcast.containsKey(channel)))
-            channelBroadcast.put(channel, new ArrayList<String>());
-        if (!(handledChannels.contains(channel))){
-          handledChannels.add(channel);
-          Thread t = new Thread(new ChannelHandler(channel));
-          t.start();
-        }
-        channelBroadcast.get(channel).add(String.format("[NOTIFICATION] : %s has joined!", username));
-      }catch(Exception e){
-        e.printStackTrace();
-        client.close();
-        return;
-      }
-    }
-  }
-
-  /**
-  * A thread is started with a new instance of this to manage every channel created.
-  */
-  public class ChannelHandler implements Runnable{
-
-    private String channelName;
-
-    public ChannelHandler(String name){
-      channelName = name;
-    }
-
-    @Override
-    public void run(){
-      
-      ArrayList<Client> clients = channels.get(channelName);
-      ArrayList<String> broadcasts = channelBroadcast.get(channelName);
-      Client client;
-      String msg;
-      String username;
-      int i;
-      while (active && channels.containsKey(channelName)){
-        if (clients.size() == 0){ // quit the thread when the channel has no active user.
-          handledChannels.remove(handledChannels.indexOf(channelName));
-          return;
-        }
-        for (i = 0; (i < clients.size() && active); i++){
-          client = clients.get(i);
-          msg = client.receive();
-          username = client.getUsername();
-          if (blockedUsers.contains(username)){
-            clients.remove(i);
-            client.close();
-            broadcasts.add(String.format("[NOTIFICATION] : %s has been blocked!", username));
-            updateCountLabels();
-            continue;
-          }
-          if (msg == null || msg.equals("[quit]")){
-            broadcasts.add(String.format("[NOTIFICATION] : %s has left!", username));
-            client.close();
-            clients.remove(client);
-            updateCountLabels();
-          }else if (msg.equals("[users]")){
-            Client cl;
-            msg = "\n            Channel Users\n            -------------\n\n";
-            for (i = 0; i < clients.size(); i++){
-              cl = clients.get(i);
-              msg += String.format("  %03d   -   %-16s  (active for: %s)\n", i+1, cl.getUsername(), cl.computeLoginDuration());
-            }
-            client.send(msg);
-          }else if (msg.length() > 0){
-            msg = String.format("(%s) > %s", username, msg.trim());
-            for (Client r : clients)
-              r.send(msg);
-          }
-          // Check for broadcasts.
-          while (broadcasts.size() != 0){
-            msg = broadcasts.remove(0);
-            for (Client r : clients)
-              r.send(msg);
-          }
-        }
-      }
-    }
-  }
-
   /**
   * A window for managing channels.
   */
@@ -698,10 +513,10 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
       channelsCombo = new JComboBox<String>();
       JPanel comboPanel = new JPanel();
       comboPanel.add(new JLabel("Channel:"));
-      if (channels.size() == 0){
+      if (server.getChannelCount() == 0){
         passwdBtn.setEnabled(false);
       }else{
-        for (String c : channels.keySet())
+        for (String c : server.getChannelNames())
           channelsCombo.addItem(c);
       }
       passwdBtn.setEnabled(true);
@@ -716,14 +531,15 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
           String cname = (String)channelsCombo.getSelectedItem();
           if (cname == null)
             return;
-          if (!(channels.containsKey(cname))){
+          ChannelState ch = server.getChannel(cname);
+          if (ch == null){
             passwdBtn.setEnabled(false);
             deleteBtn.setEnabled(false);
             return;
           }
           passwdBtn.setEnabled(true);
           deleteBtn.setEnabled(true);
-          String currPass = channelPasswords.get(cname);
+          String currPass = ch.getPassword();
           passwdField.setText(currPass);
           passwdField.requestFocus();
         }
@@ -754,8 +570,9 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
 
       String cname = (String)channelsCombo.getSelectedItem();
       if (cname != null){
-        String passwd = channelPasswords.get(cname);
-        passwdField.setText(passwd);
+        ChannelState ch = server.getChannel(cname);
+        if (ch != null)
+          passwdField.setText(ch.getPassword());
       }
     }
 
@@ -771,19 +588,22 @@ public class JSChatServer extends JFrame implements ActionListener, Runnable{
         frame.setVisible(false);
       }else if (src == passwdBtn){
         String passwd = (String)passwdField.getText();
-        channelPasswords.put(channelName, passwd);
+        ChannelState ch = server.getChannel(channelName);
+        if (ch != null)
+          ch.setPassword(passwd);
       }else if (src == deleteBtn){
         pauseComboListener = true;
-        deleteChannel(channelName);
+        server.deleteChannel(channelName);
         channelsCombo.removeAllItems();
-        for (String s : channels.keySet())
+        for (String s : server.getChannelNames())
           channelsCombo.addItem(s);
-        if (channels.size() == 0)
+        if (server.getChannelCount() == 0)
           frame.setVisible(false);
         updateCountLabels();
         channelName = (String)channelsCombo.getSelectedItem();
-        if (channelName != null)
-          passwdField.setText(channelPasswords.get(channelName));
+        ChannelState ch = (channelName == null) ? null : server.getChannel(channelName);
+        if (ch != null)
+          passwdField.setText(ch.getPassword());
         pauseComboListener = false;
       }
     }
@@ -0,0 +1,253 @@
+package com.umarabdul.jschat;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.AbstractListModel;
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.ListCellRenderer;
+import javax.swing.SwingUtilities;
+
+
+/**
+* The lines shown in the client's message view, as a list model for a {@code JList}. Only the most recent
+* lines are kept, in a ring of fixed size, so memory stays bounded however long the client runs, and the
+* list only renders the rows in view.
+*
+* Lines can be appended from any thread. They are queued, and moved into the model by a single task on the
+* event dispatch thread, which takes every line queued by the time it runs; a busy channel costs one view
+* update per batch of lines rather than one per line. The queue holds no more lines than the model does,
+* dropping the oldest, since those would be pushed out of the model by the newer ones anyway.
+*
+* Long lines are wrapped at word boundaries to the width of the list by {@link Renderer}.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class MessageHistory extends AbstractListModel<String>{
+
+  private static final long serialVersionUID = 1L;
+  public static final int DEFAULT_CAPACITY = 5000; // Lines kept when the jschat.history property isn't set.
+
+  private final String[] lines;
+  private int start = 0; // Index of the oldest line.
+  private int size = 0;
+  private final ConcurrentLinkedQueue<String> pending; // Lines appended, waiting for the event dispatch thread.
+  private final AtomicInteger pendingCount; // Lines in the queue, kept to the capacity.
+  private final AtomicBoolean scheduled; // Whether a task to move the pending lines is queued.
+  private Runnable listener = null;
+
+  /**
+  * Class constructor.
+  * @param capacity Number of lines to keep.
+  */
+  public MessageHistory(int capacity){
+
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity out of range!");
+    lines = new String[capacity];
+    pending = new ConcurrentLinkedQueue<String>();
+    pendingCount = new AtomicInteger(0);
+    scheduled = new AtomicBoolean(false);
+  }
+
+  /**
+  * Create a history with the number of lines given by the {@code jschat.history} system property.
+  * @return The history.
+  */
+  public static MessageHistory fromProperty(){
+    return new MessageHistory(Math.max(1, Integer.getInteger("jschat.history", DEFAULT_CAPACITY)));
+  }
+
+  /**
+  * Set a task to run on the event dispatch thread after every batch of lines is added, such as scrolling
+  * the view. Must be called on the event dispatch thread.
+  * @param listener The task, {@code null} for none.
+  */
+  public void setBatchListener(Runnable listener){
+    this.listener = listener;
+  }
+
+  /**
+  * Append a line, which may contain line breaks, each starting a new row. Safe to call from any thread.
+  * @param text Text to append.
+  */
+  public void append(String text){
+
+    for (String line : text.split("\n", -1)){
+      pending.add(line);
+      if (pendingCount.incrementAndGet() > lines.length && pending.poll() != null) // Drop the oldest.
+        pendingCount.decrementAndGet();
+    }
+    if (scheduled.compareAndSet(false, true)){
+      SwingUtilities.invokeLater(new Runnable(){
+        @Override
+        public void run(){
+          flush();
+        }
+      });
+    }
+  }
+
+  /**
+  * Move the pending lines into the model, dropping the oldest ones past the capacity, and notify the view
+  * once for the lines removed and once for those added.
+  */
+  private void flush(){
+
+    scheduled.set(false); // Lines appended from now on need another task.
+    ArrayList<String> batch = new ArrayList<String>();
+    String line;
+    while ((line = pending.poll()) != null){
+      pendingCount.decrementAndGet();
+      batch.add(line);
+    }
+    if (batch.isEmpty())
+      return;
+    int from = Math.max(0, batch.size() - lines.length); // Older lines of a huge batch would be dropped at once.
+    int added = batch.size() - from;
+    int removed = Math.max(0, size + added - lines.length);
+    if (removed > 0){
+      for (int i = 0; i < removed; i++)
+        lines[(start + i) % lines.length] = null;
+      start = (start + removed) % lines.length;
+      size -= removed;
+      fireIntervalRemoved(this, 0, removed - 1);
+    }
+    for (int i = from; i < batch.size(); i++)
+      lines[(start + size++) % lines.length] = batch.get(i);
+    fireIntervalAdded(this, size - added, size - 1);
+    if (listener != null)
+      listener.run();
+  }
+
+  /**
+  * Return the number of lines in the model.
+  * @return Line count.
+  */
+  @Override
+  public int getSize(){
+    return size;
+  }
+
+  /**
+  * Return a line of the model.
+  * @param index Index of the line, {@code 0} being the oldest.
+  * @return The line.
+  */
+  @Override
+  public String getElementAt(int index){
+    return lines[(start + index) % lines.length];
+  }
+
+  /**
+  * Remove all lines. Must be called on the event dispatch thread.
+  */
+  public void clear(){
+
+    if (size == 0)
+      return;
+    int removed = size;
+    for (int i = 0; i < size; i++)
+      lines[(start + i) % lines.length] = null;
+    start = 0;
+    size = 0;
+    fireIntervalRemoved(this, 0, removed - 1);
+  }
+
+  /**
+  * Return all lines in the model as a single text. Must be called on the event dispatch thread.
+  * @return Lines separated by line breaks.
+  */
+  public String getText(){
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < size; i++)
+      sb.append(getElementAt(i)).append('\n');
+    return sb.toString();
+  }
+
+  /**
+  * Renders the lines of a list, wrapping long ones at word boundaries to the width of the list, or at the
+  * width of a row where a word doesn't fit. Lines are measured in columns of a monospaced font, without
+  * laying out any text, so the heights of all rows are cheap to work out when lines are added. The list
+  * needs to track the width of its viewport, and to measure its rows again when that changes.
+  */
+  public static class Renderer extends JComponent implements ListCellRenderer<String>{
+
+    private static final long serialVersionUID = 1L;
+    private String text = "";
+    private int columns = 1; // Characters that fit in a row.
+
+    /**
+    * Set the line to render, and size the renderer to fit it wrapped to the width of the list.
+    * @param list The list.
+    * @param value The line.
+    * @param index Index of the line.
+    * @param isSelected Whether the line is selected.
+    * @param cellHasFocus Whether the line has the focus.
+    * @return The renderer.
+    */
+    @Override
+    public Component getListCellRendererComponent(JList<? extends String> list, String value, int index, boolean isSelected, boolean cellHasFocus){
+
+      text = (value == null) ? "" : value;
+      setFont(list.getFont());
+      setBackground((isSelected) ? list.getSelectionBackground() : list.getBackground());
+      setForeground((isSelected) ? list.getSelectionForeground() : list.getForeground());
+      FontMetrics fm = getFontMetrics(getFont());
+      int width = list.getWidth() - list.getInsets().left - list.getInsets().right;
+      columns = Math.max(1, width / Math.max(1, fm.charWidth('m')));
+      setPreferredSize(new Dimension(Math.max(0, width), fm.getHeight() * wrap(null, fm)));
+      return this;
+    }
+
+    /**
+    * Paint the line, wrapped.
+    * @param g The graphics context.
+    */
+    @Override
+    protected void paintComponent(Graphics g){
+
+      g.setColor(getBackground());
+      g.fillRect(0, 0, getWidth(), getHeight());
+      g.setColor(getForeground());
+      g.setFont(getFont());
+      wrap(g, g.getFontMetrics());
+    }
+
+    /**
+    * Break the line into rows, drawing each if given a graphics context.
+    * @return The number of rows.
+    */
+    private int wrap(Graphics g, FontMetrics fm){
+
+      int rows = 0;
+      int pos = 0;
+      int len = text.length();
+      do{
+        int end = len;
+        int next = len;
+        if (len - pos > columns){
+          end = text.lastIndexOf(' ', pos + columns);
+          if (end <= pos){ // No word boundary in the row; break the word.
+            end = pos + columns;
+            next = end;
+          }else{
+            next = end + 1;
+          }
+        }
+        if (g != null)
+          g.drawString(text.substring(pos, end), 0, rows * fm.getHeight() + fm.getAscent());
+        rows++;
+        pos = next;
+      }while (pos < len);
+      return rows;
+    }
+  }
+}
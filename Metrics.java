@@ -0,0 +1,405 @@
+package com.umarabdul.jschat;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+* Server-wide metrics, and the registry through which they and every channel's {@code ChannelMetrics} are
+* published. Counters are striped ({@code LongAdder}), so the threads updating them don't contend, and
+* latencies are recorded in {@code Histogram}s.
+*
+* Metrics can be published as JMX MBeans under {@code com.umarabdul.jschat}, and as a Prometheus-style text
+* page served over HTTP. Both are off until enabled, so they cost nothing when unused.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class Metrics implements MetricsMBean{
+
+  public static final String DOMAIN = "com.umarabdul.jschat"; // JMX domain of the MBeans.
+  public static final long MAX_LATENCY = 60000000000L; // Highest latency tracked by the histograms, in nanoseconds.
+
+  private ChatServer server;
+  private Counter accepts = new Counter();
+  private Counter refusals = new Counter();
+  private Counter evictions = new Counter();
+  private Counter reaps = new Counter();
+  private Counter authFailures = new Counter();
+  private Counter migrations = new Counter();
+  private Histogram handshakeLatency = new Histogram(MAX_LATENCY);
+  private MBeanServer mbeans = null;
+  private HttpServer http = null;
+
+  /**
+  * A striped counter that also tracks its rate of increase.
+  */
+  public static class Counter{
+
+    private final LongAdder count = new LongAdder();
+    private long lastCount = 0;
+    private long lastTime = System.nanoTime();
+    private double rate = 0;
+
+    /**
+    * Add one to the counter.
+    */
+    public void increment(){
+      count.increment();
+    }
+
+    /**
+    * Add to the counter.
+    * @param n Amount to add.
+    */
+    public void add(long n){
+      count.add(n);
+    }
+
+    /**
+    * Return the current count.
+    * @return Sum of everything added.
+    */
+    public long get(){
+      return count.sum();
+    }
+
+    /**
+    * Return the rate of increase, averaged over the time since the rate was last updated. The rate is
+    * updated by this call at most once a second.
+    * @return Increase per second.
+    */
+    public synchronized double getRate(){
+
+      long now = System.nanoTime();
+      if (now - lastTime >= 1000000000L){
+        long curr = count.sum();
+        rate = (curr - lastCount) * 1e9 / (now - lastTime);
+        lastCount = curr;
+        lastTime = now;
+      }
+      return rate;
+    }
+  }
+
+  /**
+  * Class constructor.
+  * @param server The server whose metrics are published.
+  */
+  public Metrics(ChatServer server){
+    this.server = server;
+  }
+
+  /**
+  * Count an accepted connection.
+  */
+  public void accepted(){
+    accepts.increment();
+  }
+
+  /**
+  * Count a connection closed on accepting, for coming too fast from its address.
+  */
+  public void refused(){
+    refusals.increment();
+  }
+
+  /**
+  * Count a connection yet to log in closed to make room for a newer one.
+  */
+  public void evicted(){
+    evictions.increment();
+  }
+
+  /**
+  * Count a logged in client dropped for not answering a ping.
+  */
+  public void reaped(){
+    reaps.increment();
+  }
+
+  /**
+  * Record the outcome of a login.
+  * @param client The client that tried to login.
+  * @param ok {@code true} if accepted.
+  */
+  public void loggedIn(Client client, boolean ok){
+
+    if (ok)
+      handshakeLatency.record(System.nanoTime() - client.getConnectTime());
+    else
+      authFailures.increment();
+  }
+
+  /**
+  * Count a channel moved between event loops of the NIO engine.
+  */
+  public void migrated(){
+    migrations.increment();
+  }
+
+  @Override
+  public long getAccepts(){
+    return accepts.get();
+  }
+
+  @Override
+  public double getAcceptsPerSecond(){
+    return accepts.getRate();
+  }
+
+  @Override
+  public long getConnectionsRefused(){
+    return refusals.get();
+  }
+
+  @Override
+  public long getHandshakesEvicted(){
+    return evictions.get();
+  }
+
+  @Override
+  public int getPendingHandshakes(){
+
+    Admission admission = server.getAdmission();
+    return (admission == null) ? 0 : admission.getPending();
+  }
+
+  @Override
+  public long getConnectionsReaped(){
+    return reaps.get();
+  }
+
+  @Override
+  public long getAuthFailures(){
+    return authFailures.get();
+  }
+
+  @Override
+  public double getHandshakeLatencyP50Millis(){
+    return handshakeLatency.getValueAtPercentile(50) / 1e6;
+  }
+
+  @Override
+  public double getHandshakeLatencyP99Millis(){
+    return handshakeLatency.getValueAtPercentile(99) / 1e6;
+  }
+
+  @Override
+  public long getChannelMigrations(){
+    return migrations.get();
+  }
+
+  @Override
+  public int getChannels(){
+    return server.getChannelCount();
+  }
+
+  @Override
+  public int getUsers(){
+    return server.getUserCount();
+  }
+
+  @Override
+  public int getBlockedUsers(){
+    return server.getBlockedUsers().size();
+  }
+
+  /**
+  * Register the server's MBean and one for every channel, current and future, with the platform MBean server.
+  * @throws JMException if registration fails.
+  */
+  public synchronized void enableJmx() throws JMException{
+
+    if (mbeans != null)
+      return;
+    mbeans = ManagementFactory.getPlatformMBeanServer();
+    mbeans.registerMBean(this, new ObjectName(DOMAIN + ":type=Server"));
+    for (ChannelState ch : server.getChannels())
+      channelAdded(ch);
+  }
+
+  /**
+  * Publish the metrics of a new channel, if JMX is enabled.
+  * @param ch The channel.
+  */
+  synchronized void channelAdded(ChannelState ch){
+
+    if (mbeans == null)
+      return;
+    try{
+      mbeans.registerMBean(ch.getMetrics(), channelName(ch));
+    }catch(JMException e){
+      e.printStackTrace();
+    }
+  }
+
+  /**
+  * Withdraw the metrics of a deleted channel, if JMX is enabled.
+  * @param ch The channel.
+  */
+  synchronized void channelRemoved(ChannelState ch){
+
+    if (mbeans == null)
+      return;
+    try{
+      mbeans.unregisterMBean(channelName(ch));
+    }catch(JMException e){}
+  }
+
+  private static ObjectName channelName(ChannelState ch) throws MalformedObjectNameException{
+    return new ObjectName(DOMAIN + ":type=Channel,name=" + ObjectName.quote(ch.getName()));
+  }
+
+  /**
+  * Serve the metrics page at {@code /metrics} on the given address, from a background thread.
+  * @param address Address to listen on; a loopback address keeps the page local to the machine.
+  * @throws IOException if the address can't be bound.
+  */
+  public synchronized void startHttp(InetSocketAddress address) throws IOException{
+
+    if (http != null)
+      return;
+    http = HttpServer.create(address, 10);
+    http.createContext("/metrics", new HttpHandler(){
+      @Override
+      public void handle(HttpExchange exchange) throws IOException{
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    http.start();
+  }
+
+  /**
+  * Return the address the metrics page is served on.
+  * @return The bound address, {@code null} if not serving.
+  */
+  public synchronized InetSocketAddress getHttpAddress(){
+    return (http == null) ? null : http.getAddress();
+  }
+
+  /**
+  * Stop serving the metrics page.
+  */
+  public synchronized void stopHttp(){
+
+    if (http != null)
+      http.stop(0);
+    http = null;
+  }
+
+  /**
+  * Render all metrics in the Prometheus text exposition format. Latencies are summaries over the whole
+  * run, in seconds.
+  * @return The metrics page.
+  */
+  public String render(){
+
+    StringBuilder sb = new StringBuilder(4096);
+    header(sb, "jschat_accepts_total", "counter", "Connections accepted.");
+    sample(sb, "jschat_accepts_total", "", accepts.get());
+    header(sb, "jschat_connections_refused_total", "counter", "Connections closed on accepting, for coming too fast from their address.");
+    sample(sb, "jschat_connections_refused_total", "", refusals.get());
+    header(sb, "jschat_handshakes_evicted_total", "counter", "Connections yet to log in closed to make room for newer ones.");
+    sample(sb, "jschat_handshakes_evicted_total", "", evictions.get());
+    header(sb, "jschat_handshakes_pending", "gauge", "Connections accepted and yet to log in.");
+    sample(sb, "jschat_handshakes_pending", "", getPendingHandshakes());
+    header(sb, "jschat_connections_reaped_total", "counter", "Logged in clients dropped for not answering a ping.");
+    sample(sb, "jschat_connections_reaped_total", "", reaps.get());
+    header(sb, "jschat_auth_failures_total", "counter", "Logins refused, timed out or malformed.");
+    sample(sb, "jschat_auth_failures_total", "", authFailures.get());
+    header(sb, "jschat_handshake_latency_seconds", "summary", "Time from accepting a connection to its login being accepted.");
+    summary(sb, "jschat_handshake_latency_seconds", "", handshakeLatency);
+    header(sb, "jschat_channels", "gauge", "Channels.");
+    sample(sb, "jschat_channels", "", server.getChannelCount());
+    header(sb, "jschat_channel_migrations_total", "counter", "Channels moved between event loops to even out their traffic.");
+    sample(sb, "jschat_channel_migrations_total", "", migrations.get());
+    header(sb, "jschat_blocked_users", "gauge", "Usernames in the block list.");
+    sample(sb, "jschat_blocked_users", "", server.getBlockedUsers().size());
+
+    ChannelState[] channels = server.getChannels();
+    header(sb, "jschat_channel_members", "gauge", "Users in the channel.");
+    for (ChannelState ch : channels)
+      sample(sb, "jschat_channel_members", label("channel", ch.getName()), ch.size());
+    header(sb, "jschat_channel_messages_total", "counter", "Chat messages received from users of the channel.");
+    for (ChannelState ch : channels)
+      sample(sb, "jschat_channel_messages_total", label("channel", ch.getName()), ch.getMetrics().getMessages());
+    header(sb, "jschat_channel_messages_throttled_total", "counter", "Chat messages dropped for being over the sender's or the channel's rate limit.");
+    for (ChannelState ch : channels)
+      sample(sb, "jschat_channel_messages_throttled_total", label("channel", ch.getName()), ch.getMetrics().getMessagesThrottled());
+    header(sb, "jschat_channel_bytes_in_total", "counter", "Bytes of chat messages received, with framing.");
+    for (ChannelState ch : channels)
+      sample(sb, "jschat_channel_bytes_in_total", label("channel", ch.getName()), ch.getMetrics().getBytesIn());
+    header(sb, "jschat_channel_bytes_out_total", "counter", "Bytes sent to users of the channel, with framing.");
+    for (ChannelState ch : channels)
+      sample(sb, "jschat_channel_bytes_out_total", label("channel", ch.getName()), ch.getMetrics().getBytesOut());
+    header(sb, "jschat_channel_fanout_seconds", "summary", "Time taken to hand a chat message to every user of the channel.");
+    for (ChannelState ch : channels)
+      summary(sb, "jschat_channel_fanout_seconds", label("channel", ch.getName()), ch.getMetrics().getFanOut());
+
+    header(sb, "jschat_client_send_failures_total", "counter", "Messages that could not be sent to the user.");
+    for (ChannelState ch : channels){
+      for (Client c : ch.members())
+        sample(sb, "jschat_client_send_failures_total", clientLabels(ch, c), c.getSendFailures());
+    }
+    header(sb, "jschat_client_outbound_lag", "gauge", "Messages queued for the user and not yet written.");
+    for (ChannelState ch : channels){
+      for (Client c : ch.members())
+        sample(sb, "jschat_client_outbound_lag", clientLabels(ch, c), c.getQueueDepth());
+    }
+    header(sb, "jschat_client_dropped_total", "counter", "Messages dropped because the user's queue was full.");
+    for (ChannelState ch : channels){
+      for (Client c : ch.members())
+        sample(sb, "jschat_client_dropped_total", clientLabels(ch, c), c.getDroppedCount());
+    }
+    return sb.toString();
+  }
+
+  private static void header(StringBuilder sb, String name, String type, String help){
+    sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder sb, String name, String labels, double value){
+
+    sb.append(name);
+    if (labels.length() > 0)
+      sb.append('{').append(labels).append('}');
+    sb.append(' ');
+    if (value == Math.rint(value))
+      sb.append((long)value);
+    else
+      sb.append(value);
+    sb.append('\n');
+  }
+
+  private static void summary(StringBuilder sb, String name, String labels, Histogram hist){
+
+    String sep = (labels.length() > 0) ? labels + "," : "";
+    for (String q : new String[]{"0.5", "0.9", "0.99", "0.999"})
+      sample(sb, name, sep + "quantile=\"" + q + "\"", hist.getValueAtPercentile(Double.parseDouble(q) * 100) / 1e9);
+    sample(sb, name + "_sum", labels, hist.getSum() / 1e9);
+    sample(sb, name + "_count", labels, hist.getCount());
+  }
+
+  private static String clientLabels(ChannelState ch, Client c){
+    return label("channel", ch.getName()) + "," + label("user", c.getUsername());
+  }
+
+  private static String label(String name, String value){
+    return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+  }
+}
@@ -0,0 +1,39 @@
+package com.umarabdul.jschat;
+
+
+/**
+* Server-wide metrics, as published over JMX by {@code Metrics}.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public interface MetricsMBean{
+
+  long getAccepts();
+
+  double getAcceptsPerSecond();
+
+  long getConnectionsRefused();
+
+  long getHandshakesEvicted();
+
+  int getPendingHandshakes();
+
+  long getConnectionsReaped();
+
+  long getAuthFailures();
+
+  double getHandshakeLatencyP50Millis();
+
+  double getHandshakeLatencyP99Millis();
+
+  long getChannelMigrations();
+
+  int getChannels();
+
+  int getUsers();
+
+  int getBlockedUsers();
+}
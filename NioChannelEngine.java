@@ -0,0 +1,868 @@
+package com.umarabdul.jschat;
+
+import java.net.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+
+/**
+* An event-driven server engine built on {@code java.nio.channels.Selector}. Messages are read as soon as they
+* arrive, instead of polling every client in turn with a socket timeout, and no thread is tied to a channel or
+* a client.
+*
+* One thread accepts connections and carries them through the protocol offer to the login. The logged in
+* client is then handed to one of a fixed pool of worker event loops, about one per CPU, each with a selector
+* of its own. Every channel is served by a single worker, which alone reads and writes its clients, so the
+* messages of a channel are handled in the order they arrive without any locking. New channels go to the worker
+* with the fewest; since channels differ widely in traffic, every {@code REBALANCE_INTERVAL} the accepting thread
+* compares the traffic of each worker, and if one is much busier than another, moves one of its channels over.
+* The channel's clients are moved between the workers' selectors along with the tasks queued for the channel,
+* so its order is kept across the move.
+*
+* Every loop has a {@code TimerWheel} for the deadlines of its connections, advanced after every select: the
+* acceptor's for logins, and the workers' for the heartbeats of the clients they serve, so a dead peer is
+* noticed and dropped from its channel without a thread or a scan of every client.
+*
+* When the server has a TLS context, every connection is encrypted by a {@code TlsChannel}. The crypto of
+* handshakes runs on a pool of a thread per CPU, so a storm of new connections doesn't hold up the chat traffic
+* of the event loops; connections whose handshake crypto is done are handed back to their loop to carry on.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class NioChannelEngine{
+
+  private ChatServer server;
+  private Acceptor acceptor;
+  private Worker[] workers;
+  private ConcurrentHashMap<ChannelState, Worker> owners; // The worker serving each channel.
+  private final Object routing = new Object(); // Held while a channel's tasks are queued, or it changes worker.
+  private HashMap<ChannelState, Long> traffic; // Bytes in and out of each channel at the last rebalance.
+  private volatile String quitMsg = null;
+  private SSLContext tls;
+  private ExecutorService tlsTasks = null; // Runs the delegated tasks of TLS handshakes.
+  private Admission admission; // Connections yet to log in, and the limits on them.
+
+  public static final int AUTH_TIMEOUT = 5000; // Time allowed for a new connection to authenticate, in milliseconds.
+  public static final int SELECT_TIMEOUT = 500; // Maximum time to wait in select(), in milliseconds.
+  public static final int REBALANCE_INTERVAL = 2000; // Time between comparisons of the workers' traffic, in milliseconds.
+  public static final double REBALANCE_RATIO = 1.5; // Traffic of the busiest worker to the idlest one that moves a channel.
+  public static final long REBALANCE_MIN_BYTES = 256 * 1024; // Traffic per interval below which a worker is never unloaded.
+
+  /**
+  * Class constructor.
+  * @param server The server whose channels are to be handled.
+  */
+  public NioChannelEngine(ChatServer server){
+
+    this.server = server;
+    owners = new ConcurrentHashMap<ChannelState, Worker>();
+    traffic = new HashMap<ChannelState, Long>();
+    tls = server.getTls();
+    admission = server.getAdmission();
+  }
+
+  /**
+  * Bind to the given address and handle connections until the server is stopped.
+  * @param host Host to bind to.
+  * @param port Port to bind to.
+  * @return A message describing why the engine stopped.
+  */
+  public String serve(String host, int port){
+
+    ServerSocketChannel listener = null;
+    workers = new Worker[server.getWorkers()];
+    try{
+      acceptor = new Acceptor();
+      for (int i = 0; i < workers.length; i++)
+        workers[i] = new Worker(i);
+      listener = ServerSocketChannel.open();
+      listener.bind(new InetSocketAddress(InetAddress.getByName(host), port), server.getAcceptBacklog());
+      listener.configureBlocking(false);
+      acceptor.acceptKey = listener.register(acceptor.selector, SelectionKey.OP_ACCEPT);
+    }catch(Exception e){
+      closeQuietly(listener);
+      closeLoops();
+      return "Error starting server!";
+    }
+    if (tls != null){
+      tlsTasks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+        @Override
+        public Thread newThread(Runnable task){
+          Thread t = new Thread(task, "tls-handshake");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    server.serverStarted(listener.socket().getLocalPort());
+    Thread[] threads = new Thread[workers.length];
+    for (int i = 0; i < workers.length; i++){
+      threads[i] = new Thread(workers[i], "nio-worker-" + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+    acceptor.run();
+    for (Thread t : threads){
+      try{
+        t.join();
+      }catch(InterruptedException e){}
+    }
+    admission.closeAll();
+    if (tlsTasks != null)
+      tlsTasks.shutdown();
+    closeQuietly(listener);
+    closeLoops();
+    return quitMsg;
+  }
+
+  /**
+  * Run a task on the worker serving a channel, the only thread that reads and writes the channel's clients,
+  * after the tasks queued for the channel before it. Tasks for a channel that doesn't exist run on any worker.
+  * @param channel Name of the channel.
+  * @param task The task.
+  */
+  void execute(String channel, Runnable task){
+
+    route(new ChannelTask(channel){
+      @Override
+      void run(Worker worker){
+        task.run();
+      }
+    });
+  }
+
+  /**
+  * Queue a task on the worker serving its channel.
+  */
+  private void route(ChannelTask task){
+
+    ChannelState ch = server.getChannel(task.name);
+    synchronized (routing){
+      task.channel = ch;
+      task.worker = (ch == null) ? workers[Math.floorMod(task.name.hashCode(), workers.length)] : ownerOf(ch);
+      task.worker.execute(task);
+    }
+  }
+
+  /**
+  * Return the worker serving a channel, giving it to the worker with the fewest channels if none is yet.
+  * Must be called holding {@code routing}.
+  */
+  private Worker ownerOf(ChannelState ch){
+
+    Worker owner = owners.get(ch);
+    if (owner != null)
+      return owner;
+    int[] count = new int[workers.length];
+    for (Worker w : owners.values())
+      count[w.index]++;
+    owner = workers[0];
+    for (Worker w : workers){
+      if (count[w.index] < count[owner.index])
+        owner = w;
+    }
+    owners.put(ch, owner);
+    return owner;
+  }
+
+  /**
+  * Schedule a client whose connection was dropped while sending for removal from its channel, by the event loop
+  * it's registered with. Removal is deferred since the channel's client list may be in the middle of a broadcast.
+  * @param client The dropped client.
+  */
+  void reap(NioClient client){
+    Loop loop = client.getLoop();
+    if (loop != null)
+      loop.reap(client);
+  }
+
+  /**
+  * Carry on with a connection whose TLS handshake crypto is done, on the event loop it's registered with.
+  * @param client The client.
+  */
+  private void resume(NioClient client){
+
+    Runnable task = new Runnable(){
+      @Override
+      public void run(){
+        Loop loop = client.getLoop();
+        SelectionKey key = client.getKey();
+        if (key != null && key.isValid() && key.selector() == loop.selector)
+          loop.read(client);
+      }
+    };
+    String channel = client.getChannelName();
+    if (channel == null)
+      acceptor.execute(task);
+    else
+      execute(channel, task);
+  }
+
+  /**
+  * Compare the traffic each worker served since the last call, and if the busiest served much more than the
+  * idlest, move over the channel of the busiest that brings the two closest. A channel with more traffic than
+  * the difference is left where it is, since moving it only swaps the roles of the two.
+  */
+  private void rebalance(){
+
+    long[] load = new long[workers.length];
+    HashMap<ChannelState, Long> recent = new HashMap<ChannelState, Long>();
+    for (Map.Entry<ChannelState, Worker> e : owners.entrySet()){
+      ChannelState ch = e.getKey();
+      if (server.getChannel(ch.getName()) != ch){ // Deleted.
+        synchronized (routing){
+          owners.remove(ch);
+        }
+        traffic.remove(ch);
+        continue;
+      }
+      long total = ch.getMetrics().getBytesIn() + ch.getMetrics().getBytesOut();
+      Long last = traffic.put(ch, total);
+      long bytes = (last == null) ? 0 : total - last;
+      recent.put(ch, bytes);
+      load[e.getValue().index] += bytes;
+    }
+    Worker busiest = workers[0];
+    Worker idlest = workers[0];
+    for (Worker w : workers){
+      if (load[w.index] > load[busiest.index])
+        busiest = w;
+      if (load[w.index] < load[idlest.index])
+        idlest = w;
+    }
+    long gap = load[busiest.index] - load[idlest.index];
+    if (load[busiest.index] < REBALANCE_MIN_BYTES || load[busiest.index] < load[idlest.index] * REBALANCE_RATIO)
+      return;
+    ChannelState move = null;
+    long best = 0;
+    for (Map.Entry<ChannelState, Long> e : recent.entrySet()){
+      long bytes = e.getValue();
+      long narrowed = Math.min(bytes, gap - bytes); // How much closer the two get.
+      if (owners.get(e.getKey()) == busiest && narrowed > best){
+        move = e.getKey();
+        best = narrowed;
+      }
+    }
+    if (move == null)
+      return;
+    final ChannelState ch = move;
+    final Worker from = busiest;
+    final Worker to = idlest;
+    from.execute(new Runnable(){
+      @Override
+      public void run(){
+        from.release(ch, to);
+      }
+    });
+  }
+
+  /**
+  * Close the selectors of the acceptor and workers.
+  */
+  private void closeLoops(){
+
+    if (acceptor != null)
+      closeQuietly(acceptor.selector);
+    for (Worker w : workers){
+      if (w != null)
+        closeQuietly(w.selector);
+    }
+  }
+
+  private static void closeQuietly(Closeable obj){
+
+    try{
+      if (obj != null)
+        obj.close();
+    }catch(IOException e){}
+  }
+
+  /**
+  * A task for a channel, run by its worker. Should the channel have moved to another worker by the time
+  * the task is run, it's passed on.
+  */
+  abstract class ChannelTask implements Runnable{
+
+    final String name;
+    ChannelState channel = null; // The channel, null if it didn't exist when the task was queued.
+    Worker worker = null; // Worker the task is queued on.
+
+    ChannelTask(String name){
+      this.name = name;
+    }
+
+    @Override
+    public void run(){
+
+      if (channel != null && owners.get(channel) != worker){
+        route(this);
+        return;
+      }
+      run(worker);
+    }
+
+    /**
+    * Do the task.
+    * @param worker The worker running it.
+    */
+    abstract void run(Worker worker);
+  }
+
+  /**
+  * A thread waiting on a selector for connections to become ready, and for tasks handed over by other threads.
+  */
+  abstract class Loop implements Executor, Runnable{
+
+    final Selector selector;
+    final ConcurrentLinkedQueue<Runnable> tasks; // Work handed over by other threads.
+    final ArrayList<NioClient> dead; // Clients dropped while sending, to be removed from their channels.
+    final ArrayList<NioClient> unflushed; // Clients sent messages during this pass, written at its end.
+    final TimerWheel timers; // Deadlines of the connections served, used by this loop alone.
+    final BufferPool buffers; // Buffers the messages of the clients served are gathered in to be written.
+    private final ConcurrentLinkedQueue<NioClient> closing; // Clients closed by other threads, for this loop to close.
+    private volatile Thread thread = null;
+    private boolean stopped = false; // Whether the loop has quit, leaving other threads to close clients themselves.
+
+    Loop() throws IOException{
+
+      selector = Selector.open();
+      tasks = new ConcurrentLinkedQueue<Runnable>();
+      dead = new ArrayList<NioClient>();
+      unflushed = new ArrayList<NioClient>();
+      timers = new TimerWheel();
+      buffers = new BufferPool(Client.MAX_BATCH, 2, true);
+      closing = new ConcurrentLinkedQueue<NioClient>();
+    }
+
+    /**
+    * Check if the caller is the thread running this loop.
+    * @return {@code true} if it is.
+    */
+    boolean inLoop(){
+      return Thread.currentThread() == thread;
+    }
+
+    /**
+    * Run a task on this loop, as soon as it's done with the connections ready.
+    * @param task The task.
+    */
+    @Override
+    public void execute(Runnable task){
+
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    /**
+    * Handle ready connections and tasks until the server is stopped.
+    */
+    @Override
+    public void run(){
+
+      thread = Thread.currentThread();
+      while (server.isActive()){
+        int queued = tasks.size(); // Those queued later wait for the next pass, after the messages sent before them.
+        try{
+          if (queued == 0)
+            selector.select(SELECT_TIMEOUT);
+          else
+            selector.selectNow();
+        }catch(IOException e){
+          e.printStackTrace();
+          quitMsg = "Server error!";
+          server.stop();
+          break;
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()){
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!(key.isValid()))
+            continue;
+          if (key.isAcceptable())
+            accept((ServerSocketChannel)key.channel());
+          else{
+            NioClient client = (NioClient)key.attachment();
+            if (key.isValid() && key.isWritable() && !(client.flush()))
+              drop(client);
+            if (key.isValid() && key.isReadable())
+              read(client);
+          }
+          reapDead();
+        }
+        Runnable task;
+        while (queued-- > 0 && (task = tasks.poll()) != null){
+          task.run();
+          reapDead();
+        }
+        closeHanded();
+        timers.advance(System.currentTimeMillis());
+        reapDead();
+        tick();
+        do{
+          flushAll();
+          reapDead(); // Leave notices are more messages to write.
+        }while (unflushed.size() != 0);
+      }
+      synchronized (this){
+        stopped = true;
+      }
+      closeHanded(); // Those handed over before it quit.
+    }
+
+    /**
+    * Have this loop close a client it serves, for a thread other than the loop's, unless the loop has quit.
+    * @param client The client.
+    * @return {@code false} if the loop has quit, and the caller is to close the client itself.
+    */
+    synchronized boolean closeLater(NioClient client){
+
+      if (stopped)
+        return false;
+      closing.add(client);
+      selector.wakeup();
+      return true;
+    }
+
+    /**
+    * Close the clients handed over by other threads.
+    */
+    private void closeHanded(){
+
+      NioClient client;
+      while ((client = closing.poll()) != null){
+        client.close(); // Handed on to another loop if the client moved meanwhile.
+        reapDead();
+      }
+    }
+
+    /**
+    * Have a client's messages written at the end of this pass, together with any others sent to it meanwhile.
+    * @param client The client, served by this loop.
+    */
+    void flushLater(NioClient client){
+
+      if (!(client.setFlushDue(true)))
+        unflushed.add(client);
+    }
+
+    /**
+    * Write the messages sent to clients during this pass, a single write per client.
+    */
+    private void flushAll(){
+
+      for (int i = 0; i < unflushed.size(); i++){
+        NioClient client = unflushed.get(i);
+        client.setFlushDue(false);
+        client.flushOrFail();
+      }
+      unflushed.clear();
+    }
+
+    /**
+    * Register a client with this loop for reading, and for writing if it has messages waiting.
+    * @param client The client.
+    * @return {@code false} if the connection failed.
+    */
+    boolean register(NioClient client){
+
+      client.setLoop(this);
+      try{
+        try{
+          client.setKey(client.getChannel().register(selector, SelectionKey.OP_READ, client));
+        }catch(CancelledKeyException e){ // Moved away from here and back before the old key was dropped.
+          selector.selectNow();
+          client.setKey(client.getChannel().register(selector, SelectionKey.OP_READ, client));
+        }
+      }catch(IOException e){
+        return false;
+      }
+      return client.flush();
+    }
+
+    /**
+    * Take a client off this loop, for another to register it.
+    * @param client The client.
+    */
+    void deregister(NioClient client){
+
+      SelectionKey key = client.getKey();
+      if (key != null)
+        key.cancel();
+      client.setKey(null);
+      TimerWheel.Timeout heartbeat = client.getHeartbeat();
+      if (heartbeat != null) // Scheduled again by the loop taking it.
+        heartbeat.cancel();
+      client.setLoop(null); // Until registered again, nothing may send to it.
+      if (client.setFlushDue(false)) // Its messages are written once registered again.
+        unflushed.remove(client);
+    }
+
+    void accept(ServerSocketChannel listener){}
+
+    /**
+    * Read and process all complete frames available from a client.
+    * @param client The client to read from.
+    */
+    abstract void read(NioClient client);
+
+    /**
+    * Handle a client whose connection failed.
+    * @param client The failed client.
+    */
+    abstract void drop(NioClient client);
+
+    /**
+    * Called every time around the loop, after the connections ready and the tasks are handled.
+    */
+    abstract void tick();
+
+    /**
+    * Schedule a client whose connection was dropped while sending for removal.
+    * @param client The dropped client.
+    */
+    void reap(NioClient client){
+
+      if (!(dead.contains(client)))
+        dead.add(client);
+    }
+
+    /**
+    * Remove all dropped clients. Leave notifications may drop more clients, so this repeats until none is left.
+    */
+    private void reapDead(){
+
+      while (dead.size() != 0)
+        drop(dead.remove(0));
+    }
+  }
+
+  /**
+  * Accepts connections, and takes them through the TLS handshake and protocol offer to the login, which is
+  * handed to the worker of the channel logged into. Also rebalances the workers.
+  */
+  class Acceptor extends Loop{
+
+    private SelectionKey acceptKey;
+    private long lastRebalance;
+
+    Acceptor() throws IOException{
+      lastRebalance = System.currentTimeMillis();
+    }
+
+    /**
+    * Accept pending connections as long as the admission allows, closing those over their address's rate, and
+    * register the rest for reading. Once it doesn't, stop accepting until it does.
+    * @param listener The listening channel.
+    */
+    @Override
+    void accept(ServerSocketChannel listener){
+
+      SocketChannel sc;
+      long now = System.currentTimeMillis();
+      try{
+        while (admission.canAccept(now) && (sc = listener.accept()) != null){
+          if (!(admission.allow(sc.socket())))
+            continue;
+          sc.configureBlocking(false);
+          NioClient client = new NioClient(sc, NioChannelEngine.this);
+          if (tls != null){
+            SSLEngine engine = tls.createSSLEngine();
+            engine.setUseClientMode(false);
+            client.setTls(new TlsChannel(sc, engine, tlsTasks, new Runnable(){
+              @Override
+              public void run(){
+                resume(client);
+              }
+            }));
+          }
+          server.getMetrics().accepted();
+          admission.add(client, timers);
+          if (!(register(client)))
+            drop(client);
+        }
+      }catch(IOException e){
+        e.printStackTrace();
+      }
+      if (!(admission.canAccept(now)))
+        acceptKey.interestOps(0);
+    }
+
+    /**
+    * Read the protocol offer, if any, and the login, which is handed over to a worker.
+    * @param client The client to read from.
+    */
+    @Override
+    void read(NioClient client){
+
+      if (!(client.read())){
+        drop(client);
+        return;
+      }
+      Frame frame;
+      while (client.getKey().isValid()){
+        try{
+          if ((frame = client.nextFrame()) == null)
+            return;
+        }catch(IOException e){
+          drop(client);
+          return;
+        }
+        if (client.answerHello(frame, server.getMaxProtocol()))
+          continue;
+        admission.remove(client);
+        deregister(client);
+        Frame login = frame;
+        String params[] = ChatServer.loginParams(login);
+        route(new ChannelTask((params == null) ? "" : params[1].trim()){
+          @Override
+          void run(Worker worker){
+            worker.login(client, login);
+          }
+        });
+        return;
+      }
+    }
+
+    /**
+    * Close a connection that failed before logging in.
+    * @param client The failed client.
+    */
+    @Override
+    void drop(NioClient client){
+
+      admission.remove(client);
+      client.close();
+    }
+
+    /**
+    * Accept again if the admission now allows, such as once the deadlines of connections that failed to log
+    * in have closed them, and rebalance the workers if due.
+    */
+    @Override
+    void tick(){
+
+      long now = System.currentTimeMillis();
+      if (acceptKey.interestOps() == 0 && admission.canAccept(now))
+        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+      if (now - lastRebalance >= REBALANCE_INTERVAL){
+        lastRebalance = now;
+        rebalance();
+      }
+    }
+  }
+
+  /**
+  * An event loop serving the clients of the channels given to it.
+  */
+  class Worker extends Loop{
+
+    private final int index;
+    private long lastFlush = 0;
+
+    Worker(int index) throws IOException{
+      this.index = index;
+    }
+
+    /**
+    * Log in a client handed over by the acceptor, and serve it if it joins a channel.
+    * @param client The client, not registered with any loop.
+    * @param frame The login.
+    */
+    void login(NioClient client, Frame frame){
+
+      if (!(register(client))){
+        client.close();
+        return;
+      }
+      String channel = server.authenticate(client, frame);
+      if (channel == null)
+        return;
+      client.setChannelName(channel);
+      ChannelState ch = server.getChannel(channel);
+      Worker owner = this;
+      if (ch != null){
+        synchronized (routing){
+          owner = owners.putIfAbsent(ch, this);
+        }
+      }
+      if (owner != null && owner != this){ // The channel was created after the login was handed over.
+        deregister(client);
+        ArrayList<NioClient> moving = new ArrayList<NioClient>();
+        moving.add(client);
+        route(adoption(channel, moving));
+        return;
+      }
+      watch(client);
+      server.flushBroadcasts(channel);
+      read(client); // Messages sent right after the login.
+    }
+
+    /**
+    * Check on a logged in client every so often, dropping it if it has gone away without closing its
+    * connection. See {@code ChatServer.heartbeat()}.
+    * @param client The client, registered with this worker.
+    */
+    void watch(NioClient client){
+
+      int interval = server.getPingInterval();
+      if (interval == 0)
+        return;
+      TimerWheel.Timeout heartbeat = client.getHeartbeat();
+      if (heartbeat == null){
+        heartbeat = new TimerWheel.Timeout(new Runnable(){
+          @Override
+          public void run(){
+            ((Worker)client.getLoop()).beat(client); // Only ever scheduled on the wheel of the worker serving it.
+          }
+        });
+        client.setHeartbeat(heartbeat);
+      }
+      timers.schedule(heartbeat, interval);
+    }
+
+    /**
+    * Check on a client whose heartbeat is due, and schedule the next check.
+    * @param client The client.
+    */
+    private void beat(NioClient client){
+
+      if (client.getChannelName() == null || !(client.getChannel().isOpen()))
+        return;
+      long next = server.heartbeat(client, System.currentTimeMillis());
+      if (next < 0)
+        drop(client);
+      else
+        timers.schedule(client.getHeartbeat(), next);
+    }
+
+    /**
+    * Hand the clients of a channel over to another worker, along with the tasks queued for the channel, and
+    * have it serve the channel from then on.
+    * @param ch The channel.
+    * @param to The worker to serve it.
+    */
+    void release(ChannelState ch, Worker to){
+
+      synchronized (routing){
+        if (owners.get(ch) != this || to == this)
+          return;
+        ArrayList<NioClient> moving = new ArrayList<NioClient>();
+        for (Client c : ch.members()){
+          NioClient client = (NioClient)c;
+          if (client.getLoop() == this){
+            deregister(client);
+            moving.add(client);
+          }
+        }
+        ChannelTask adopt = adoption(ch.getName(), moving);
+        adopt.channel = ch;
+        adopt.worker = to;
+        to.execute(adopt);
+        Iterator<Runnable> iter = tasks.iterator();
+        while (iter.hasNext()){
+          Runnable task = iter.next();
+          if (task instanceof ChannelTask && ((ChannelTask)task).channel == ch){
+            iter.remove();
+            ((ChannelTask)task).worker = to;
+            to.execute(task);
+          }
+        }
+        owners.put(ch, to);
+      }
+      server.getMetrics().migrated();
+    }
+
+    /**
+    * Return a task registering the given clients of a channel with the worker running it.
+    */
+    private ChannelTask adoption(String channel, List<NioClient> clients){
+
+      return new ChannelTask(channel){
+        @Override
+        void run(Worker worker){
+          for (NioClient client : clients){
+            if (worker.register(client))
+              worker.watch(client);
+            else
+              worker.drop(client);
+          }
+        }
+      };
+    }
+
+    @Override
+    void read(NioClient client){
+
+      if (!(client.read())){
+        drop(client);
+        return;
+      }
+      Frame frame;
+      while (client.getKey().isValid()){
+        try{
+          if ((frame = client.nextFrame()) == null)
+            return;
+        }catch(IOException e){
+          drop(client);
+          return;
+        }
+        String channel = client.getChannelName();
+        boolean member = server.processMessage(channel, client, frame);
+        server.flushBroadcasts(channel);
+        if (!(member))
+          return;
+      }
+    }
+
+    /**
+    * Handle a client whose connection failed, treating it as though it sent {@code [quit]}.
+    * @param client The failed client.
+    */
+    @Override
+    void drop(NioClient client){
+
+      String channel = client.getChannelName();
+      if (channel == null){
+        client.close();
+        return;
+      }
+      client.setChannelName(null); // Already removed, should it be dropped again.
+      server.processMessage(channel, client, null);
+      server.flushBroadcasts(channel);
+    }
+
+    /**
+    * Send the notifications added by other threads, such as for blocked users, to the channels of this worker.
+    * Those added by the worker itself are sent right away.
+    */
+    @Override
+    void tick(){
+
+      long now = System.currentTimeMillis();
+      if (now - lastFlush < SELECT_TIMEOUT)
+        return;
+      lastFlush = now;
+      for (Map.Entry<ChannelState, Worker> e : owners.entrySet()){
+        if (e.getValue() == this && e.getKey().hasBroadcasts())
+          server.flushBroadcasts(e.getKey().getName());
+      }
+    }
+  }
+}
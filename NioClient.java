@@ -0,0 +1,485 @@
+package com.umarabdul.jschat;
+
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.List;
+
+
+/**
+* A non-blocking version of {@code Client}, used by the NIO engine. Data is read and written through a
+* {@code SocketChannel} using the same framing as the blocking client, encrypted by a {@code TlsChannel}
+* if the server uses TLS.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class NioClient extends Client{
+
+  private SocketChannel channel;
+  private SelectionKey key = null;
+  private ByteBuffer readBuffer;
+  private NioChannelEngine engine;
+  private volatile NioChannelEngine.Loop loop = null; // Event loop the client is served by.
+  private OutboundQueue<byte[]> pending; // Encoded messages waiting to be written.
+  private byte[] held = null; // A message taken from the queue that didn't fit the last write.
+  private ByteBuffer rest = null; // What the socket didn't take of the last write.
+  private final ByteBuffer[] record = new ByteBuffer[1]; // Data handed to TLS, which takes an array.
+  private boolean flushDue = false; // Whether the event loop is to write the client's messages at the end of its pass.
+  private String channelName = null;
+  private long acceptTime;
+  private TlsChannel tls = null;
+
+  private static final BufferPool BUFFERS = new BufferPool(MAX_BATCH, 4, true); // For writes made while no event loop serves the client.
+
+  /**
+  * Class constructor.
+  * @param channel A connected {@code SocketChannel}, already in non-blocking mode.
+  * @param engine Engine to notify when the connection is dropped while sending, {@code null} for none.
+  */
+  public NioClient(SocketChannel channel, NioChannelEngine engine){
+
+    super(channel);
+    this.channel = channel;
+    this.engine = engine;
+    readBuffer = ByteBuffer.allocate(1024);
+    pending = new OutboundQueue<byte[]>(Integer.MAX_VALUE, OutboundQueue.Policy.DROP_NEWEST);
+    acceptTime = System.currentTimeMillis();
+  }
+
+  /**
+  * Encrypt the connection with TLS. Must be called before anything is read or written.
+  * @param tls TLS state of the connection, in server mode.
+  */
+  public void setTls(TlsChannel tls){
+
+    this.tls = tls;
+    if (readBuffer.capacity() < tls.getApplicationBufferSize()) // Room for any record.
+      readBuffer = ByteBuffer.allocate(tls.getApplicationBufferSize());
+  }
+
+  /**
+  * Set the selection key of the wrapped channel. Needed for toggling write interest.
+  * @param key Key returned when registering the channel with a selector.
+  */
+  public void setKey(SelectionKey key){
+    this.key = key;
+  }
+
+  /**
+  * Set the event loop serving the client, which alone may read and write it.
+  * @param loop The event loop.
+  */
+  void setLoop(NioChannelEngine.Loop loop){
+    this.loop = loop;
+  }
+
+  /**
+  * Return the event loop serving the client.
+  * @return The event loop, {@code null} if none yet.
+  */
+  NioChannelEngine.Loop getLoop(){
+    return loop;
+  }
+
+  /**
+  * Note whether the event loop serving the client is to write its messages at the end of its pass. Only used
+  * by that loop.
+  * @param flushDue {@code true} if it is.
+  * @return The previous value.
+  */
+  boolean setFlushDue(boolean flushDue){
+
+    boolean was = this.flushDue;
+    this.flushDue = flushDue;
+    return was;
+  }
+
+  /**
+  * Return the selection key of the wrapped channel.
+  * @return The selection key, {@code null} if not registered.
+  */
+  public SelectionKey getKey(){
+    return key;
+  }
+
+  /**
+  * Return the wrapped socket channel.
+  * @return The {@code SocketChannel} object.
+  */
+  public SocketChannel getChannel(){
+    return channel;
+  }
+
+  /**
+  * Set the name of the channel the client was authenticated into.
+  * @param channelName Name of channel.
+  */
+  public void setChannelName(String channelName){
+    this.channelName = channelName;
+  }
+
+  /**
+  * Return the name of the channel the client was authenticated into.
+  * @return Name of channel, {@code null} if not yet authenticated.
+  */
+  public String getChannelName(){
+    return channelName;
+  }
+
+  /**
+  * Return the time the connection was accepted.
+  * @return Output of {@code System.currentTimeMillis()} at the time of accepting the connection.
+  */
+  public long getAcceptTime(){
+    return acceptTime;
+  }
+
+  /**
+  * Timeouts are not used in non-blocking mode, so this does nothing.
+  * @param timeout Ignored.
+  */
+  @Override
+  public void setTimeout(int timeout){}
+
+  /**
+  * Bound the queue of messages waiting to be written. No thread is needed, since the queue is drained
+  * by the engine when the socket becomes writable. Messages already queued are kept.
+  * @param capacity Maximum number of messages to queue.
+  * @param policy What to do when the queue is full.
+  * @param mode Ignored.
+  */
+  @Override
+  public void startOutboundQueue(int capacity, OutboundQueue.Policy policy, ExecutionMode mode){
+
+    OutboundQueue<byte[]> queue = new OutboundQueue<byte[]>(capacity, policy);
+    byte[] bytes;
+    while ((bytes = pending.poll()) != null)
+      queue.offer(bytes);
+    pending = queue;
+  }
+
+  /**
+  * Return the number of messages waiting to be written, counting what's left of a write as one.
+  * @return Queue depth.
+  */
+  @Override
+  public int getQueueDepth(){
+    return pending.size() + ((held == null) ? 0 : 1) + ((rest == null) ? 0 : 1);
+  }
+
+  /**
+  * Return the number of writes made to the socket, including those of TLS handshakes.
+  * @return Count of writes.
+  */
+  @Override
+  public long getWriteCount(){
+    return (tls == null) ? super.getWriteCount() : tls.getWrites();
+  }
+
+  /**
+  * Return the number of messages dropped because the outbound queue was full.
+  * @return Count of dropped messages.
+  */
+  @Override
+  public long getDroppedCount(){
+    return pending.getDropped();
+  }
+
+  /**
+  * Queue a frame for sending. It's written once the event loop serving the client is done with the connections
+  * ready, along with everything else sent to the client meanwhile, or right away if no loop serves the client.
+  * What's queued is the frame's encoded form, shared with its other recipients, so queueing it costs no
+  * allocation. Must be called from the event loop serving it. If the connection fails, or the queue overflows
+  * with the {@code DISCONNECT} policy, the client is closed and handed to the engine for removal from its channel.
+  * @param frame Frame to send.
+  * @return {@code true} on success.
+  */
+  @Override
+  protected boolean transmit(Frame frame){
+
+    try{
+      if (pending.offer(encode(frame)) && flushSoon())
+        return true;
+    }catch(Exception e){}
+    return failed();
+  }
+
+  /**
+  * Queue frames for sending together, to be written as by {@code transmit()}. Must be called from the event
+  * loop serving it.
+  * @param frames Frames to send, in order.
+  * @return {@code true} on success.
+  */
+  @Override
+  protected boolean transmitAll(List<Frame> frames){
+
+    try{
+      for (Frame frame : frames){
+        if (!(pending.offer(encode(frame))))
+          return failed();
+      }
+      if (flushSoon())
+        return true;
+    }catch(Exception e){}
+    return failed();
+  }
+
+  /**
+  * Have the event loop serving the client write its messages at the end of its current pass, or write them
+  * now if none serves it.
+  * @return {@code false} on failure.
+  */
+  private boolean flushSoon(){
+
+    NioChannelEngine.Loop l = loop;
+    if (l == null)
+      return flush();
+    l.flushLater(this);
+    return true;
+  }
+
+  /**
+  * Write pending messages as {@code flush()} does, and on failure, drop the connection and hand the client
+  * to the engine for removal from its channel.
+  * @return {@code false} on failure.
+  */
+  boolean flushOrFail(){
+    return flush() || failed();
+  }
+
+  /**
+  * Drop the connection after a failed send, and hand the client to the engine for removal from its channel.
+  * @return {@code false}, for the caller to return.
+  */
+  private boolean failed(){
+
+    sendFailed();
+    close();
+    if (engine != null)
+      engine.reap(this);
+    return false;
+  }
+
+  /**
+  * Write pending messages to the socket until it would block. The messages are copied into a buffer taken
+  * from the pool of the event loop serving the client, up to {@code MAX_BATCH} bytes of them, which is written
+  * with a single call and given back, so writing allocates nothing. If the socket doesn't take all of it, what's
+  * left is copied aside, and written first once the socket is writable again; write interest is enabled on the
+  * selection key until then, and disabled once the queue is drained. A message larger than a buffer is written
+  * on its own. With TLS, the buffer is encrypted into as few records as fit, and the key has no interest while
+  * the handshake waits on delegated tasks.
+  * @return {@code false} on failure.
+  */
+  public boolean flush(){
+
+    try{
+      boolean taken = true;
+      while (taken && (rest != null || held != null || pending.size() != 0)){
+        if (rest != null){
+          taken = write(rest) && !(rest.hasRemaining()); // The socket is full, or the handshake has to progress first.
+          if (!(rest.hasRemaining()))
+            rest = null;
+          continue;
+        }
+        NioChannelEngine.Loop l = loop;
+        BufferPool pool = (l == null) ? BUFFERS : l.buffers;
+        ByteBuffer buf = pool.acquire();
+        try{
+          fill(buf);
+          buf.flip();
+          if (!(buf.hasRemaining())){ // The next message is larger than a buffer.
+            rest = ByteBuffer.wrap(held);
+            held = null;
+            continue;
+          }
+          taken = write(buf) && !(buf.hasRemaining());
+          if (buf.hasRemaining())
+            rest = ByteBuffer.allocate(buf.remaining()).put(buf).flip();
+        }finally{
+          pool.release(buf);
+        }
+      }
+      boolean blocked = (tls == null) ? (rest != null) : !(tls.flush()); // Messages held up by the handshake wait for a read.
+      if (key != null && key.isValid()){
+        int ops = (blocked) ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ;
+        if (tls != null && tls.isBusy())
+          ops = 0;
+        if (key.interestOps() != ops)
+          key.interestOps(ops);
+      }
+      return true;
+    }catch(Exception e){
+      return false;
+    }
+  }
+
+  /**
+  * Copy queued messages into a buffer, as many as fit. The first that doesn't is held for the next buffer.
+  */
+  private void fill(ByteBuffer buf){
+
+    while (true){
+      if (held == null && (held = pending.poll()) == null)
+        return;
+      if (held.length > buf.remaining())
+        return;
+      buf.put(held);
+      held = null;
+    }
+  }
+
+  /**
+  * Write data to the socket, or with TLS, hand it to be encrypted and written.
+  * @return {@code false} if TLS can't take it until the handshake progresses.
+  */
+  private boolean write(ByteBuffer buf) throws IOException{
+
+    if (tls != null){
+      record[0] = buf;
+      try{
+        return tls.wrap(record, 0, 1);
+      }finally{
+        record[0] = null;
+      }
+    }
+    channel.write(buf);
+    wrote();
+    return true;
+  }
+
+  /**
+  * Switch the connection to blocking mode and return a blocking client for it, which carries on with the
+  * protocol agreed and the data read so far. Messages waiting to be written are written first. The connection
+  * must no longer be registered with any selector, nor use TLS, and this client is not to be used after.
+  * @return The blocking client.
+  * @throws IOException on failure.
+  */
+  Client toBlocking() throws IOException{
+
+    channel.configureBlocking(true);
+    key = null;
+    if (!(flush()))
+      throw new IOException("write failed");
+    readBuffer.flip();
+    byte[] buffered = new byte[readBuffer.remaining()];
+    readBuffer.get(buffered);
+    return new Client(channel.socket(), this, buffered);
+  }
+
+  /**
+  * Read available data from the socket into the read buffer. Frames are then taken with {@code nextFrame()}.
+  * With TLS, handshake records this produces are written, along with messages that waited for the handshake.
+  * @return {@code false} on EOF or failure.
+  */
+  public boolean read(){
+
+    received();
+    try{
+      if (tls != null)
+        return tls.read(readBuffer) && flush();
+      int n;
+      while ((n = channel.read(readBuffer)) > 0){
+        if (!(readBuffer.hasRemaining()))
+          break;
+      }
+      return n >= 0;
+    }catch(IOException e){
+      return false;
+    }
+  }
+
+  /**
+  * Decode the next complete frame in the read buffer, using the protocol currently in use. Frames are
+  * taken one at a time since the protocol may change after the first one.
+  * @return The frame, {@code null} if more data is needed.
+  * @throws IOException on malformed input.
+  */
+  public Frame nextFrame() throws IOException{
+
+    Frame frame = decodeNext();
+    while (frame == null && tls != null && tls.hasInput()){ // Records read that didn't fit the buffer.
+      int n = tls.unwrap(readBuffer);
+      if (n == -1) // Not even one, so the frame in the buffer is smaller than a record.
+        readBuffer = grow(readBuffer, tls.getApplicationBufferSize());
+      else if (n <= 0)
+        break;
+      frame = decodeNext();
+    }
+    return frame;
+  }
+
+  /**
+  * Decode the next complete frame in the read buffer.
+  * @return The frame, {@code null} if more data is needed.
+  */
+  private Frame decodeNext() throws IOException{
+
+    readBuffer.flip();
+    try{
+      int size = Frame.frameSize(readBuffer, getProtocol());
+      if (size > readBuffer.capacity()){ // Grow the buffer to fit the frame.
+        if (size > Frame.MAX_PAYLOAD + Frame.HEADER_SIZE)
+          throw new IOException("frame too large: " + size);
+        ByteBuffer larger = ByteBuffer.allocate(size);
+        larger.put(readBuffer);
+        readBuffer = larger;
+        readBuffer.flip();
+        return null;
+      }
+      return decode(Frame.decode(readBuffer, getProtocol()));
+    }finally{
+      readBuffer.compact();
+    }
+  }
+
+  /**
+  * Return a copy of a buffer being filled, with room for the given number of bytes more.
+  */
+  private static ByteBuffer grow(ByteBuffer buf, int more){
+
+    ByteBuffer larger = ByteBuffer.allocate(buf.capacity() + more);
+    buf.flip();
+    larger.put(buf);
+    return larger;
+  }
+
+  /**
+  * Data is read through {@code read()} in non-blocking mode, so this always returns {@code Frame.EMPTY}.
+  * @return {@code Frame.EMPTY}.
+  */
+  @Override
+  public Frame receiveFrame(){
+    return Frame.EMPTY;
+  }
+
+  /**
+  * Close the connection. Messages still waiting for the end of the loop's pass, such as a refusal sent just
+  * before, are written first, as far as the socket takes them. Called from a thread other than the event loop
+  * serving the client, such as the admin panel's, the close is handed to that loop, which alone may write,
+  * unless it has quit.
+  */
+  @Override
+  public void close(){
+
+    NioChannelEngine.Loop l = loop;
+    if (l != null && !(l.inLoop()) && l.closeLater(this))
+      return;
+    flush();
+    pending.close();
+    endCompression();
+    TimerWheel.Timeout heartbeat = getHeartbeat();
+    if (heartbeat != null && l != null && l.inLoop()) // Other threads leave it to find the client closed.
+      heartbeat.cancel();
+    try{
+      if (key != null)
+        key.cancel();
+      if (tls != null)
+        tls.close();
+      channel.close();
+    }catch(IOException e){}
+  }
+}
@@ -0,0 +1,131 @@
+package com.umarabdul.jschat;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+
+/**
+* A bounded queue of messages waiting to be written to a client. When the queue is full, the configured
+* overflow policy decides whether the oldest message, the newest message, or the client itself is dropped.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class OutboundQueue<T>{
+
+  /**
+  * What to do when a message is offered to a full queue.
+  */
+  public enum Policy{
+    DROP_OLDEST, // Discard the message at the head of the queue to make room.
+    DROP_NEWEST, // Discard the message being offered.
+    DISCONNECT // Refuse the message, and disconnect the slow client.
+  }
+
+  private ArrayDeque<T> items;
+  private int capacity;
+  private Policy policy;
+  private long dropped = 0;
+  private boolean closed = false;
+
+  /**
+  * Class constructor.
+  * @param capacity Maximum number of messages to hold.
+  * @param policy Overflow policy.
+  */
+  public OutboundQueue(int capacity, Policy policy){
+
+    this.capacity = capacity;
+    this.policy = policy;
+    items = new ArrayDeque<T>(Math.min(capacity, 64));
+  }
+
+  /**
+  * Add a message to the tail of the queue, applying the overflow policy if it's full.
+  * @param item Message to add.
+  * @return {@code false} if the queue is closed, or is full and the policy is {@code DISCONNECT}.
+  */
+  public synchronized boolean offer(T item){
+
+    if (closed)
+      return false;
+    if (items.size() >= capacity){
+      if (policy == Policy.DISCONNECT)
+        return false;
+      dropped++;
+      if (policy == Policy.DROP_NEWEST)
+        return true;
+      items.poll();
+    }
+    items.add(item);
+    notifyAll();
+    return true;
+  }
+
+  /**
+  * Add messages to the tail of the queue in one step, so that a thread taking them finds them all queued.
+  * The overflow policy is applied to each message in turn.
+  * @param list Messages to add, in order.
+  * @return {@code false} if the queue is closed, or overflowed and the policy is {@code DISCONNECT}.
+  */
+  public synchronized boolean offerAll(List<T> list){
+
+    for (T item : list){
+      if (!(offer(item)))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+  * Remove the message at the head of the queue, waiting for one if the queue is empty.
+  * @return The message, {@code null} if the queue was closed.
+  */
+  public synchronized T take(){
+
+    while (items.isEmpty() && !closed){
+      try{
+        wait();
+      }catch(InterruptedException e){
+        return null;
+      }
+    }
+    return closed ? null : items.poll();
+  }
+
+  /**
+  * Remove the message at the head of the queue, without waiting.
+  * @return The message, {@code null} if the queue is empty.
+  */
+  public synchronized T poll(){
+    return items.poll();
+  }
+
+  /**
+  * Return the number of messages in the queue.
+  * @return Queue depth.
+  */
+  public synchronized int size(){
+    return items.size();
+  }
+
+  /**
+  * Return the number of messages discarded due to overflow.
+  * @return Count of dropped messages.
+  */
+  public synchronized long getDropped(){
+    return dropped;
+  }
+
+  /**
+  * Discard all messages and wake up any thread waiting in {@code take()}.
+  */
+  public synchronized void close(){
+
+    closed = true;
+    items.clear();
+    notifyAll();
+  }
+}
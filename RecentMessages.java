@@ -0,0 +1,135 @@
+package com.umarabdul.jschat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+* The most recent messages of a channel, kept in memory to be sent to users as they join. A fixed number
+* of slots is allocated up front and reused in turn, and the messages held are also limited by their total
+* size, so the memory used by a channel is bounded however busy it gets. The frames are kept as broadcast,
+* with their encodings, so sending the backlog writes the same bytes the channel's users received.
+*
+* Messages are added by one writer at a time, and read without locking: every slot carries the sequence
+* number of the message in it, which a reader checks before and after taking the message, skipping any slot
+* overwritten meanwhile. A reader never holds up the writer, nor the writer a reader.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class RecentMessages{
+
+  private static final long EMPTY = -1; // Sequence number of a slot being written, or of none.
+
+  private final int capacity;
+  private final long maxBytes;
+  private final AtomicReferenceArray<Frame> frames;
+  private final AtomicLongArray seqs; // Sequence number of the message in each slot.
+  private volatile long head = 0; // Sequence number of the next message.
+  private volatile long tail = 0; // Sequence number of the oldest message kept.
+  private long bytes = 0; // Payload bytes of the messages kept, tracked by the writer.
+
+  /**
+  * Class constructor.
+  * @param capacity Number of messages to keep.
+  * @param maxBytes Total payload bytes to keep; older messages are dropped to stay under it.
+  */
+  public RecentMessages(int capacity, long maxBytes){
+
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity out of range!");
+    this.capacity = capacity;
+    this.maxBytes = maxBytes;
+    frames = new AtomicReferenceArray<Frame>(capacity);
+    seqs = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++)
+      seqs.set(i, EMPTY);
+  }
+
+  /**
+  * Return the number of messages kept at most.
+  * @return Slot count.
+  */
+  public int getCapacity(){
+    return capacity;
+  }
+
+  /**
+  * Return the total payload size of the messages kept at most.
+  * @return Size in bytes.
+  */
+  public long getMaxBytes(){
+    return maxBytes;
+  }
+
+  /**
+  * Add a message, dropping the oldest ones when full. Must not be called by more than one thread at a time.
+  * @param frame The message.
+  */
+  public void add(Frame frame){
+
+    long seq = head;
+    int slot = (int)(seq % capacity);
+    if (seq - tail == capacity) // Full, the slot holds the oldest message.
+      drop();
+    seqs.set(slot, EMPTY);
+    frames.set(slot, frame);
+    seqs.set(slot, seq);
+    bytes += frame.getPayload().length;
+    head = seq + 1;
+    while (bytes > maxBytes && head - tail > 1)
+      drop();
+  }
+
+  /**
+  * Drop the oldest message.
+  */
+  private void drop(){
+
+    int slot = (int)(tail % capacity);
+    Frame old = frames.get(slot);
+    seqs.set(slot, EMPTY);
+    frames.set(slot, null);
+    bytes -= old.getPayload().length;
+    tail++;
+  }
+
+  /**
+  * Return the sequence number of the next message.
+  * @return Number of messages ever added.
+  */
+  public long getNextSequence(){
+    return head;
+  }
+
+  /**
+  * Return the number of messages kept.
+  * @return Message count.
+  */
+  public int size(){
+    return (int)(head - tail);
+  }
+
+  /**
+  * Send a client the messages kept from the given sequence number on. Messages added meanwhile are not
+  * sent, and can be caught up on by calling again with the returned sequence number.
+  * @param client Client to send to.
+  * @param from Sequence number of the first message wanted, {@code 0} for all kept.
+  * @return Sequence number following the last message sent.
+  */
+  public long replay(Client client, long from){
+
+    long end = head;
+    for (long seq = Math.max(from, tail); seq < end; seq++){
+      int slot = (int)(seq % capacity);
+      if (seqs.get(slot) != seq)
+        continue;
+      Frame frame = frames.get(slot);
+      if (frame != null && seqs.get(slot) == seq)
+        client.send(frame);
+    }
+    return end;
+  }
+}
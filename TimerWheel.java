@@ -0,0 +1,201 @@
+package com.umarabdul.jschat;
+
+
+/**
+* A hashed timer wheel, for the deadlines of every connection at once: logins, heartbeats and the like.
+*
+* Time is cut into ticks of {@code tick} milliseconds, and the wheel into a power of two of slots, one per
+* tick, round and round. A timeout goes in the slot of the tick it's due on, in a doubly linked list, so
+* scheduling and cancelling are O(1) however many are pending; timeouts due more than a turn of the wheel
+* away share the slot with nearer ones and are passed over until their turn comes. Each call to
+* {@code advance()} visits the slots of the ticks elapsed since the last, and runs the timeouts due.
+*
+* The wheel has no thread of its own: it's advanced by the thread that owns it, such as an event loop after
+* every select, which alone may schedule and cancel its timeouts. Timeouts run up to a tick, plus however
+* long the owner goes between advances, late.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class TimerWheel{
+
+  public static final int DEFAULT_TICK = 100; // Length of a tick, in milliseconds.
+  public static final int DEFAULT_SLOTS = 512; // Slots of the wheel, a turn of about 51 seconds at the default tick.
+
+  private final long tick;
+  private final Timeout[] slots; // Sentinel of each slot's list.
+  private final int mask;
+  private final long start; // When tick 0 began, from System.currentTimeMillis().
+  private long ticks = 0; // Ticks elapsed as of the last advance.
+  private int size = 0;
+
+  /**
+  * A task to run once its time comes. A timeout can be scheduled again once it has run or been cancelled,
+  * so a connection's deadline costs no allocation as it's pushed back.
+  */
+  public static class Timeout{
+
+    private static final int IDLE = 0;
+    private static final int PENDING = 1;
+    private static final int FIRING = 2; // Due, and about to run.
+
+    private final Runnable task;
+    private TimerWheel wheel = null;
+    private int state = IDLE;
+    private long deadline; // Tick the timeout is due on.
+    private Timeout prev = null;
+    private Timeout next = null;
+    private Timeout fireNext = null; // The one due after this, in the same advance.
+
+    /**
+    * Class constructor.
+    * @param task The task to run.
+    */
+    public Timeout(Runnable task){
+      this.task = task;
+    }
+
+    /**
+    * Cancel the timeout, if it's pending.
+    * @return {@code false} if it wasn't.
+    */
+    public boolean cancel(){
+
+      if (state == FIRING){
+        state = IDLE;
+        return true;
+      }
+      if (state != PENDING)
+        return false;
+      prev.next = next;
+      next.prev = prev;
+      prev = next = null;
+      wheel.size--;
+      state = IDLE;
+      return true;
+    }
+
+    /**
+    * Check if the timeout is waiting to run.
+    * @return {@code true} if it is.
+    */
+    public boolean isPending(){
+      return state != IDLE;
+    }
+  }
+
+  /**
+  * Class constructor, with the default tick and slots.
+  */
+  public TimerWheel(){
+    this(DEFAULT_TICK, DEFAULT_SLOTS);
+  }
+
+  /**
+  * Class constructor.
+  * @param tick Length of a tick, in milliseconds.
+  * @param slots Number of slots, a power of two.
+  * @throws IllegalArgumentException if the tick is less than 1, or the slots not a power of two.
+  */
+  public TimerWheel(long tick, int slots){
+
+    if (tick < 1 || slots < 1 || Integer.bitCount(slots) != 1)
+      throw new IllegalArgumentException("bad timer wheel dimensions!");
+    this.tick = tick;
+    this.slots = new Timeout[slots];
+    for (int i = 0; i < slots; i++){
+      Timeout head = new Timeout(null);
+      head.prev = head.next = head;
+      this.slots[i] = head;
+    }
+    mask = slots - 1;
+    start = System.currentTimeMillis();
+  }
+
+  /**
+  * Schedule a task.
+  * @param task The task to run.
+  * @param delay Time from now to run it, in milliseconds.
+  * @return The timeout, to cancel it with.
+  */
+  public Timeout schedule(Runnable task, long delay){
+
+    Timeout timeout = new Timeout(task);
+    schedule(timeout, delay);
+    return timeout;
+  }
+
+  /**
+  * Schedule a timeout, cancelling it first if it's pending, on this wheel or another.
+  * @param timeout The timeout.
+  * @param delay Time from now to run it, in milliseconds.
+  */
+  public void schedule(Timeout timeout, long delay){
+
+    timeout.cancel();
+    long due = (System.currentTimeMillis() + Math.max(delay, 0) - start + tick - 1) / tick;
+    timeout.deadline = Math.max(due, ticks + 1);
+    Timeout head = slots[(int)(timeout.deadline & mask)];
+    timeout.prev = head.prev;
+    timeout.next = head;
+    head.prev.next = timeout;
+    head.prev = timeout;
+    timeout.wheel = this;
+    timeout.state = Timeout.PENDING;
+    size++;
+  }
+
+  /**
+  * Run the timeouts due by the given time, in the order of the ticks they're due on. The tasks may schedule
+  * and cancel timeouts, their own included.
+  * @param now Output of {@code System.currentTimeMillis()}.
+  * @return The number run.
+  */
+  public int advance(long now){
+
+    long target = (now - start) / tick;
+    if (target - ticks > slots.length) // A whole turn visits every slot, whatever is due.
+      ticks = target - slots.length;
+    int fired = 0;
+    while (ticks < target){
+      ticks++;
+      Timeout head = slots[(int)(ticks & mask)];
+      Timeout due = null;
+      Timeout last = null;
+      for (Timeout t = head.next; t != head; ){
+        Timeout next = t.next;
+        if (t.deadline <= ticks){
+          t.cancel();
+          t.state = Timeout.FIRING;
+          if (last == null)
+            due = t;
+          else
+            last.fireNext = t;
+          last = t;
+        }
+        t = next;
+      }
+      while (due != null){
+        Timeout t = due;
+        due = t.fireNext;
+        t.fireNext = null;
+        if (t.state != Timeout.FIRING) // Cancelled or scheduled again by an earlier one.
+          continue;
+        t.state = Timeout.IDLE;
+        t.task.run();
+        fired++;
+      }
+    }
+    return fired;
+  }
+
+  /**
+  * Return the number of timeouts pending.
+  * @return Pending timeouts.
+  */
+  public int size(){
+    return size;
+  }
+}
@@ -0,0 +1,322 @@
+package com.umarabdul.jschat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import javax.net.ssl.*;
+
+
+/**
+* TLS over a non-blocking {@code SocketChannel}, through an {@code SSLEngine}, for the NIO engine. Data read
+* from the socket is decrypted into the caller's buffer, and data given to be sent is encrypted into a buffer
+* of outgoing records written as the socket accepts them. Neither ever blocks, so a single thread can carry
+* thousands of connections through their handshakes at once.
+*
+* The expensive parts of a handshake, the key exchange and signatures, are the engine's delegated tasks. They
+* are run on the given executor, off the event loop, which is told to carry on with the connection once
+* they're done; until then, the connection does nothing.
+*
+* Sessions are cached by the {@code SSLContext} for {@code SESSION_TIMEOUT}, and TLS 1.3 clients are also
+* given session tickets, so a client reconnecting with the same context resumes its session, skipping the
+* certificate and the most expensive crypto.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class TlsChannel{
+
+  public static final int SESSION_CACHE_SIZE = 20000; // Sessions kept for resumption by the server.
+  public static final int SESSION_TIMEOUT = 24 * 3600; // Time a session can be resumed for, in seconds.
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final SocketChannel channel;
+  private final SSLEngine engine;
+  private final Executor tasks;
+  private final Runnable resume;
+  private ByteBuffer netIn; // Records read, not yet decrypted.
+  private ByteBuffer netOut; // Records encrypted, not yet written.
+  private volatile boolean running = false; // Whether delegated tasks are in progress.
+  private volatile long writes = 0; // Writes to the socket, by the thread using the channel.
+
+  /**
+  * Class constructor.
+  * @param channel A connected {@code SocketChannel}, in non-blocking mode.
+  * @param engine Engine for the connection, in server or client mode.
+  * @param tasks Executor to run the delegated tasks of handshakes on, {@code null} to run them in the caller.
+  * @param resume Called from the executor once delegated tasks are done, to have the connection read again.
+  */
+  public TlsChannel(SocketChannel channel, SSLEngine engine, Executor tasks, Runnable resume){
+
+    this.channel = channel;
+    this.engine = engine;
+    this.tasks = tasks;
+    this.resume = resume;
+    int packet = engine.getSession().getPacketBufferSize();
+    netIn = ByteBuffer.allocate(packet);
+    netOut = ByteBuffer.allocate(packet);
+  }
+
+  /**
+  * Create a context for a server, with the key and certificate in the given keystore. The keystore type,
+  * PKCS12 or JKS, is detected.
+  * @param keystore Keystore file.
+  * @param password Password of the keystore and its key.
+  * @return The context.
+  * @throws IOException if the keystore can't be read, or holds no usable key.
+  */
+  public static SSLContext createContext(File keystore, char[] password) throws IOException{
+
+    try{
+      KeyStore ks = KeyStore.getInstance(keystore, password);
+      KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      kmf.init(ks, password);
+      SSLContext ctx = SSLContext.getInstance("TLS");
+      ctx.init(kmf.getKeyManagers(), null, null);
+      SSLSessionContext sessions = ctx.getServerSessionContext();
+      sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+      sessions.setSessionTimeout(SESSION_TIMEOUT);
+      return ctx;
+    }catch(GeneralSecurityException e){
+      throw new IOException("Unable to load " + keystore + ": " + e.getMessage());
+    }
+  }
+
+  /**
+  * Read what the socket has, and decrypt as much of it as fits into the given buffer, carrying on the handshake
+  * as needed. Handshake records to send are left for {@code flush()}.
+  * @param dst Buffer to decrypt into.
+  * @return {@code false} on EOF, or if the peer closed the session.
+  * @throws IOException on failure, including a failed handshake.
+  */
+  public boolean read(ByteBuffer dst) throws IOException{
+
+    if (running)
+      return true;
+    if (!(netIn.hasRemaining())) // A record larger than the session said, allowed by some peers.
+      netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+    int n = channel.read(netIn);
+    return unwrap(dst) != -2 && n >= 0;
+  }
+
+  /**
+  * Decrypt records already read into the given buffer, carrying on the handshake as needed.
+  * @param dst Buffer to decrypt into.
+  * @return Bytes decrypted, {@code -1} if the buffer had no room for the next record, {@code -2} if the peer closed the session.
+  * @throws IOException on failure.
+  */
+  public int unwrap(ByteBuffer dst) throws IOException{
+
+    if (running || !(handshake())) // Such as the records to send once delegated tasks are done.
+      return 0;
+    int produced = 0;
+    while (!(running) && netIn.position() > 0){
+      netIn.flip();
+      SSLEngineResult r;
+      try{
+        r = engine.unwrap(netIn, dst);
+      }finally{
+        netIn.compact();
+      }
+      produced += r.bytesProduced();
+      switch (r.getStatus()){
+        case CLOSED:
+          return -2;
+        case BUFFER_OVERFLOW:
+          return (produced == 0) ? -1 : produced;
+        case BUFFER_UNDERFLOW: // The rest of the record is still to come.
+          return produced;
+        default:
+          break;
+      }
+      if (!(handshake()))
+        break;
+      if (r.bytesConsumed() == 0 && r.bytesProduced() == 0)
+        break;
+    }
+    return produced;
+  }
+
+  /**
+  * Carry on the handshake as far as it goes without more data from the peer, encrypting the records to send.
+  * @return {@code false} if waiting on delegated tasks, or on the socket to take more records.
+  */
+  private boolean handshake() throws IOException{
+
+    while (true){
+      switch (engine.getHandshakeStatus()){
+        case NEED_TASK:
+          runTasks();
+          if (running)
+            return false;
+          break;
+        case NEED_WRAP:
+          SSLEngineResult r = engine.wrap(EMPTY, netOut);
+          if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+            return false;
+          if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !(flush()))
+            return false;
+          break;
+        default:
+          return true;
+      }
+    }
+  }
+
+  /**
+  * Run the delegated tasks of the handshake on the executor, then have the connection carried on.
+  */
+  private void runTasks(){
+
+    final ArrayList<Runnable> list = new ArrayList<Runnable>();
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null)
+      list.add(task);
+    if (tasks == null){
+      for (Runnable t : list)
+        t.run();
+      return;
+    }
+    running = true;
+    tasks.execute(new Runnable(){
+      @Override
+      public void run(){
+        try{
+          for (Runnable t : list)
+            t.run();
+        }finally{
+          running = false;
+          resume.run();
+        }
+      }
+    });
+  }
+
+  /**
+  * Encrypt data to send, gathered from a number of buffers into as few records as fit, writing records to the
+  * socket whenever the outgoing buffer fills up.
+  * @param srcs Data to send; their positions are advanced past what was taken.
+  * @param offset Index of the first buffer.
+  * @param length Number of buffers.
+  * @return {@code true} if all of it was taken, {@code false} if the socket is full, or the handshake has to
+  * progress first, in which case the rest should be given again later.
+  * @throws IOException on failure.
+  */
+  public boolean wrap(ByteBuffer[] srcs, int offset, int length) throws IOException{
+
+    while (hasRemaining(srcs, offset, length)){
+      if (running || !(handshake()))
+        return false;
+      SSLEngineResult r = engine.wrap(srcs, offset, length, netOut);
+      switch (r.getStatus()){
+        case CLOSED:
+          throw new IOException("TLS session closed");
+        case BUFFER_OVERFLOW:
+          if (!(flush()))
+            return false;
+          break;
+        default:
+          if (r.bytesConsumed() == 0 && r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+            return false; // Application data waits for the handshake to finish.
+      }
+    }
+    return true;
+  }
+
+  /**
+  * Write the encrypted records waiting to be sent, as far as the socket accepts them.
+  * @return {@code true} if none is left.
+  * @throws IOException on failure.
+  */
+  public boolean flush() throws IOException{
+
+    if (netOut.position() == 0)
+      return true;
+    netOut.flip();
+    try{
+      channel.write(netOut);
+      writes++;
+    }finally{
+      netOut.compact();
+    }
+    return netOut.position() == 0;
+  }
+
+  /**
+  * Check if encrypted records are waiting for the socket to accept them.
+  * @return {@code true} if some are.
+  */
+  public boolean hasOutput(){
+    return netOut.position() != 0;
+  }
+
+  /**
+  * Check if records were read and not yet decrypted, such as when the caller's buffer was full.
+  * @return {@code true} if some were.
+  */
+  public boolean hasInput(){
+    return netIn.position() != 0;
+  }
+
+  /**
+  * Return the number of writes made to the socket.
+  * @return Count of writes.
+  */
+  public long getWrites(){
+    return writes;
+  }
+
+  /**
+  * Check if the handshake is waiting on delegated tasks, during which the connection should not be read or written.
+  * @return {@code true} if it is.
+  */
+  public boolean isBusy(){
+    return running;
+  }
+
+  /**
+  * Return the buffer size needed to decrypt any record of the session.
+  * @return Size in bytes.
+  */
+  public int getApplicationBufferSize(){
+    return engine.getSession().getApplicationBufferSize();
+  }
+
+  /**
+  * Send the peer a close notification, if the socket takes it right away. The socket is left open.
+  */
+  public void close(){
+
+    engine.closeOutbound();
+    try{
+      if (!(running))
+        handshake();
+      flush();
+    }catch(IOException e){}
+  }
+
+  private static boolean hasRemaining(ByteBuffer[] bufs, int offset, int length){
+
+    for (int i = offset; i < offset + length; i++){
+      if (bufs[i].hasRemaining())
+        return true;
+    }
+    return false;
+  }
+
+  /**
+  * Return a copy of a buffer, in the same mode, with room for the given number of bytes more.
+  */
+  private static ByteBuffer grow(ByteBuffer buf, int more){
+
+    ByteBuffer larger = ByteBuffer.allocate(buf.capacity() + more);
+    buf.flip();
+    larger.put(buf);
+    return larger;
+  }
+}
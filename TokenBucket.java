@@ -0,0 +1,53 @@
+package com.umarabdul.jschat;
+
+
+/**
+* A token bucket: up to {@code burst} events at once, then {@code rate} a second. The rate and burst are given
+* with every call rather than kept, so limits changed at runtime apply to every bucket at once, and a bucket
+* costs two fields. Taking a token is O(1) and allocates nothing.
+*
+* Not thread-safe; callers sharing a bucket between threads lock it.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class TokenBucket{
+
+  private double tokens = Double.MAX_VALUE; // Full, whatever the burst.
+  private long last = System.nanoTime(); // When tokens were last added.
+
+  /**
+  * Take a token, if there's one.
+  * @param rate Tokens added per second.
+  * @param burst Most tokens held.
+  * @param now Output of {@code System.nanoTime()}.
+  * @return {@code false} if there was none.
+  */
+  public boolean take(double rate, int burst, long now){
+
+    refill(rate, burst, now);
+    if (tokens < 1)
+      return false;
+    tokens--;
+    return true;
+  }
+
+  /**
+  * Check if the bucket has filled up, so it's no different from a new one.
+  * @param rate Tokens added per second.
+  * @param burst Most tokens held.
+  * @param now Output of {@code System.nanoTime()}.
+  * @return {@code true} if full.
+  */
+  public boolean isFull(double rate, int burst, long now){
+    return tokens + (now - last) * rate / 1e9 >= burst;
+  }
+
+  private void refill(double rate, int burst, long now){
+
+    tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+    last = now;
+  }
+}
@@ -0,0 +1,20 @@
+#!/bin/bash
+
+# Compile JSChat and the benchmarks, then run the given benchmark.
+# Usage: ./bench.sh <BenchmarkClass> [args...]
+
+if [ $# -lt 1 ]; then
+  echo "Usage: $0 <BenchmarkClass> [args...]"
+  echo "Available benchmarks:"
+  ls bench/*.java | xargs -n1 basename | sed 's/\.java$//;s/^/  /'
+  exit 1
+fi
+BUILD=$(mktemp -d)
+echo "Compiling JSChat and benchmarks..."
+javac *.java bench/*.java -d $BUILD || exit 1
+BENCH=$1
+shift
+java $JAVA_OPTS -cp $BUILD com.umarabdul.jschat.bench.$BENCH "$@"
+STATUS=$?
+rm -rf $BUILD
+exit $STATUS
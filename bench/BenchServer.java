@@ -0,0 +1,92 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.Client;
+import com.umarabdul.jschat.Frame;
+
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.io.*;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+
+/**
+* Fixtures shared by the benchmarks that run a server in their own process.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class BenchServer{
+
+  /**
+  * Start a server in this process, on a free loopback port unless configured otherwise, and wait until it
+  * accepts connections. The server runs on a daemon thread until stopped.
+  * @param configure Sets up the server before it starts, such as its engine and channels.
+  * @return The running server.
+  * @throws InterruptedException if interrupted while waiting.
+  * @throws IllegalStateException if the server failed to start.
+  */
+  public static ChatServer startServer(Consumer<ChatServer> configure) throws InterruptedException{
+
+    ChatServer server = new ChatServer();
+    server.setHost("127.0.0.1");
+    server.setPort(0);
+    configure.accept(server);
+    CountDownLatch started = new CountDownLatch(1);
+    server.setListener(new ChatServer.Listener(){
+      @Override
+      public void serverStarted(String host, int port){
+        started.countDown();
+      }
+      @Override
+      public void serverStopped(String reason){
+        started.countDown();
+      }
+      @Override
+      public void usersChanged(){}
+    });
+    Thread t = new Thread(server);
+    t.setDaemon(true);
+    t.start();
+    started.await();
+    if (!(server.isActive()))
+      throw new IllegalStateException("server failed to start");
+    return server;
+  }
+
+  /**
+  * Connect and log in with the binary protocol, without compression, then switch to non-blocking mode.
+  * @param target Address of the server.
+  * @param username Username to log in as.
+  * @param channel Channel to join, which has no password.
+  * @return The connection, ready to read what the server sends after the login.
+  * @throws IOException if the connection or login fails.
+  */
+  public static SocketChannel login(InetSocketAddress target, String username, String channel) throws IOException{
+
+    SocketChannel sc = SocketChannel.open(target);
+    sc.socket().setTcpNoDelay(true);
+    Client c = new Client(sc.socket());
+    c.setTimeout(10000);
+    if (!(c.negotiate(Frame.PROTOCOL_BINARY)))
+      throw new IOException("protocol offer refused");
+    c.send(Frame.auth(username, channel, "null"));
+    Frame reply = c.receiveFrame();
+    if (reply == null || reply.getType() != Frame.AUTH_OK)
+      throw new IOException("login failed for " + username);
+    sc.configureBlocking(false); // The stream reads no further than asked, so what follows is still in the socket.
+    return sc;
+  }
+
+  /**
+  * Return the CPU time used by this process, in nanoseconds.
+  * @return CPU time of every thread, the server's and the clients'.
+  */
+  public static long processCpu(){
+    return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+  }
+}
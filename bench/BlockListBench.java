@@ -0,0 +1,59 @@
+package com.umarabdul.jschat.bench;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+* Measures the cost of checking usernames against a large block list, comparing the {@code ArrayList} that
+* was scanned for every client on every channel loop pass with the hashed set now checked only at login.
+* Also reports what the old per-pass check cost for a full channel.
+*
+* Usage: BlockListBench [entries] [lookups]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class BlockListBench{
+
+  private static volatile boolean sink; // Keeps lookups from being optimized away.
+
+  public static void main(String args[]){
+
+    int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+    ArrayList<String> list = new ArrayList<String>();
+    Set<String> set = ConcurrentHashMap.newKeySet();
+    for (int i = 0; i < entries; i++){
+      list.add("banned" + i);
+      set.add("banned" + i);
+    }
+    String[] users = new String[500];
+    for (int i = 0; i < users.length; i++)
+      users[i] = "user" + i; // Not blocked, the common case: every entry is compared.
+
+    System.out.printf("%d blocked users, %d lookups of unblocked names%n", entries, lookups);
+    double listNs = time(list, users, lookups);
+    double setNs = time(set, users, lookups);
+    System.out.printf("%-24s %14.1f ns/lookup%n", "ArrayList.contains", listNs);
+    System.out.printf("%-24s %14.1f ns/lookup%n", "hashed set contains", setNs);
+    System.out.printf("old channel pass over %d users: %.2f ms spent on block checks alone%n", users.length, listNs * users.length / 1e6);
+    System.out.printf("new channel pass: no block checks; hashed check at login: %.1f ns%n", setNs);
+  }
+
+  private static double time(java.util.Collection<String> blocked, String[] users, int lookups){
+
+    boolean found = false;
+    for (int i = 0; i < lookups; i++) // Warm up.
+      found |= blocked.contains(users[i % users.length]);
+    long start = System.nanoTime();
+    for (int i = 0; i < lookups; i++)
+      found |= blocked.contains(users[i % users.length]);
+    long elapsed = System.nanoTime() - start;
+    sink = found;
+    return (double)elapsed / lookups;
+  }
+}
@@ -0,0 +1,219 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChannelState;
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.Client;
+import com.umarabdul.jschat.Frame;
+import com.umarabdul.jschat.Histogram;
+
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+
+/**
+* The chat of a busy channel while one of its users pastes in a loop. A channel of many members has a few of
+* them chatting at a human rate, while another sends messages as fast as the server takes them. Reported are
+* how long the chatting users' messages took to reach every member, how many of the flood's messages were
+* broadcast and dropped, and the CPU used, so runs with and without the message rate limits can be compared;
+*
+* <pre>
+*   ChatFloodBench --user-rate 0
+*   ChatFloodBench --user-rate 5
+* </pre>
+*
+* The server is started in-process, with the given engine. The members are served by a single selector, so
+* on a machine with few CPUs, they compete with the server, and the latencies are upper bounds.
+*
+* Usage: ChatFloodBench [options]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class ChatFloodBench{
+
+  private static final String USAGE = String.join("\n",
+    "Usage: ChatFloodBench [options]",
+    "  --engine <threads|nio>  Engine of the server (default: nio)",
+    "  --members <n>           Members of the channel, the flooder included (default: 400)",
+    "  --chatters <n>          Members chatting, one message a second each (default: 20)",
+    "  --user-rate <n>         Chat messages per second allowed from a user, 0 for no limit (default: 0)",
+    "  --channel-rate <n>      Chat messages per second allowed in the channel, 0 for no limit (default: 0)",
+    "  --duration <s>          Seconds to measure (default: 10)");
+  private static final String STAMP = "> t:"; // Marks a chatter's message within the broadcast line.
+
+  private String engine = ChatServer.ENGINE_NIO;
+  private int members = 400;
+  private int chatters = 20;
+  private int userRate = 0;
+  private int channelRate = 0;
+  private int duration = 10;
+
+  private volatile boolean running = true;
+  private AtomicLong flooded = new AtomicLong(); // Messages the flooder sent.
+  private AtomicLong notices = new AtomicLong(); // Notices the flooder got for being over a limit.
+
+  public static void main(String args[]) throws Exception{
+
+    ChatFloodBench bench = new ChatFloodBench();
+    try{
+      for (int i = 0; i < args.length; i++){
+        switch (args[i]){
+          case "--engine": bench.engine = args[++i]; break;
+          case "--members": bench.members = Integer.parseInt(args[++i]); break;
+          case "--chatters": bench.chatters = Integer.parseInt(args[++i]); break;
+          case "--user-rate": bench.userRate = Integer.parseInt(args[++i]); break;
+          case "--channel-rate": bench.channelRate = Integer.parseInt(args[++i]); break;
+          case "--duration": bench.duration = Integer.parseInt(args[++i]); break;
+          default: throw new IllegalArgumentException("unknown option: " + args[i]);
+        }
+      }
+      if (bench.members < 2 || bench.members > ChatServer.MAX_CHANNEL_USERS || bench.chatters < 1 || bench.chatters >= bench.members)
+        throw new IllegalArgumentException("need 2 to " + ChatServer.MAX_CHANNEL_USERS + " members, and fewer chatters than members");
+    }catch(RuntimeException e){
+      System.err.println("Error: " + e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    bench.run();
+  }
+
+  private void run() throws Exception{
+
+    ChatServer server = BenchServer.startServer(new Consumer<ChatServer>(){
+      @Override
+      public void accept(ChatServer server){
+        server.setEngine(engine);
+        server.setUserRate(userRate, ChatServer.DEFAULT_USER_BURST);
+        server.setChannelRate(channelRate, ChatServer.DEFAULT_CHANNEL_BURST);
+        server.addChannel("flood", "null");
+      }
+    });
+    InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+    System.out.printf("# %s engine, %d members, %d chatting at 1/s, 1 flooding; user rate %d/s, channel rate %d/s%n",
+      engine, members, chatters, userRate, channelRate);
+    Selector selector = Selector.open();
+    SocketChannel[] conns = new SocketChannel[members - 1];
+    for (int i = 0; i < conns.length; i++){
+      conns[i] = BenchServer.login(target, "member" + i, "flood");
+      conns[i].register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(65536));
+    }
+    Socket flooder = new Socket();
+    flooder.connect(target);
+    Client fc = new Client(flooder);
+    fc.setTimeout(10000);
+    if (!(fc.negotiate(Frame.PROTOCOL_BINARY)) || !(fc.send(Frame.auth("flooder", "flood", "null"))) || fc.receiveFrame().getType() != Frame.AUTH_OK)
+      throw new IOException("flooder failed to log in");
+    startFlooder(fc);
+
+    ChannelState ch = server.getChannel("flood");
+    long messagesBefore = ch.getMetrics().getMessages();
+    long throttledBefore = ch.getMetrics().getMessagesThrottled();
+    long cpuBefore = BenchServer.processCpu();
+    Histogram latency = new Histogram(60000000L); // Microseconds.
+    long[] received = new long[1];
+    long start = System.nanoTime();
+    long end = start + duration * 1000000000L;
+    long interval = 1000000000L / chatters; // Between messages of successive chatters, one a second each.
+    long next = start;
+    int turn = 0;
+    long now;
+    while ((now = System.nanoTime()) < end){
+      while (next <= now){
+        ByteBuffer frame = ByteBuffer.wrap(Frame.text(Frame.CHAT, "t:" + next).toBytes(Frame.PROTOCOL_BINARY));
+        SocketChannel sc = conns[turn++ % chatters];
+        while (frame.hasRemaining())
+          sc.write(frame);
+        next += interval;
+      }
+      selector.select(Math.max(1, (next - now) / 1000000));
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()){
+        SelectionKey key = keys.next();
+        keys.remove();
+        ByteBuffer in = (ByteBuffer)key.attachment();
+        if (((SocketChannel)key.channel()).read(in) < 0){
+          key.cancel();
+          continue;
+        }
+        in.flip();
+        Frame f;
+        while ((f = Frame.decode(in, Frame.PROTOCOL_BINARY)) != null){
+          if (f.getType() != Frame.CHAT)
+            continue;
+          String text = f.getText();
+          int at = text.indexOf(STAMP);
+          if (at < 0)
+            continue;
+          latency.record((System.nanoTime() - Long.parseLong(text.substring(at + STAMP.length()))) / 1000);
+          received[0]++;
+        }
+        in.compact();
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    long cpu = BenchServer.processCpu() - cpuBefore;
+    long broadcast = ch.getMetrics().getMessages() - messagesBefore; // The chatters' included.
+    long throttled = ch.getMetrics().getMessagesThrottled() - throttledBefore;
+    running = false;
+
+    long expected = (long)chatters * duration * (members - 1);
+    System.out.printf("chat:          %d of ~%d deliveries to members; latency (ms) p50=%.2f p99=%.2f max=%.2f%n", received[0], expected,
+      latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(99) / 1e3, latency.getMax() / 1e3);
+    System.out.printf("flood:         %.0f/s sent; %.0f/s taken by the channel, %.0f/s dropped over a limit; %d notices%n",
+      flooded.get() / (elapsed / 1e9), (broadcast - turn) / (elapsed / 1e9), throttled / (elapsed / 1e9), notices.get());
+    System.out.printf("cpu:           %.0f%% of a CPU (server and members)%n", cpu * 100.0 / elapsed);
+    flooder.close();
+    for (SocketChannel sc : conns)
+      sc.close();
+    selector.close();
+    server.stop();
+  }
+
+  /**
+  * Send messages as fast as the server takes them, reading what it sends back on a second thread.
+  */
+  private void startFlooder(Client client){
+
+    Thread writer = new Thread(new Runnable(){
+      @Override
+      public void run(){
+        try{
+          byte[] line = Frame.text(Frame.CHAT, "All work and no play makes Jack a dull boy. All work and no play makes Jack a dull boy.")
+            .toBytes(Frame.PROTOCOL_BINARY);
+          ByteArrayOutputStream batch = new ByteArrayOutputStream();
+          for (int i = 0; i < 16; i++)
+            batch.write(line, 0, line.length);
+          byte[] paste = batch.toByteArray(); // Sixteen lines at once, as pasted.
+          OutputStream out = client.getSocket().getOutputStream();
+          while (running){
+            out.write(paste);
+            flooded.addAndGet(16);
+          }
+        }catch(IOException e){}
+      }
+    }, "flooder");
+    Thread reader = new Thread(new Runnable(){
+      @Override
+      public void run(){
+        Frame f;
+        client.setTimeout(0);
+        while (running && (f = client.receiveFrame()) != null){
+          if (f.getType() == Frame.NOTICE && f.getText().contains("dropped"))
+            notices.incrementAndGet();
+        }
+      }
+    }, "flooder-reader");
+    writer.setDaemon(true);
+    reader.setDaemon(true);
+    writer.start();
+    reader.start();
+  }
+}
@@ -0,0 +1,183 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.Client;
+import com.umarabdul.jschat.Compression;
+import com.umarabdul.jschat.Frame;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+* Bytes saved by compression, against the CPU it costs, run with {@code Harness}:
+*
+* <ul>
+*   <li>{@code chat}: a chat line compressed on its own with the dictionary, as done once per broadcast,
+*   at a length under the size threshold and at two above it.</li>
+*   <li>{@code roster}: a user list of 10, 100 and 500 users compressed as part of a connection's stream,
+*   as done for every {@code [users]} reply; consecutive lists differ only in their times.</li>
+*   <li>{@code inflate}: decompressing the same, as done by the client.</li>
+* </ul>
+*
+* The sizes before and after are printed by each fork before it's measured. The cost of sending
+* uncompressed is a copy, which is measured by {@code plain}.
+*
+* Usage: CompressionBench [-wi n] [-i n] [-t ms] [-f n] [name filters...]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class CompressionBench{
+
+  private static final String WORDS = "so what do you think about the new release, I tried it this morning and it works fine for me but the "
+    + "install was slow. did you see the notes about the config changes? we should talk about that later with the others ";
+  private static final int[] LENGTHS = {80, 200, 400};
+  private static final int[] SIZES = {10, 100, 500};
+
+  public static void main(String args[]) throws Exception{
+
+    Harness h = new Harness(CompressionBench.class, args);
+    for (int len : LENGTHS){
+      h.add("chat.plain." + len, new Harness.Setup(){
+        @Override
+        public Harness.Op setup(){
+          return new Harness.Op(){
+            int i = 0;
+            @Override
+            public Object run() throws IOException{
+              return Frame.text(Frame.CHAT, line(i++, len)).toBytes(Frame.PROTOCOL_BINARY);
+            }
+          };
+        }
+      });
+      h.add("chat.deflate." + len, new Harness.Setup(){
+        @Override
+        public Harness.Op setup() throws IOException{
+          Frame sample = Frame.text(Frame.CHAT, line(0, len));
+          report("chat line", sample.toBytes(Frame.PROTOCOL_BINARY).length, sample.toBytes(Frame.PROTOCOL_DEFLATE).length);
+          return new Harness.Op(){
+            int i = 0;
+            @Override
+            public Object run() throws IOException{
+              return Frame.text(Frame.CHAT, line(i++, len)).toBytes(Frame.PROTOCOL_DEFLATE);
+            }
+          };
+        }
+      });
+    }
+    for (int n : SIZES){
+      h.add("roster.stream." + n, new Harness.Setup(){
+        private Compression c;
+        @Override
+        public Harness.Op setup(){
+          Client[] users = users(n);
+          byte[] first = ChatServer.formatUserList(users).getBytes();
+          c = new Compression();
+          int firstSize = c.deflateStream(first).length;
+          byte[] next = ChatServer.formatUserList(users).getBytes();
+          report("first roster", first.length, firstSize);
+          report("next roster", next.length, c.deflateStream(next).length);
+          return new Harness.Op(){
+            @Override
+            public Object run(){
+              return c.deflateStream(ChatServer.formatUserList(users).getBytes());
+            }
+          };
+        }
+        @Override
+        public void tearDown(){
+          c.end();
+        }
+      });
+      h.add("roster.plain." + n, new Harness.Setup(){
+        @Override
+        public Harness.Op setup(){
+          Client[] users = users(n);
+          return new Harness.Op(){
+            @Override
+            public Object run() throws IOException{
+              return Frame.text(Frame.USERS, ChatServer.formatUserList(users)).toBytes(Frame.PROTOCOL_BINARY);
+            }
+          };
+        }
+      });
+    }
+    h.add("inflate.chat.200", new Harness.Setup(){
+      @Override
+      public Harness.Op setup() throws IOException{
+        Frame sent = Frame.text(Frame.CHAT, line(0, 200));
+        byte[] bytes = sent.toBytes(Frame.PROTOCOL_DEFLATE);
+        Compression c = new Compression();
+        return new Harness.Op(){
+          @Override
+          public Object run() throws IOException{
+            return c.decode(Frame.decode(ByteBuffer.wrap(bytes), Frame.PROTOCOL_DEFLATE));
+          }
+        };
+      }
+    });
+    h.add("inflate.roster.100", new Harness.Setup(){
+      private Compression out;
+      private Compression in;
+      @Override
+      public Harness.Op setup(){
+        Client[] users = users(100);
+        out = new Compression();
+        in = new Compression();
+        return new Harness.Op(){
+          @Override
+          public Object run() throws IOException{
+            Frame list = Frame.text(Frame.USERS, ChatServer.formatUserList(users));
+            return in.decode(Frame.decode(ByteBuffer.wrap(out.encode(list, Frame.PROTOCOL_DEFLATE)), Frame.PROTOCOL_DEFLATE));
+          }
+        };
+      }
+      @Override
+      public void tearDown(){
+        out.end();
+        in.end();
+      }
+    });
+    h.run();
+  }
+
+  /**
+  * Return a chat line as broadcast, of about the given length, varied by the given number.
+  */
+  private static String line(int i, int len){
+
+    String prefix = "(user" + (i % 50) + ") > ";
+    int n = Math.max(0, len - prefix.length());
+    int from = (i * 7) % (WORDS.length() / 2);
+    StringBuilder sb = new StringBuilder(prefix);
+    while (sb.length() < prefix.length() + n)
+      sb.append(WORDS, from, Math.min(WORDS.length(), from + (prefix.length() + n - sb.length())));
+    return sb.toString();
+  }
+
+  /**
+  * Return users logged in over the last few hours.
+  */
+  private static Client[] users(int n){
+
+    Client[] users = new Client[n];
+    try{
+      for (int i = 0; i < n; i++){
+        users[i] = new Client(SocketChannel.open()){}; // Never connected, only the name and login time are used.
+        users[i].setUsername("user" + i);
+        users[i].setLoginTime(System.currentTimeMillis() - i * 97000L);
+      }
+    }catch(IOException e){
+      throw new UncheckedIOException(e);
+    }
+    return users;
+  }
+
+  private static void report(String what, int before, int after){
+    System.out.printf("%s: %d -> %d bytes (%.0f%% saved)%n", what, before, after, 100.0 * (before - after) / before);
+  }
+}
@@ -0,0 +1,108 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.Frame;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+* Compares broadcasting a chat line by encoding it for every recipient (as {@code writeUTF()} did before),
+* with encoding it once into a {@code Frame} and writing the same bytes to every recipient. Recipients are
+* streams and channels writing to {@code /dev/null}, so each write is a real system call but no network
+* is involved.
+*
+* Usage: FanOutBench [members] [messages]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class FanOutBench{
+
+  private static final String TEXT = "The quick brown fox jumps over the lazy dog, and then does it again for good measure.";
+
+  private static DataOutputStream[] streams;
+  private static FileChannel sink;
+
+  private interface FanOut{
+    void broadcast(String username, String text) throws IOException;
+  }
+
+  public static void main(String args[]) throws Exception{
+
+    int members = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+    int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+    streams = new DataOutputStream[members];
+    for (int i = 0; i < members; i++)
+      streams[i] = new DataOutputStream(new FileOutputStream("/dev/null"));
+    sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+
+    System.out.printf("%d members, %d messages%n", members, messages);
+    System.out.printf("%-28s %14s %18s%n", "fan-out", "msgs/sec", "bytes alloc/msg");
+    run("writeUTF per recipient", messages, new FanOut(){
+      @Override
+      public void broadcast(String username, String text) throws IOException{
+        String line = String.format("(%s) > %s", username, text);
+        for (DataOutputStream out : streams)
+          out.writeUTF(line);
+      }
+    });
+    run("encode once, legacy", messages, new FanOut(){
+      @Override
+      public void broadcast(String username, String text) throws IOException{
+        Frame line = Frame.text(Frame.CHAT, String.format("(%s) > %s", username, text));
+        for (DataOutputStream out : streams)
+          line.write(out, Frame.PROTOCOL_LEGACY);
+      }
+    });
+    run("encode once, binary", messages, new FanOut(){
+      @Override
+      public void broadcast(String username, String text) throws IOException{
+        Frame line = Frame.text(Frame.CHAT, String.format("(%s) > %s", username, text));
+        for (DataOutputStream out : streams)
+          line.write(out, Frame.PROTOCOL_BINARY);
+      }
+    });
+    run("nio, buffer per recipient", messages, new FanOut(){
+      @Override
+      public void broadcast(String username, String text) throws IOException{
+        Frame line = Frame.text(Frame.CHAT, String.format("(%s) > %s", username, text));
+        for (int i = 0; i < streams.length; i++){
+          ByteBuffer buf = ByteBuffer.allocate(line.getPayload().length + Frame.HEADER_SIZE);
+          buf.put(line.getType()).put(line.getFlags()).putInt(line.getPayload().length).put(line.getPayload()).flip();
+          sink.write(buf);
+        }
+      }
+    });
+    run("nio, shared encoded buffer", messages, new FanOut(){
+      @Override
+      public void broadcast(String username, String text) throws IOException{
+        Frame line = Frame.text(Frame.CHAT, String.format("(%s) > %s", username, text));
+        ByteBuffer shared = ByteBuffer.wrap(line.toBytes(Frame.PROTOCOL_BINARY));
+        for (int i = 0; i < streams.length; i++)
+          sink.write(shared.duplicate());
+      }
+    });
+  }
+
+  private static void run(String name, int messages, FanOut fanOut) throws IOException{
+
+    for (int i = 0; i < messages; i++) // Warm up.
+      fanOut.broadcast("user" + (i % 10), TEXT);
+    com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long tid = Thread.currentThread().getId();
+    long alloc = mx.getThreadAllocatedBytes(tid);
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++)
+      fanOut.broadcast("user" + (i % 10), TEXT);
+    long elapsed = System.nanoTime() - start;
+    alloc = mx.getThreadAllocatedBytes(tid) - alloc;
+    System.out.printf("%-28s %14.0f %18d%n", name, messages / (elapsed / 1e9), alloc / messages);
+  }
+}
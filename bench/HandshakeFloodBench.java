@@ -0,0 +1,238 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.Client;
+import com.umarabdul.jschat.Frame;
+import com.umarabdul.jschat.Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+
+/**
+* Logins under a flood of connections that never log in, as from a slowloris attack or clients stuck
+* reconnecting. A number of idle connections are held open, each having sent the first byte of a frame and
+* nothing more, and reopened as soon as the server closes them; meanwhile, a few clients log in and quit over
+* and over. Reported are the logins completed and their latency, the idle connections the server closed
+* and refused, and the threads and heap the server used.
+*
+* The server is started in-process, with the given engine. The clients logging in connect over loopback, and
+* the idle connections to {@code --address}. Connections from loopback addresses are exempt from the rate per
+* address, so to have it apply to the idle ones, give a non-loopback address of this machine; the server then
+* binds to all addresses.
+*
+* Usage: HandshakeFloodBench [options]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class HandshakeFloodBench{
+
+  private static final String USAGE = String.join("\n",
+    "Usage: HandshakeFloodBench [options]",
+    "  --engine <threads|nio>  Engine of the server (default: threads)",
+    "  --address <ip>          Address the idle connections connect to (default: 127.0.0.1)",
+    "  --idle <n>              Connections held open without logging in (default: 2000)",
+    "  --clients <n>           Clients logging in over and over (default: 8)",
+    "  --max-handshakes <n>    Connections the server lets be yet to log in (default: " + ChatServer.DEFAULT_MAX_HANDSHAKES + ")",
+    "  --connect-rate <n>      New connections per second the server takes from an address, 0 for no limit (default: "
+      + (int)ChatServer.DEFAULT_CONNECT_RATE + ")",
+    "  --duration <s>          Seconds to measure, after the idle connections are open (default: 10)");
+
+  private String engine = ChatServer.ENGINE_THREADS;
+  private String address = "127.0.0.1";
+  private int idle = 2000;
+  private int clients = 8;
+  private int maxHandshakes = ChatServer.DEFAULT_MAX_HANDSHAKES;
+  private int connectRate = (int)ChatServer.DEFAULT_CONNECT_RATE;
+  private int duration = 10;
+
+  private volatile boolean running = true;
+  private AtomicLong reopened = new AtomicLong(); // Idle connections closed by the server, and opened again.
+
+  public static void main(String args[]) throws Exception{
+
+    HandshakeFloodBench bench = new HandshakeFloodBench();
+    try{
+      for (int i = 0; i < args.length; i++){
+        switch (args[i]){
+          case "--engine": bench.engine = args[++i]; break;
+          case "--address": bench.address = args[++i]; break;
+          case "--idle": bench.idle = Integer.parseInt(args[++i]); break;
+          case "--clients": bench.clients = Integer.parseInt(args[++i]); break;
+          case "--max-handshakes": bench.maxHandshakes = Integer.parseInt(args[++i]); break;
+          case "--connect-rate": bench.connectRate = Integer.parseInt(args[++i]); break;
+          case "--duration": bench.duration = Integer.parseInt(args[++i]); break;
+          default: throw new IllegalArgumentException("unknown option: " + args[i]);
+        }
+      }
+      if (bench.clients < 1 || bench.duration < 1)
+        throw new IllegalArgumentException("need at least one client and a second to measure");
+    }catch(RuntimeException e){
+      System.err.println("Error: " + e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    bench.run();
+  }
+
+  private void run() throws Exception{
+
+    InetAddress addr = InetAddress.getByName(address);
+    int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+    String host = addr.isLoopbackAddress() ? address : "0.0.0.0";
+    ChatServer server = BenchServer.startServer(new Consumer<ChatServer>(){
+      @Override
+      public void accept(ChatServer server){
+        server.setHost(host);
+        server.setEngine(engine);
+        server.setMaxHandshakes(maxHandshakes);
+        server.setConnectRate(connectRate, ChatServer.DEFAULT_CONNECT_BURST);
+        server.addChannel("bench", "null");
+      }
+    });
+    InetSocketAddress target = new InetSocketAddress(addr, server.getPort());
+    InetSocketAddress local = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+    System.out.printf("# %s engine, %d idle connections, %d clients logging in, %d s measured; max handshakes %d, connect rate %d/s%n",
+      engine, idle, clients, duration, maxHandshakes, connectRate);
+    Thread holder = new Thread(new Runnable(){
+      @Override
+      public void run(){
+        holdIdle(target);
+      }
+    }, "idle-holder");
+    holder.setDaemon(true);
+    holder.start();
+    Thread.sleep(2000); // Let the idle connections open.
+    Histogram latency = new Histogram(60000000L); // Microseconds.
+    AtomicLong logins = new AtomicLong();
+    AtomicInteger errors = new AtomicInteger();
+    long closedBefore = reopened.get();
+    long end = System.nanoTime() + duration * 1000000000L;
+    int peakThreads = 0;
+    Thread[] workers = new Thread[clients];
+    for (int w = 0; w < clients; w++){
+      String username = "flood" + w;
+      workers[w] = new Thread(new Runnable(){
+        @Override
+        public void run(){
+          long t0;
+          while ((t0 = System.nanoTime()) < end){
+            if (!(login(local, username))){
+              errors.incrementAndGet();
+              continue;
+            }
+            latency.record((System.nanoTime() - t0) / 1000);
+            logins.incrementAndGet();
+          }
+        }
+      });
+      workers[w].start();
+    }
+    while (System.nanoTime() < end){
+      peakThreads = Math.max(peakThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+      Thread.sleep(100);
+    }
+    for (Thread t : workers)
+      t.join();
+    long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    running = false;
+    System.out.printf("logins:        %.0f/s, %d failed%n", logins.get() / (double)duration, errors.get());
+    System.out.printf("latency (ms):  p50=%.2f p99=%.2f max=%.2f%n", latency.getValueAtPercentile(50) / 1e3,
+      latency.getValueAtPercentile(99) / 1e3, latency.getMax() / 1e3);
+    System.out.printf("idle closed:   %.0f/s by the server; %d refused on accepting%n", (reopened.get() - closedBefore) / (double)duration,
+      server.getMetrics().getConnectionsRefused());
+    System.out.printf("server:        %d threads at peak, %.1f MB of heap in use (both including the clients)%n",
+      peakThreads - threadsBefore, heap / 1048576.0);
+    server.stop();
+  }
+
+  /**
+  * Keep the idle connections open, each having sent a partial frame, reopening those the server closes,
+  * until the run is over.
+  */
+  private void holdIdle(InetSocketAddress target){
+
+    ByteBuffer partial = ByteBuffer.allocate(1);
+    ByteBuffer sink = ByteBuffer.allocate(256);
+    try(Selector selector = Selector.open()){
+      int open = 0;
+      while (running){
+        while (open < idle){
+          SocketChannel sc = SocketChannel.open();
+          sc.configureBlocking(false);
+          sc.connect(target);
+          sc.register(selector, SelectionKey.OP_CONNECT);
+          open++;
+        }
+        selector.select(100);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()){
+          SelectionKey key = keys.next();
+          keys.remove();
+          SocketChannel sc = (SocketChannel)key.channel();
+          try{
+            if (key.isConnectable()){
+              sc.finishConnect();
+              partial.clear();
+              partial.put(0, Frame.CHAT);
+              sc.write(partial); // The type of a frame, whose length never comes.
+              key.interestOps(SelectionKey.OP_READ);
+              continue;
+            }
+            sink.clear();
+            if (sc.read(sink) >= 0)
+              continue;
+          }catch(IOException e){}
+          key.cancel();
+          try{
+            sc.close();
+          }catch(IOException e){}
+          open--;
+          reopened.incrementAndGet();
+        }
+      }
+      for (SelectionKey key : selector.keys())
+        key.channel().close();
+    }catch(IOException e){
+      e.printStackTrace();
+    }
+  }
+
+  /**
+  * Connect, log in and quit.
+  * @return {@code true} if the login succeeded.
+  */
+  private static boolean login(InetSocketAddress target, String username){
+
+    Socket sock = new Socket();
+    try{
+      sock.connect(target, 10000);
+      sock.setTcpNoDelay(true);
+      Client c = new Client(sock);
+      c.setTimeout(10000);
+      if (!(c.negotiate()))
+        return false;
+      c.send(Frame.auth(username, "bench", "null"));
+      Frame reply = c.receiveFrame();
+      boolean ok = (reply != null && reply.getType() == Frame.AUTH_OK);
+      c.send(new Frame(Frame.QUIT, (byte)0, new byte[0]));
+      return ok;
+    }catch(IOException e){
+      return false;
+    }finally{
+      try{
+        sock.close();
+      }catch(IOException e){}
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package com.umarabdul.jschat.bench;
+
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+* A small microbenchmark harness following the JMH methodology, for a project built with plain {@code javac}.
+* Every benchmark runs in its own forked JVM, so that one benchmark's profile can't affect the code generated
+* for the next. Each fork runs timed warmup iterations, then timed measurement iterations, calling the
+* benchmark in a loop and feeding its results to a sink so the JIT can't remove the work.
+*
+* A benchmark class registers its benchmarks in {@code main()} and hands over to {@code run()}:
+*
+* <pre>
+*   Harness h = new Harness(MyBench.class, args);
+*   h.add("encode", new Harness.Setup(){ ... });
+*   h.run();
+* </pre>
+*
+* Options: {@code -wi} warmup iterations, {@code -i} measurement iterations, {@code -t} iteration time in ms,
+* {@code -f} forks; any other argument selects the benchmarks whose names contain it.
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class Harness{
+
+  private static volatile Object sink; // Results that matched the sentinel land here, which never happens.
+  private static final Object SENTINEL = new Object();
+
+  private Class<?> owner;
+  private String args[];
+  private LinkedHashMap<String, Setup> benchmarks;
+  private int warmups = 5;
+  private int iterations = 5;
+  private int iterationTime = 1000;
+  private int forks = 1;
+  private ArrayList<String> filters;
+
+  /**
+  * A benchmarked operation. The return value is consumed by the harness.
+  */
+  public interface Op{
+    Object run() throws Exception;
+  }
+
+  /**
+  * Creates the state of a benchmark, in the fork that runs it, and returns the operation to measure.
+  */
+  public interface Setup{
+
+    Op setup() throws Exception;
+
+    /**
+    * Release the state created by {@code setup()}.
+    */
+    default void tearDown() throws Exception{}
+  }
+
+  /**
+  * Class constructor.
+  * @param owner Class whose {@code main()} registers the benchmarks, run again in every fork.
+  * @param args Command line arguments.
+  */
+  public Harness(Class<?> owner, String args[]){
+
+    this.owner = owner;
+    this.args = args;
+    benchmarks = new LinkedHashMap<String, Setup>();
+    filters = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++){
+      switch (args[i]){
+        case "-wi":
+          warmups = Integer.parseInt(args[++i]);
+          break;
+        case "-i":
+          iterations = Integer.parseInt(args[++i]);
+          break;
+        case "-t":
+          iterationTime = Integer.parseInt(args[++i]);
+          break;
+        case "-f":
+          forks = Integer.parseInt(args[++i]);
+          break;
+        case "--fork":
+          break;
+        default:
+          filters.add(args[i]);
+      }
+    }
+  }
+
+  /**
+  * Register a benchmark.
+  * @param name Benchmark name.
+  * @param setup Creates the operation to measure.
+  */
+  public void add(String name, Setup setup){
+    benchmarks.put(name, setup);
+  }
+
+  /**
+  * Run the selected benchmarks, each in its own forked JVM, and print a summary. When called in a fork,
+  * runs the single benchmark it was started for instead.
+  * @throws Exception on benchmark failure.
+  */
+  public void run() throws Exception{
+
+    if (args.length > 1 && args[0].equals("--fork")){
+      measure(args[1], benchmarks.get(args[1]));
+      return;
+    }
+    System.out.printf("# %d warmup and %d measurement iterations of %d ms, %d fork(s)%n", warmups, iterations, iterationTime, forks);
+    System.out.printf("%-28s %5s %14s %12s %8s%n", "Benchmark", "Cnt", "Score", "Error", "Units");
+    for (Map.Entry<String, Setup> entry : benchmarks.entrySet()){
+      if (!(selected(entry.getKey())))
+        continue;
+      ArrayList<Double> scores = new ArrayList<Double>();
+      for (int f = 0; f < forks; f++)
+        scores.addAll(fork(entry.getKey()));
+      double mean = 0;
+      for (double d : scores)
+        mean += d;
+      mean /= scores.size();
+      double var = 0;
+      for (double d : scores)
+        var += (d - mean) * (d - mean);
+      double error = (scores.size() > 1) ? Math.sqrt(var / (scores.size() - 1)) : 0;
+      System.out.printf("%-28s %5d %14.1f +- %10.1f %8s%n", entry.getKey(), scores.size(), mean, error, "ns/op");
+    }
+  }
+
+  private boolean selected(String name){
+
+    if (filters.isEmpty())
+      return true;
+    for (String f : filters){
+      if (name.contains(f))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+  * Run a benchmark in a new JVM with the same options.
+  * @return The score of every measurement iteration, in ns/op.
+  */
+  private ArrayList<Double> fork(String name) throws Exception{
+
+    ArrayList<String> cmd = new ArrayList<String>();
+    cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    cmd.add("-cp");
+    cmd.add(System.getProperty("java.class.path"));
+    cmd.add(owner.getName());
+    cmd.add("--fork");
+    cmd.add(name);
+    cmd.add("-wi");
+    cmd.add(String.valueOf(warmups));
+    cmd.add("-i");
+    cmd.add(String.valueOf(iterations));
+    cmd.add("-t");
+    cmd.add(String.valueOf(iterationTime));
+    Process proc = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+    ArrayList<Double> scores = new ArrayList<Double>();
+    String line;
+    while ((line = reader.readLine()) != null){
+      if (line.startsWith("SCORE "))
+        scores.add(Double.parseDouble(line.substring(6)));
+      else
+        System.out.println("  " + line);
+    }
+    if (proc.waitFor() != 0 || scores.isEmpty())
+      throw new IOException(name + " failed");
+    return scores;
+  }
+
+  /**
+  * Measure a benchmark in this JVM, printing the score of every measurement iteration.
+  */
+  private void measure(String name, Setup setup) throws Exception{
+
+    Op op = setup.setup();
+    try{
+      for (int i = 0; i < warmups; i++)
+        iteration(op);
+      for (int i = 0; i < iterations; i++)
+        System.out.println("SCORE " + iteration(op));
+    }finally{
+      setup.tearDown();
+    }
+  }
+
+  /**
+  * Call the operation until the iteration time is up.
+  * @return Average time per call, in nanoseconds.
+  */
+  private double iteration(Op op) throws Exception{
+
+    long deadline = System.nanoTime() + iterationTime * 1000000L;
+    long ops = 0;
+    long start = System.nanoTime();
+    long now;
+    do{
+      consume(op.run());
+      ops++;
+    }while ((now = System.nanoTime()) < deadline);
+    return (double)(now - start) / ops;
+  }
+
+  /**
+  * Keep a value alive, so that the work producing it isn't optimized away.
+  * @param value The value.
+  */
+  public static void consume(Object value){
+
+    if (value == SENTINEL)
+      sink = value;
+  }
+}
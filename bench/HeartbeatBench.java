@@ -0,0 +1,202 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChannelState;
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.Frame;
+import com.umarabdul.jschat.Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+
+/**
+* How fast the server notices clients that went away without closing their connections, as when their machine
+* or network goes down, and what checking on every client costs. Many clients log in and answer the server's
+* pings; then some go silent, keeping their connections open but never answering again, as a half-open
+* connection does. Reported are the time the server took to drop each silent client, clients dropped that
+* were still answering, and the CPU used and threads the server had meanwhile.
+*
+* The server is started in-process, with the given engine and ping interval, and the clients are spread over
+* enough channels to fit. Once logged in, the clients are served by a single selector, so the CPU reported is
+* mostly the server's.
+*
+* Usage: HeartbeatBench [options]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class HeartbeatBench{
+
+  private static final String USAGE = String.join("\n",
+    "Usage: HeartbeatBench [options]",
+    "  --engine <threads|nio>  Engine of the server (default: nio)",
+    "  --connections <n>       Clients logged in (default: 2000)",
+    "  --silent <n>            Clients that stop answering (default: 100)",
+    "  --ping <s>              Seconds a client can be quiet before the server pings it (default: 2)",
+    "  --warmup <s>            Seconds of answering pings before some go silent (default: 5)");
+  private static final int PER_CHANNEL = 400; // Clients per channel, below the server's limit.
+
+  private String engine = ChatServer.ENGINE_NIO;
+  private int connections = 2000;
+  private int silent = 100;
+  private int ping = 2;
+  private int warmup = 5;
+
+  /**
+  * A client logged in, served by the selector.
+  */
+  private static class Conn{
+
+    final SocketChannel channel;
+    final ByteBuffer in = ByteBuffer.allocate(8192);
+    boolean answering = true;
+    long closed = 0; // When the server closed it, from System.nanoTime().
+
+    Conn(SocketChannel channel){
+      this.channel = channel;
+    }
+  }
+
+  public static void main(String args[]) throws Exception{
+
+    HeartbeatBench bench = new HeartbeatBench();
+    try{
+      for (int i = 0; i < args.length; i++){
+        switch (args[i]){
+          case "--engine": bench.engine = args[++i]; break;
+          case "--connections": bench.connections = Integer.parseInt(args[++i]); break;
+          case "--silent": bench.silent = Integer.parseInt(args[++i]); break;
+          case "--ping": bench.ping = Integer.parseInt(args[++i]); break;
+          case "--warmup": bench.warmup = Integer.parseInt(args[++i]); break;
+          default: throw new IllegalArgumentException("unknown option: " + args[i]);
+        }
+      }
+      if (bench.connections < 1 || bench.silent < 0 || bench.silent > bench.connections || bench.ping < 1)
+        throw new IllegalArgumentException("need at least one client, no more silent than clients, and a ping interval");
+    }catch(RuntimeException e){
+      System.err.println("Error: " + e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    bench.run();
+  }
+
+  private void run() throws Exception{
+
+    int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+    int channels = (connections + PER_CHANNEL - 1) / PER_CHANNEL;
+    ChatServer server = BenchServer.startServer(new Consumer<ChatServer>(){
+      @Override
+      public void accept(ChatServer server){
+        server.setEngine(engine);
+        server.setPingInterval(ping * 1000);
+        for (int i = 0; i < channels; i++)
+          server.addChannel("hb" + i, "null");
+      }
+    });
+    InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+    System.out.printf("# %s engine, %d clients over %d channels, %d going silent; ping after %d s quiet, answer within %d s%n",
+      engine, connections, channels, silent, ping, ChatServer.PING_TIMEOUT / 1000);
+    Selector selector = Selector.open();
+    Conn[] conns = new Conn[connections];
+    for (int i = 0; i < connections; i++){
+      conns[i] = new Conn(BenchServer.login(target, "hb" + i, "hb" + (i / PER_CHANNEL)));
+      conns[i].channel.register(selector, SelectionKey.OP_READ, conns[i]);
+    }
+    int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+    byte[] pong = Frame.PONG_FRAME.toBytes(Frame.PROTOCOL_BINARY);
+    long[] pongs = new long[1];
+    serve(selector, pong, System.nanoTime() + warmup * 1000000000L, pongs, null);
+    long answered = pongs[0];
+
+    // Silence every n-th client, spread over the channels.
+    for (int i = 0; i < silent; i++)
+      conns[(int)((long)i * connections / silent)].answering = false;
+    long start = System.nanoTime();
+    long cpuStart = BenchServer.processCpu();
+    long limit = start + (ping * 1000L + ChatServer.PING_TIMEOUT + 5000) * 1000000L;
+    serve(selector, pong, limit, pongs, conns);
+    long elapsed = System.nanoTime() - start;
+    long cpu = BenchServer.processCpu() - cpuStart;
+
+    Histogram detect = new Histogram(60000000L); // Milliseconds.
+    int dropped = 0;
+    int wrongly = 0;
+    for (Conn c : conns){
+      if (c.closed == 0)
+        continue;
+      if (c.answering){
+        wrongly++;
+        continue;
+      }
+      dropped++;
+      detect.record((c.closed - start) / 1000000);
+    }
+    int members = 0;
+    for (int i = 0; i < channels; i++)
+      members += server.getChannel("hb" + i).size();
+    System.out.printf("pongs:         %d during the warmup (%.0f/s)%n", answered, answered / (double)warmup);
+    System.out.printf("silent:        %d of %d dropped; %d answering clients dropped; %d members left, of %d expected%n",
+      dropped, silent, wrongly, members, connections - silent);
+    if (dropped > 0)
+      System.out.printf("dropped after: p50=%.1f s, max=%.1f s of going silent%n", detect.getValueAtPercentile(50) / 1e3, detect.getMax() / 1e3);
+    System.out.printf("server:        %d threads after logging in; %.1f%% of a CPU while waiting (including this selector)%n",
+      threads, cpu * 100.0 / elapsed);
+    for (Conn c : conns)
+      c.channel.close();
+    selector.close();
+    server.stop();
+  }
+
+  /**
+  * Read from the clients until the given time, answering pings as the clients still answering, and noting
+  * when the server closes a connection. Returns early once every silent client is closed, if given the clients.
+  */
+  private void serve(Selector selector, byte[] pong, long until, long[] pongs, Conn[] conns) throws IOException{
+
+    int left = 0;
+    if (conns != null){
+      for (Conn c : conns)
+        left += (!(c.answering) && c.closed == 0) ? 1 : 0;
+    }
+    long now;
+    while ((now = System.nanoTime()) < until && !(conns != null && left == 0)){
+      selector.select(Math.max(1, (until - now) / 1000000));
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()){
+        SelectionKey key = keys.next();
+        keys.remove();
+        Conn c = (Conn)key.attachment();
+        int n;
+        try{
+          n = c.channel.read(c.in);
+        }catch(IOException e){
+          n = -1;
+        }
+        if (n < 0){
+          c.closed = System.nanoTime();
+          key.cancel();
+          if (!(c.answering))
+            left--;
+          continue;
+        }
+        c.in.flip();
+        Frame frame;
+        while ((frame = Frame.decode(c.in, Frame.PROTOCOL_BINARY)) != null){
+          if (frame.getType() == Frame.PING && c.answering){
+            c.channel.write(ByteBuffer.wrap(pong));
+            pongs[0]++;
+          }
+        }
+        c.in.compact();
+      }
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChannelState;
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.Client;
+import com.umarabdul.jschat.Frame;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+
+/**
+* Baseline microbenchmarks of the server's hot paths, run with {@code Harness}:
+*
+* <ul>
+*   <li>{@code roundTrip}: a {@code Client.send()} and {@code receiveFrame()} round trip over loopback, against an echoing peer.</li>
+*   <li>{@code fanOut}: formatting a chat line and sending it to every member of a channel, as the server does for each message.</li>
+*   <li>{@code authParse}: parsing and validating a login, in the legacy and binary formats.</li>
+*   <li>{@code roster}: rendering the user list sent in reply to {@code [users]}.</li>
+* </ul>
+*
+* Usage: HotPathBench [-wi n] [-i n] [-t ms] [-f n] [name filters...]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class HotPathBench{
+
+  private static final String TEXT = "The quick brown fox jumps over the lazy dog, and then does it again for good measure.";
+  private static final int[] SIZES = {10, 100, 500};
+
+  public static void main(String args[]) throws Exception{
+
+    Harness h = new Harness(HotPathBench.class, args);
+    h.add("roundTrip.legacy", new RoundTrip(Frame.PROTOCOL_LEGACY));
+    h.add("roundTrip.binary", new RoundTrip(Frame.PROTOCOL_BINARY));
+    for (int n : SIZES)
+      h.add("fanOut." + n, new FanOut(n));
+    h.add("authParse.legacy", new Harness.Setup(){
+      @Override
+      public Harness.Op setup(){
+        Frame frame = Frame.fromLegacy("someuser<<>>general<<>>secretpass");
+        return new Harness.Op(){
+          @Override
+          public Object run(){
+            String params[] = frame.getText().split("<<>>");
+            return validate(params);
+          }
+        };
+      }
+    });
+    h.add("authParse.binary", new Harness.Setup(){
+      @Override
+      public Harness.Op setup(){
+        Frame frame = Frame.auth("someuser", "general", "secretpass");
+        return new Harness.Op(){
+          @Override
+          public Object run(){
+            return validate(frame.getFields());
+          }
+        };
+      }
+    });
+    for (int n : SIZES){
+      h.add("roster." + n, new Harness.Setup(){
+        private Peers peers;
+        @Override
+        public Harness.Op setup() throws IOException{
+          peers = new Peers(n);
+          Client[] clients = peers.members.members();
+          return new Harness.Op(){
+            @Override
+            public Object run(){
+              return ChatServer.formatUserList(clients);
+            }
+          };
+        }
+        @Override
+        public void tearDown(){
+          peers.close();
+        }
+      });
+    }
+    h.run();
+  }
+
+  /**
+  * The checks applied to login fields by {@code ChatServer.authenticate()}.
+  */
+  private static Object validate(String params[]){
+
+    if (params.length != 3)
+      return null;
+    String username = params[0].trim();
+    String channel = params[1].trim();
+    String password = params[2].trim();
+    if (!(ChatServer.isAlphaNum(username)) || username.length() < ChatServer.MIN_USERNAME_LENGTH || username.length() > ChatServer.MAX_USERNAME_LENGTH)
+      return null;
+    return (ChatServer.isAlphaNum(channel)) ? password : null;
+  }
+
+  /**
+  * A round trip to a peer that echoes every frame back.
+  */
+  private static class RoundTrip implements Harness.Setup{
+
+    private int protocol;
+    private Peers peers;
+
+    RoundTrip(int protocol){
+      this.protocol = protocol;
+    }
+
+    @Override
+    public Harness.Op setup() throws IOException{
+
+      peers = new Peers(1);
+      Client local = peers.remote.get(0);
+      Client echo = peers.members.members()[0];
+      local.setProtocol(protocol);
+      echo.setProtocol(protocol);
+      local.setTimeout(0);
+      echo.setTimeout(0);
+      Thread t = new Thread(new Runnable(){
+        @Override
+        public void run(){
+          Frame frame;
+          while ((frame = echo.receiveFrame()) != null){
+            if (!(echo.send(frame)))
+              return;
+          }
+        }
+      });
+      t.setDaemon(true);
+      t.start();
+      Frame msg = Frame.text(Frame.CHAT, TEXT);
+      return new Harness.Op(){
+        @Override
+        public Object run() throws IOException{
+          local.send(msg);
+          Frame reply = local.receiveFrame();
+          if (reply == null)
+            throw new IOException("peer closed");
+          return reply;
+        }
+      };
+    }
+
+    @Override
+    public void tearDown(){
+      peers.close();
+    }
+  }
+
+  /**
+  * One chat line fanned out to every member of a channel, whose peers discard what they receive.
+  */
+  private static class FanOut implements Harness.Setup{
+
+    private int members;
+    private Peers peers;
+
+    FanOut(int members){
+      this.members = members;
+    }
+
+    @Override
+    public Harness.Op setup() throws IOException{
+
+      peers = new Peers(members);
+      for (Client c : peers.members.members())
+        c.setProtocol(Frame.PROTOCOL_BINARY);
+      peers.drain();
+      ChannelState ch = peers.members;
+      byte[] prefix = ch.members()[0].getPrefix();
+      byte[] text = TEXT.getBytes(StandardCharsets.UTF_8);
+      return new Harness.Op(){
+        @Override
+        public Object run(){
+          Frame line = Frame.line(prefix, text);
+          for (Client r : ch.members())
+            r.send(line);
+          return line;
+        }
+      };
+    }
+
+    @Override
+    public void tearDown(){
+      peers.close();
+    }
+  }
+
+  /**
+  * A channel of logged in members, each connected over loopback to a remote end.
+  */
+  private static class Peers{
+
+    ChannelState members = new ChannelState("general", "null");
+    ArrayList<Client> remote = new ArrayList<Client>();
+
+    Peers(int n) throws IOException{
+
+      ServerSocket server = new ServerSocket(0, n, InetAddress.getLoopbackAddress());
+      for (int i = 0; i < n; i++){
+        remote.add(new Client(new Socket(server.getInetAddress(), server.getLocalPort())));
+        Client c = new Client(server.accept());
+        c.setUsername("user" + i);
+        c.setLoginTime(System.currentTimeMillis() - i * 60000L);
+        members.join(c, Integer.MAX_VALUE);
+      }
+      server.close();
+    }
+
+    /**
+    * Discard everything sent to the members, with a thread per remote end.
+    */
+    void drain(){
+
+      for (Client c : remote){
+        Thread t = new Thread(new Runnable(){
+          @Override
+          public void run(){
+            byte[] buf = new byte[64 * 1024];
+            try{
+              InputStream in = c.getSocket().getInputStream();
+              while (in.read(buf) != -1);
+            }catch(IOException e){}
+          }
+        });
+        t.setDaemon(true);
+        t.start();
+      }
+    }
+
+    void close(){
+
+      for (Client c : members.clear())
+        c.close();
+      for (Client c : remote)
+        c.close();
+    }
+  }
+}
@@ -0,0 +1,384 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChannelState;
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.Client;
+import com.umarabdul.jschat.ExecutionMode;
+import com.umarabdul.jschat.Frame;
+import com.umarabdul.jschat.Histogram;
+
+import java.net.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+
+/**
+* A headless load generator. Opens many connections spread over a number of channels, logging each one in
+* with the real handshake, then has some of them send timestamped chat messages at a fixed total rate while
+* every connection records how long each message took to reach it.
+*
+* Messages are sent on a fixed schedule and stamped with the time they were due, not the time they were
+* actually sent, so a server that stalls the sender is charged for the delay (no coordinated omission).
+* Latency is reported from a {@code Histogram}, along with throughput, lost messages and connection errors.
+* The writes the server made to its sockets over the measured time, each a system call, are reported for
+* an in-process server, and on Linux, the TCP segments the host sent, from {@code /proc/net/snmp}.
+*
+* Unless {@code --port} is given, a server is started in-process on a free loopback port, with channels
+* {@code load0}, {@code load1}... The client side uses virtual threads when run with
+* {@code -Djschat.threads=virtual}.
+*
+* Usage: LoadGenerator [options]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class LoadGenerator{
+
+  private static final String USAGE = String.join("\n",
+    "Usage: LoadGenerator [options]",
+    "  --host <host>           Server to load (default: 127.0.0.1)",
+    "  --port <port>           Port of an already running server; if omitted, one is started in-process",
+    "  --engine <threads|nio>  Engine of the in-process server (default: nio)",
+    "  --workers <n>           Event loops of the in-process nio server (default: one per CPU)",
+    "  --connections <n>       Connections to open (default: 1000)",
+    "  --channels <n>          Channels to spread them over, named load0.. (default: 10)",
+    "  --senders <n>           Connections that send, spread over the channels (default: 10)",
+    "  --rate <n>              Messages per second, across all senders (default: 200)",
+    "  --warmup <s>            Seconds of load before measuring (default: 3)",
+    "  --duration <s>          Seconds to measure (default: 10)",
+    "  --legacy                Use the legacy string protocol instead of negotiating the binary one",
+    "  --histogram             Print the full latency distribution");
+  private static final String STAMP = "> lg:"; // Marks a load message within the broadcast line.
+
+  private String host = "127.0.0.1";
+  private int port = -1;
+  private String engine = ChatServer.ENGINE_NIO;
+  private int workers = Runtime.getRuntime().availableProcessors();
+  private int connections = 1000;
+  private int channels = 10;
+  private int senders = 10;
+  private int rate = 200;
+  private int warmup = 3;
+  private int duration = 10;
+  private boolean legacy = false;
+  private boolean histogram = false;
+
+  private Histogram latency = new Histogram(60000000L); // Microseconds.
+  private AtomicLong delivered = new AtomicLong();
+  private AtomicLong expected = new AtomicLong();
+  private AtomicLong sent = new AtomicLong();
+  private AtomicInteger disconnects = new AtomicInteger();
+  private ConcurrentHashMap<String, AtomicInteger> connectErrors = new ConcurrentHashMap<String, AtomicInteger>();
+  private int[] members; // Connections logged in, per channel.
+  private volatile long measureStart = Long.MAX_VALUE;
+  private volatile long measureEnd = Long.MAX_VALUE;
+  private volatile boolean running = true;
+  private long[] counted = {-1, -1}; // Server writes and TCP segments sent, over the measured time; -1 if unknown.
+
+  public static void main(String args[]) throws Exception{
+
+    LoadGenerator gen = new LoadGenerator();
+    try{
+      for (int i = 0; i < args.length; i++){
+        switch (args[i]){
+          case "--host": gen.host = args[++i]; break;
+          case "--port": gen.port = Integer.parseInt(args[++i]); break;
+          case "--engine": gen.engine = args[++i]; break;
+          case "--workers": gen.workers = Integer.parseInt(args[++i]); break;
+          case "--connections": gen.connections = Integer.parseInt(args[++i]); break;
+          case "--channels": gen.channels = Integer.parseInt(args[++i]); break;
+          case "--senders": gen.senders = Integer.parseInt(args[++i]); break;
+          case "--rate": gen.rate = Integer.parseInt(args[++i]); break;
+          case "--warmup": gen.warmup = Integer.parseInt(args[++i]); break;
+          case "--duration": gen.duration = Integer.parseInt(args[++i]); break;
+          case "--legacy": gen.legacy = true; break;
+          case "--histogram": gen.histogram = true; break;
+          default: throw new IllegalArgumentException("unknown option: " + args[i]);
+        }
+      }
+      if (gen.channels < 1 || gen.senders < 1 || gen.senders > gen.connections || gen.rate < 1)
+        throw new IllegalArgumentException("need at least one channel and sender, and no more senders than connections");
+    }catch(RuntimeException e){
+      System.err.println("Error: " + e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    gen.run();
+  }
+
+  private void run() throws Exception{
+
+    ChatServer server = null;
+    if (port == -1){
+      server = startServer();
+      System.out.printf("In-process %s server on %s:%d%n", server.getEngine(), host, port);
+    }
+    members = new int[channels];
+    Client[] senderClients = new Client[senders];
+    ArrayList<Client> all = connectAll(senderClients);
+    int ok = all.size();
+    int sending = 0;
+    for (Client c : senderClients)
+      sending += (c == null) ? 0 : 1;
+    System.out.printf("Connected %d/%d (%d senders) in %d channels%n", ok, connections, sending, channels);
+    if (sending == 0){
+      System.out.println("No sender connected, nothing to measure.");
+      System.exit(1);
+    }
+
+    long start = System.nanoTime();
+    measureStart = start + warmup * 1000000000L;
+    measureEnd = measureStart + duration * 1000000000L;
+    Thread pacer = new Thread(new Runnable(){
+      @Override
+      public void run(){
+        pace(senderClients, start);
+      }
+    });
+    pacer.start();
+    LockSupport.parkNanos(measureStart - System.nanoTime());
+    long[] before = {serverWrites(server), tcpSegments()};
+    pacer.join();
+    long[] after = {serverWrites(server), tcpSegments()};
+    for (int i = 0; i < counted.length; i++)
+      counted[i] = (before[i] < 0 || after[i] < 0) ? -1 : after[i] - before[i];
+    Thread.sleep(1000); // Let messages in flight arrive.
+    running = false;
+    report(ok);
+    for (Client c : all)
+      c.close();
+    if (server != null)
+      server.stop();
+    System.exit(0);
+  }
+
+  /**
+  * Start a server in this process, and wait until it accepts connections.
+  */
+  private ChatServer startServer() throws InterruptedException{
+
+    ChatServer server = BenchServer.startServer(new Consumer<ChatServer>(){
+      @Override
+      public void accept(ChatServer server){
+        server.setHost(host);
+        server.setEngine(engine);
+        server.setWorkers(workers);
+        for (int i = 0; i < channels; i++)
+          server.addChannel("load" + i, "null");
+      }
+    });
+    port = server.getPort();
+    return server;
+  }
+
+  /**
+  * Open and log in every connection, a few at a time, and start a reader for each.
+  * @param senderClients Receives the connections that are to send, by index; failed ones are left {@code null}.
+  * @return All connections that logged in.
+  */
+  private ArrayList<Client> connectAll(Client[] senderClients) throws InterruptedException{
+
+    ArrayList<Client> all = new ArrayList<Client>();
+    AtomicInteger next = new AtomicInteger();
+    Thread[] workers = new Thread[8];
+    for (int w = 0; w < workers.length; w++){
+      workers[w] = new Thread(new Runnable(){
+        @Override
+        public void run(){
+          int i;
+          while ((i = next.getAndIncrement()) < connections){
+            Client c = connect(i);
+            if (c == null)
+              continue;
+            synchronized (all){
+              all.add(c);
+              members[i % channels]++;
+              if (i < senders)
+                senderClients[i] = c;
+            }
+          }
+        }
+      });
+      workers[w].start();
+    }
+    for (Thread t : workers)
+      t.join();
+    return all;
+  }
+
+  /**
+  * Open a connection and log it in to its channel.
+  * @param i Index of the connection.
+  * @return The client, {@code null} on failure.
+  */
+  private Client connect(int i){
+
+    String channel = "load" + (i % channels);
+    Client c = null;
+    try{
+      c = new Client(new Socket(host, port));
+      c.setTimeout(5000);
+      if (!(legacy) && !(c.negotiate())){
+        c.close();
+        c = new Client(new Socket(host, port)); // Server without the binary protocol.
+        c.setTimeout(5000);
+      }
+      if (c.getProtocol() == Frame.PROTOCOL_LEGACY)
+        c.send(String.format("lg%d<<>>%s<<>>null", i, channel));
+      else
+        c.send(Frame.auth("lg" + i, channel, "null"));
+      Frame reply = c.receiveFrame();
+      if (reply == null || reply.getType() == Frame.NONE){
+        error("no login reply");
+        c.close();
+        return null;
+      }
+      if (!(reply.getType() == Frame.AUTH_OK || reply.toLegacy().equals("[+]"))){
+        error(reply.getText());
+        c.close();
+        return null;
+      }
+    }catch(IOException e){
+      error(e.getClass().getSimpleName() + ": " + e.getMessage());
+      if (c != null)
+        c.close();
+      return null;
+    }
+    Client client = c;
+    client.setTimeout(0);
+    ExecutionMode.fromProperty().start(new Runnable(){
+      @Override
+      public void run(){
+        read(client);
+      }
+    }, true);
+    return client;
+  }
+
+  private void error(String reason){
+    connectErrors.putIfAbsent(reason, new AtomicInteger());
+    connectErrors.get(reason).incrementAndGet();
+  }
+
+  /**
+  * Receive messages on a connection, recording the latency of every load message sent in the measured window.
+  */
+  private void read(Client client){
+
+    Frame frame;
+    while ((frame = client.receiveFrame()) != null){
+      if (frame.getType() != Frame.CHAT)
+        continue;
+      String text = frame.getText();
+      int at = text.indexOf(STAMP);
+      if (at == -1)
+        continue;
+      int end = text.indexOf(' ', at + STAMP.length());
+      long due = Long.parseLong(text.substring(at + STAMP.length(), (end == -1) ? text.length() : end));
+      if (due >= measureStart && due < measureEnd){
+        latency.record((System.nanoTime() - due) / 1000);
+        delivered.incrementAndGet();
+      }
+    }
+    if (running)
+      disconnects.incrementAndGet();
+  }
+
+  /**
+  * Send messages from the senders in turn, each stamped with the time it was due.
+  */
+  private void pace(Client[] senderClients, long start){
+
+    long interval = 1000000000L / rate;
+    String padding = " the quick brown fox jumps over the lazy dog";
+    for (long k = 0; ; k++){
+      long due = start + k * interval;
+      if (due >= measureEnd)
+        return;
+      long wait = due - System.nanoTime();
+      if (wait > 0)
+        LockSupport.parkNanos(wait);
+      int s = (int)(k % senderClients.length);
+      Client sender = senderClients[s];
+      if (sender == null || !(sender.send("lg:" + due + padding)))
+        continue;
+      if (due >= measureStart){
+        sent.incrementAndGet();
+        expected.addAndGet(members[s % channels]); // Sender s is connection s, in channel s % channels.
+      }
+    }
+  }
+
+  /**
+  * Return the writes made by an in-process server to the sockets of its users, -1 if the server is not in-process.
+  */
+  private static long serverWrites(ChatServer server){
+
+    if (server == null)
+      return -1;
+    long sum = 0;
+    for (ChannelState ch : server.getChannels()){
+      for (Client c : ch.members())
+        sum += c.getWriteCount();
+    }
+    return sum;
+  }
+
+  /**
+  * Return the TCP segments sent by this host since boot, -1 if not on Linux.
+  */
+  private static long tcpSegments(){
+
+    try{
+      String[] header = null;
+      for (String line : Files.readAllLines(Paths.get("/proc/net/snmp"))){
+        if (!(line.startsWith("Tcp:")))
+          continue;
+        if (header == null){
+          header = line.split(" ");
+          continue;
+        }
+        String[] values = line.split(" ");
+        for (int i = 0; i < header.length; i++){
+          if (header[i].equals("OutSegs"))
+            return Long.parseLong(values[i]);
+        }
+      }
+    }catch(IOException | RuntimeException e){}
+    return -1;
+  }
+
+  private void report(int ok){
+
+    double secs = duration;
+    System.out.println();
+    System.out.printf("connections:  %d ok, %d failed, %d dropped during the run%n", ok, connections - ok, disconnects.get());
+    for (Map.Entry<String, AtomicInteger> e : connectErrors.entrySet())
+      System.out.printf("              %6d x %s%n", e.getValue().get(), e.getKey());
+    System.out.printf("sent:         %d messages (%.0f/s, target %d/s)%n", sent.get(), sent.get() / secs, rate);
+    System.out.printf("delivered:    %d of %d expected (%.0f/s), %d lost or still queued%n", delivered.get(), expected.get(),
+      delivered.get() / secs, expected.get() - delivered.get());
+    System.out.printf("latency (ms): p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f mean=%.3f%n",
+      latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(90) / 1e3, latency.getValueAtPercentile(99) / 1e3,
+      latency.getValueAtPercentile(99.9) / 1e3, latency.getMax() / 1e3, latency.getMean() / 1e3);
+    long messages = Math.max(1, delivered.get());
+    if (counted[0] >= 0)
+      System.out.printf("writes:       %.0f/s by the server, %.2f per message delivered%n", counted[0] / secs, counted[0] / (double)messages);
+    if (counted[1] >= 0)
+      System.out.printf("tcp segments: %.0f/s sent by this host, %.2f per message delivered%n", counted[1] / secs, counted[1] / (double)messages);
+    if (histogram){
+      System.out.println();
+      latency.printDistribution(System.out, 1e3);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.Client;
+import com.umarabdul.jschat.NioClient;
+import com.umarabdul.jschat.Frame;
+
+import java.net.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+
+/**
+* Compares how long a channel takes to pick up a message with the polling loop the threaded engine used to run
+* per channel, and with the selector loop used by {@code NioChannelEngine}. Every channel member is idle except the last one,
+* which sends a timestamped message at random intervals.
+*
+* Usage: ReadLatencyBench [samples] [members...]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class ReadLatencyBench{
+
+  private static volatile boolean running;
+
+  public static void main(String args[]) throws Exception{
+
+    int samples = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+    int[] sizes = {10, 50, 100};
+    if (args.length > 1){
+      sizes = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++)
+        sizes[i-1] = Integer.parseInt(args[i]);
+    }
+    System.out.printf("%-8s %8s %12s %12s %12s%n", "engine", "members", "mean (ms)", "p50 (ms)", "max (ms)");
+    for (int n : sizes){
+      report("polling", n, polling(n, samples));
+      report("nio", n, selector(n, samples));
+    }
+  }
+
+  private static void report(String engine, int members, double[] lat){
+
+    Arrays.sort(lat);
+    double sum = 0;
+    for (double d : lat)
+      sum += d;
+    System.out.printf("%-8s %8d %12.2f %12.2f %12.2f%n", engine, members, sum / lat.length, lat[lat.length / 2], lat[lat.length - 1]);
+  }
+
+  /**
+  * Open {@code n} loopback connections.
+  * @return Client-side sockets; the accepted sockets are placed in {@code accepted}.
+  */
+  private static ArrayList<Socket> connect(ServerSocket server, int n, ArrayList<Socket> accepted) throws IOException{
+
+    ArrayList<Socket> senders = new ArrayList<Socket>();
+    for (int i = 0; i < n; i++){
+      senders.add(new Socket(server.getInetAddress(), server.getLocalPort()));
+      accepted.add(server.accept());
+    }
+    return senders;
+  }
+
+  /**
+  * Start a thread that makes the last member send {@code samples} timestamped messages at random intervals.
+  */
+  private static Thread startSender(Socket sock, int samples){
+
+    Thread t = new Thread(new Runnable(){
+      @Override
+      public void run(){
+        try{
+          Client sender = new Client(sock);
+          Random rand = new Random(42);
+          for (int i = 0; i < samples && running; i++){
+            Thread.sleep(50 + rand.nextInt(100));
+            sender.send(String.valueOf(System.nanoTime()));
+          }
+        }catch(Exception e){
+          e.printStackTrace();
+        }
+      }
+    });
+    t.start();
+    return t;
+  }
+
+  private static double[] polling(int n, int samples) throws Exception{
+
+    ServerSocket server = new ServerSocket(0, n, InetAddress.getLoopbackAddress());
+    ArrayList<Socket> accepted = new ArrayList<Socket>();
+    ArrayList<Socket> senders = connect(server, n, accepted);
+    ArrayList<Client> clients = new ArrayList<Client>();
+    for (Socket s : accepted)
+      clients.add(new Client(s));
+    running = true;
+    startSender(senders.get(n - 1), samples);
+    double[] lat = new double[samples];
+    int got = 0;
+    // Same loop shape as the former ChannelHandler.run().
+    while (got < samples){
+      for (int i = 0; i < clients.size() && got < samples; i++){
+        String msg = clients.get(i).receive();
+        if (msg != null && msg.length() > 0)
+          lat[got++] = (System.nanoTime() - Long.parseLong(msg)) / 1e6;
+      }
+    }
+    running = false;
+    for (Client c : clients)
+      c.close();
+    for (Socket s : senders)
+      s.close();
+    server.close();
+    return lat;
+  }
+
+  private static double[] selector(int n, int samples) throws Exception{
+
+    ServerSocketChannel acceptor = ServerSocketChannel.open();
+    acceptor.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), n);
+    Selector selector = Selector.open();
+    ArrayList<Socket> senders = new ArrayList<Socket>();
+    ArrayList<NioClient> clients = new ArrayList<NioClient>();
+    for (int i = 0; i < n; i++){
+      senders.add(new Socket(InetAddress.getLoopbackAddress(), acceptor.socket().getLocalPort()));
+      SocketChannel sc = acceptor.accept();
+      sc.configureBlocking(false);
+      NioClient client = new NioClient(sc, null);
+      client.setKey(sc.register(selector, SelectionKey.OP_READ, client));
+      clients.add(client);
+    }
+    running = true;
+    startSender(senders.get(n - 1), samples);
+    double[] lat = new double[samples];
+    int got = 0;
+    while (got < samples){
+      selector.select(500);
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()){
+        SelectionKey key = keys.next();
+        keys.remove();
+        NioClient client = (NioClient)key.attachment();
+        if (!(client.read()))
+          continue;
+        Frame frame;
+        while ((frame = client.nextFrame()) != null && got < samples)
+          lat[got++] = (System.nanoTime() - Long.parseLong(frame.getText())) / 1e6;
+      }
+    }
+    running = false;
+    for (NioClient c : clients)
+      c.close();
+    for (Socket s : senders)
+      s.close();
+    selector.close();
+    acceptor.close();
+    return lat;
+  }
+}
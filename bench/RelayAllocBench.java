@@ -0,0 +1,196 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChannelState;
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.Frame;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+
+/**
+* The garbage the server makes relaying chat messages. A channel of many members has a few of them chatting
+* at a steady rate, and every message is broadcast to all of them. Reported are the bytes the server's threads
+* allocated per message relayed and per delivery, and the young collections and their pauses meanwhile, for
+* the whole process. Best run with a small heap, so collections show up within the run;
+*
+* <pre>
+*   JAVA_OPTS=-Xmx128m ./bench.sh RelayAllocBench --engine nio
+* </pre>
+*
+* The server is started in-process, with the given engine. The members are served by the calling thread, with
+* a single selector, reading frames without decoding them, so it allocates next to nothing itself, and is left
+* out of the bytes counted.
+*
+* Usage: RelayAllocBench [options]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class RelayAllocBench{
+
+  private static final String USAGE = String.join("\n",
+    "Usage: RelayAllocBench [options]",
+    "  --engine <threads|nio>  Engine of the server (default: nio)",
+    "  --members <n>           Members of the channel (default: 200)",
+    "  --senders <n>           Members chatting, taking turns (default: 10)",
+    "  --rate <n>              Messages per second, across the senders (default: 500)",
+    "  --warmup <s>            Seconds of chat before measuring (default: 3)",
+    "  --duration <s>          Seconds to measure (default: 10)");
+  private static final String TEXT = "The quick brown fox jumps over the lazy dog, and then does it again for good measure.";
+
+  private String engine = ChatServer.ENGINE_NIO;
+  private int members = 200;
+  private int senders = 10;
+  private int rate = 500;
+  private int warmup = 3;
+  private int duration = 10;
+
+  private long deliveries = 0; // Chat lines read by the members.
+
+  public static void main(String args[]) throws Exception{
+
+    RelayAllocBench bench = new RelayAllocBench();
+    try{
+      for (int i = 0; i < args.length; i++){
+        switch (args[i]){
+          case "--engine": bench.engine = args[++i]; break;
+          case "--members": bench.members = Integer.parseInt(args[++i]); break;
+          case "--senders": bench.senders = Integer.parseInt(args[++i]); break;
+          case "--rate": bench.rate = Integer.parseInt(args[++i]); break;
+          case "--warmup": bench.warmup = Integer.parseInt(args[++i]); break;
+          case "--duration": bench.duration = Integer.parseInt(args[++i]); break;
+          default: throw new IllegalArgumentException("unknown option: " + args[i]);
+        }
+      }
+      if (bench.members < 1 || bench.members > ChatServer.MAX_CHANNEL_USERS || bench.senders < 1 || bench.senders > bench.members || bench.rate < 1)
+        throw new IllegalArgumentException("need 1 to " + ChatServer.MAX_CHANNEL_USERS + " members, no more senders than members, and a rate");
+    }catch(RuntimeException e){
+      System.err.println("Error: " + e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    bench.run();
+  }
+
+  private void run() throws Exception{
+
+    ChatServer server = BenchServer.startServer(new Consumer<ChatServer>(){
+      @Override
+      public void accept(ChatServer server){
+        server.setEngine(engine);
+        server.addChannel("relay", "null");
+      }
+    });
+    InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+    System.out.printf("# %s engine, %d members, %d chatting, %d messages/s, %d MB of heap%n",
+      engine, members, senders, rate, Runtime.getRuntime().maxMemory() >> 20);
+    Selector selector = Selector.open();
+    SocketChannel[] conns = new SocketChannel[members];
+    for (int i = 0; i < members; i++){
+      conns[i] = BenchServer.login(target, "member" + i, "relay");
+      conns[i].register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(65536));
+    }
+    ByteBuffer msg = ByteBuffer.wrap(Frame.text(Frame.CHAT, TEXT).toBytes(Frame.PROTOCOL_BINARY));
+    ChannelState ch = server.getChannel("relay");
+    chat(selector, conns, msg, warmup);
+
+    long messages = ch.getMetrics().getMessages();
+    long delivered = deliveries;
+    long allocated = serverAllocated();
+    long collections = 0;
+    long pauses = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+      collections -= gc.getCollectionCount();
+      pauses -= gc.getCollectionTime();
+    }
+    long elapsed = chat(selector, conns, msg, duration);
+    allocated = serverAllocated() - allocated;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+      collections += gc.getCollectionCount();
+      pauses += gc.getCollectionTime();
+    }
+    messages = ch.getMetrics().getMessages() - messages;
+    delivered = deliveries - delivered;
+
+    System.out.printf("relayed:       %d messages (%.0f/s), %d deliveries (%.0f/s)%n", messages, messages / (elapsed / 1e9),
+      delivered, delivered / (elapsed / 1e9));
+    System.out.printf("allocated:     %.1f MB/s by the server; %d bytes per message, %.1f per delivery%n",
+      allocated / (elapsed / 1e9) / (1 << 20), allocated / Math.max(1, messages), allocated / (double)Math.max(1, delivered));
+    System.out.printf("gc:            %d collections, %d ms paused (%.2f%% of the time)%n", collections, pauses,
+      pauses * 100.0 / (elapsed / 1e6));
+    for (SocketChannel sc : conns)
+      sc.close();
+    selector.close();
+    server.stop();
+  }
+
+  /**
+  * Have the senders chat in turns at the rate, for the given time, reading what the server broadcasts.
+  * @return Time taken, in nanoseconds.
+  */
+  private long chat(Selector selector, SocketChannel[] conns, ByteBuffer msg, int seconds) throws IOException{
+
+    long start = System.nanoTime();
+    long end = start + seconds * 1000000000L;
+    long interval = 1000000000L / rate;
+    long next = start;
+    int turn = 0;
+    long now;
+    while ((now = System.nanoTime()) < end){
+      while (next <= now){
+        msg.rewind();
+        SocketChannel sc = conns[turn++ % senders];
+        while (msg.hasRemaining())
+          sc.write(msg);
+        next += interval;
+      }
+      selector.select(Math.max(1, (next - now) / 1000000));
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()){
+        SelectionKey key = keys.next();
+        keys.remove();
+        ByteBuffer in = (ByteBuffer)key.attachment();
+        if (((SocketChannel)key.channel()).read(in) < 0){
+          key.cancel();
+          continue;
+        }
+        in.flip();
+        while (in.remaining() >= Frame.HEADER_SIZE){ // Counted from the headers, without a frame each.
+          int size = in.getInt(in.position() + 2) + Frame.HEADER_SIZE;
+          if (in.remaining() < size)
+            break;
+          if (in.get(in.position()) == Frame.CHAT)
+            deliveries++;
+          in.position(in.position() + size);
+        }
+        in.compact();
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+  * Return the bytes allocated by every thread but the calling one, which serves the members.
+  */
+  private static long serverAllocated(){
+
+    com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long self = Thread.currentThread().getId();
+    long total = 0;
+    for (long id : mx.getAllThreadIds()){
+      long bytes = (id == self) ? -1 : mx.getThreadAllocatedBytes(id);
+      if (bytes > 0)
+        total += bytes;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,169 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.JSChatServer;
+
+import java.io.*;
+import java.awt.GraphicsEnvironment;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.swing.*;
+
+
+/**
+* Compares the startup cost of the headless server with the admin panel. Each run starts a fresh JVM that
+* brings up a server on a free port, then reports the time from JVM start until it is accepting connections,
+* the heap in use after a GC, resident memory, and the number of classes loaded.
+*
+* The admin panel needs a display. Without one, the GUI run creates the panel's Swing components off-screen
+* instead, which loads AWT and Swing but not a native window, so it understates the real cost.
+*
+* Usage: StartupBench [runs]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class StartupBench{
+
+  public static void main(String args[]) throws Exception{
+
+    if (args.length > 0 && args[0].startsWith("--child-")){
+      child(args[0].substring(8));
+      return;
+    }
+    int runs = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+    boolean display = !(GraphicsEnvironment.isHeadless());
+    System.out.printf("%d runs per mode, median reported%s%n", runs, display ? "" : " (no display: GUI mode builds the panel off-screen)");
+    System.out.printf("%-10s %12s %12s %12s %10s %10s%n", "mode", "wall (ms)", "ready (ms)", "heap (MB)", "RSS (MB)", "classes");
+    for (String mode : new String[]{"headless", "gui"}){
+      double[][] results = new double[5][runs];
+      for (int r = 0; r < runs; r++){
+        double[] res = spawn(mode);
+        for (int i = 0; i < res.length; i++)
+          results[i][r] = res[i];
+      }
+      System.out.printf("%-10s %12.0f %12.0f %12.1f %10.1f %10.0f%n", mode, median(results[0]), median(results[1]),
+        median(results[2]), median(results[3]), median(results[4]));
+    }
+  }
+
+  /**
+  * Start a child JVM in the given mode and wait for its report.
+  * @return Wall time to ready, ready time reported by the child, heap MB, RSS MB, and loaded classes.
+  */
+  private static double[] spawn(String mode) throws Exception{
+
+    ArrayList<String> cmd = new ArrayList<String>();
+    cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    cmd.add("-cp");
+    cmd.add(System.getProperty("java.class.path"));
+    cmd.add(StartupBench.class.getName());
+    cmd.add("--child-" + mode);
+    long start = System.nanoTime();
+    Process proc = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+    String line;
+    double[] res = null;
+    while ((line = reader.readLine()) != null){
+      if (line.startsWith("READY ")){
+        String[] f = line.split(" ");
+        res = new double[]{(System.nanoTime() - start) / 1e6, Double.parseDouble(f[1]), Double.parseDouble(f[2]),
+          Double.parseDouble(f[3]), Double.parseDouble(f[4])};
+      }else if (!(line.startsWith("Server"))){
+        System.out.println("  " + line);
+      }
+    }
+    proc.waitFor();
+    if (res == null)
+      throw new IOException(mode + " run failed");
+    return res;
+  }
+
+  /**
+  * Body of a child JVM: start a server the way the given mode would, then report and exit.
+  */
+  private static void child(String mode) throws Exception{
+
+    ChatServer server = new ChatServer();
+    server.setPort(0);
+    server.addChannel("bench", "null");
+    final Object lock = new Object();
+    ChatServer.Listener listener = new ChatServer.Listener(){
+      @Override
+      public void serverStarted(String host, int port){
+        long ready = ManagementFactory.getRuntimeMXBean().getUptime();
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        System.out.printf("READY %d %.2f %.2f %d%n", ready, (rt.totalMemory() - rt.freeMemory()) / (1024.0 * 1024),
+          rss() / 1024.0, ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+        server.stop();
+      }
+      @Override
+      public void serverStopped(String reason){}
+      @Override
+      public void usersChanged(){}
+    };
+    if (mode.equals("gui")){
+      if (GraphicsEnvironment.isHeadless()){
+        SwingUtilities.invokeAndWait(new Runnable(){
+          @Override
+          public void run(){
+            buildPanel();
+          }
+        });
+      }else{
+        JSChatServer panel = new JSChatServer(server);
+        panel.launch();
+        panel.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+      }
+    }
+    server.setListener(listener);
+    server.run();
+    System.exit(0);
+  }
+
+  /**
+  * Build an off-screen copy of the admin panel's component tree.
+  */
+  private static void buildPanel(){
+
+    JPanel panel = new JPanel(new java.awt.GridLayout(12, 2));
+    for (int i = 0; i < 6; i++){
+      panel.add(new JLabel("Label:"));
+      panel.add(new JTextField(15));
+    }
+    panel.add(new JComboBox<String>(new String[]{ChatServer.ENGINE_THREADS, ChatServer.ENGINE_NIO}));
+    for (int i = 0; i < 7; i++)
+      panel.add(new JButton("Button"));
+    panel.add(new JScrollPane(new JTable(new String[][]{{"1", "bench", "0"}}, new String[]{"S/N", "Channel Name", "Channel Users"})));
+    panel.setSize(350, 500);
+    panel.doLayout();
+  }
+
+  private static double median(double[] values){
+
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  /**
+  * Return the resident set size of this process, read from {@code /proc/self/status}.
+  * @return RSS in KB, {@code 0} if unavailable.
+  */
+  private static long rss(){
+
+    try{
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"))){
+        if (line.startsWith("VmRSS:"))
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+      }
+    }catch(Exception e){}
+    return 0;
+  }
+}
@@ -0,0 +1,98 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.Client;
+import com.umarabdul.jschat.ExecutionMode;
+
+import java.net.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+* Measures the cost of handling connections with a blocking reader thread per client, as the threaded
+* engine does in virtual thread mode, using either platform or virtual threads. Each accepted connection
+* gets a reader thread that echoes whatever it receives. Reports platform thread count, resident memory,
+* and echo round-trip latency. Run once per mode, since memory is measured for the whole process.
+*
+* Usage: ThreadModeBench [platform|virtual] [connections] [samples]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class ThreadModeBench{
+
+  public static void main(String args[]) throws Exception{
+
+    ExecutionMode mode = (args.length > 0 && args[0].equalsIgnoreCase("virtual")) ? ExecutionMode.VIRTUAL : ExecutionMode.PLATFORM;
+    int conns = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+    int samples = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+    if (mode == ExecutionMode.VIRTUAL && !(ExecutionMode.virtualThreadsSupported()))
+      System.out.println("Warning: virtual threads not supported by this JVM, falling back to platform threads.");
+    long rssBefore = rss();
+    int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+    ServerSocket server = new ServerSocket(0, 1000, InetAddress.getLoopbackAddress());
+    ArrayList<Client> peers = new ArrayList<Client>();
+    for (int i = 0; i < conns; i++){
+      Client peer = new Client(new Socket(server.getInetAddress(), server.getLocalPort()));
+      peer.setTimeout(5000);
+      peers.add(peer);
+      Client accepted = new Client(server.accept());
+      accepted.setTimeout(0);
+      mode.start(new Runnable(){
+        @Override
+        public void run(){
+          String msg;
+          while ((msg = accepted.receive()) != null){
+            if (msg.length() > 0)
+              accepted.send(msg);
+          }
+        }
+      }, true);
+    }
+    Thread.sleep(500);
+    System.gc();
+    int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+    long rssAfter = rss();
+
+    Random rand = new Random(42);
+    double[] lat = new double[samples];
+    for (int i = 0; i < samples; i++){
+      Client peer = peers.get(rand.nextInt(conns));
+      long start = System.nanoTime();
+      peer.send(String.valueOf(start));
+      peer.receive();
+      lat[i] = (System.nanoTime() - start) / 1e3;
+    }
+    Arrays.sort(lat);
+    System.out.printf("mode=%s virtual=%s connections=%d%n", mode, mode.isVirtual(), conns);
+    System.out.printf("platform threads added: %d%n", threads);
+    System.out.printf("RSS growth: %.1f MB (%.1f KB per connection)%n", (rssAfter - rssBefore) / 1024.0, (double)(rssAfter - rssBefore) / conns);
+    System.out.printf("echo latency (us): p50=%.1f p99=%.1f max=%.1f%n", lat[samples / 2], lat[(int)(samples * 0.99)], lat[samples - 1]);
+    for (Client peer : peers)
+      peer.close();
+    server.close();
+  }
+
+  /**
+  * Return the resident set size of this process, read from {@code /proc/self/status}.
+  * @return RSS in KB, {@code 0} if unavailable.
+  */
+  private static long rss(){
+
+    try{
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"))){
+        if (line.startsWith("VmRSS:"))
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+      }
+    }catch(Exception e){}
+    return 0;
+  }
+}
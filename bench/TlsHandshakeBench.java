@@ -0,0 +1,246 @@
+package com.umarabdul.jschat.bench;
+
+import com.umarabdul.jschat.ChatServer;
+import com.umarabdul.jschat.Client;
+import com.umarabdul.jschat.Frame;
+import com.umarabdul.jschat.Histogram;
+import com.umarabdul.jschat.TlsChannel;
+
+import java.net.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.net.ssl.*;
+
+
+/**
+* Measures how many logins per second a TLS server takes, each a new connection going through the TLS handshake,
+* the protocol offer and the login, then quitting. A number of clients connect over and over at once, for a fixed
+* time, and the logins completed and their latency are reported for each mode:
+*
+* <ul>
+*   <li>{@code plain}: without TLS, the baseline.</li>
+*   <li>{@code full}: every connection makes a full handshake, as a client that never connected before.</li>
+*   <li>{@code resumed}: every connection resumes the session of the client's last one, as a reconnecting client.</li>
+* </ul>
+*
+* The server is started in-process with the NIO engine, on a free loopback port. Unless a keystore is given, a
+* self-signed key is generated with {@code keytool} into a temporary directory. The clients run in the same
+* process, so on a machine with few CPUs they compete with the server, and the rates are lower bounds.
+*
+* Usage: TlsHandshakeBench [options]
+*
+* @author Umar Abdul
+* @version 1.0
+* @since 2020
+*/
+
+public class TlsHandshakeBench{
+
+  private static final String USAGE = String.join("\n",
+    "Usage: TlsHandshakeBench [options]",
+    "  --keystore <file>       Keystore with the server's key (default: a self-signed key, generated)",
+    "  --password <password>   Password of the keystore (default: changeit)",
+    "  --keyalg <EC|RSA>       Algorithm of the generated key (default: EC)",
+    "  --clients <n>           Clients connecting at once (default: 16)",
+    "  --warmup <s>            Seconds of logins before measuring, per mode (default: 3)",
+    "  --duration <s>          Seconds to measure, per mode (default: 10)",
+    "  --mode <mode>           plain, full, resumed or all (default: all)");
+  private static final String[] MODES = {"plain", "full", "resumed"};
+
+  private File keystore = null;
+  private String password = "changeit";
+  private String keyalg = "EC";
+  private int clients = 16;
+  private int warmup = 3;
+  private int duration = 10;
+  private String mode = "all";
+
+  public static void main(String args[]) throws Exception{
+
+    TlsHandshakeBench bench = new TlsHandshakeBench();
+    try{
+      for (int i = 0; i < args.length; i++){
+        switch (args[i]){
+          case "--keystore": bench.keystore = new File(args[++i]); break;
+          case "--password": bench.password = args[++i]; break;
+          case "--keyalg": bench.keyalg = args[++i].toUpperCase(); break;
+          case "--clients": bench.clients = Integer.parseInt(args[++i]); break;
+          case "--warmup": bench.warmup = Integer.parseInt(args[++i]); break;
+          case "--duration": bench.duration = Integer.parseInt(args[++i]); break;
+          case "--mode": bench.mode = args[++i]; break;
+          default: throw new IllegalArgumentException("unknown option: " + args[i]);
+        }
+      }
+      if (bench.clients < 1 || bench.duration < 1)
+        throw new IllegalArgumentException("need at least one client and a second to measure");
+    }catch(RuntimeException e){
+      System.err.println("Error: " + e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    bench.run();
+  }
+
+  private void run() throws Exception{
+
+    if (keystore == null)
+      keystore = generateKeystore();
+    char[] pass = password.toCharArray();
+    System.out.printf("# %d clients, %d s warmup, %d s measured, per mode; key: %s%n", clients, warmup, duration, keystore);
+    System.out.printf("%-10s %12s %10s %10s %10s %10s%n", "mode", "logins/s", "p50 ms", "p99 ms", "max ms", "errors");
+    for (String m : MODES){
+      if (!(mode.equals("all") || mode.equals(m)))
+        continue;
+      SSLContext tls = m.equals("plain") ? null : TlsChannel.createContext(keystore, pass);
+      ChatServer server = BenchServer.startServer(new Consumer<ChatServer>(){
+        @Override
+        public void accept(ChatServer server){
+          server.setEngine(ChatServer.ENGINE_NIO);
+          server.setTls(tls);
+          server.addChannel("bench", "null");
+        }
+      });
+      try{
+        measure(m, server.getPort(), m.equals("plain") ? null : clientContext(keystore, pass));
+      }finally{
+        server.stop();
+      }
+      Thread.sleep(1000); // Let the server close.
+    }
+  }
+
+  /**
+  * Have every client log in over and over, first for the warmup, then for the measured time, and report.
+  */
+  private void measure(String m, int port, SSLContext ctx) throws InterruptedException{
+
+    Histogram latency = new Histogram(60000000L); // Microseconds.
+    AtomicLong logins = new AtomicLong();
+    AtomicInteger errors = new AtomicInteger();
+    long start = System.nanoTime();
+    long measureStart = start + warmup * 1000000000L;
+    long measureEnd = measureStart + duration * 1000000000L;
+    Thread[] workers = new Thread[clients];
+    for (int w = 0; w < clients; w++){
+      String username = "tls" + w;
+      workers[w] = new Thread(new Runnable(){
+        @Override
+        public void run(){
+          long t0;
+          while ((t0 = System.nanoTime()) < measureEnd){
+            boolean ok = login(port, ctx, username, m.equals("full"));
+            long t1 = System.nanoTime();
+            if (t0 < measureStart)
+              continue;
+            if (!(ok)){
+              errors.incrementAndGet();
+              continue;
+            }
+            latency.record((t1 - t0) / 1000);
+            logins.incrementAndGet();
+          }
+        }
+      });
+      workers[w].start();
+    }
+    for (Thread t : workers)
+      t.join();
+    System.out.printf("%-10s %12.0f %10.2f %10.2f %10.2f %10d%n", m, logins.get() / (double)duration, latency.getValueAtPercentile(50) / 1e3,
+      latency.getValueAtPercentile(99) / 1e3, latency.getMax() / 1e3, errors.get());
+  }
+
+  /**
+  * Connect, log in and quit.
+  * @param ctx Context of the client, {@code null} for a plain connection.
+  * @param fresh Whether to forget the session afterwards, so the next connection can't resume it.
+  * @return {@code true} if the login succeeded.
+  */
+  private boolean login(int port, SSLContext ctx, String username, boolean fresh){
+
+    Socket sock = null;
+    try{
+      if (ctx == null){
+        sock = new Socket("127.0.0.1", port);
+      }else{
+        sock = ctx.getSocketFactory().createSocket("127.0.0.1", port);
+        ((SSLSocket)sock).startHandshake();
+      }
+      sock.setTcpNoDelay(true);
+      Client c = new Client(sock);
+      c.setTimeout(10000);
+      if (!(c.negotiate()))
+        return false;
+      c.send(Frame.auth(username, "bench", "null"));
+      Frame reply = c.receiveFrame();
+      boolean ok = (reply != null && reply.getType() == Frame.AUTH_OK);
+      c.send(new Frame(Frame.QUIT, (byte)0, new byte[0]));
+      if (fresh)
+        forget(ctx);
+      return ok;
+    }catch(IOException e){
+      return false;
+    }finally{
+      try{
+        if (sock != null)
+          sock.close();
+      }catch(IOException e){}
+    }
+  }
+
+  /**
+  * Drop the sessions cached by a client context, so its next connection makes a full handshake.
+  */
+  private static void forget(SSLContext ctx){
+
+    SSLSessionContext sessions = ctx.getClientSessionContext();
+    Enumeration<byte[]> ids = sessions.getIds();
+    while (ids.hasMoreElements()){
+      SSLSession s = sessions.getSession(ids.nextElement());
+      if (s != null)
+        s.invalidate();
+    }
+  }
+
+  /**
+  * Return a client context trusting the certificates in the given keystore, such as the server's own.
+  */
+  private static SSLContext clientContext(File keystore, char[] password) throws IOException{
+
+    try{
+      TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      tmf.init(KeyStore.getInstance(keystore, password));
+      SSLContext ctx = SSLContext.getInstance("TLS");
+      ctx.init(null, tmf.getTrustManagers(), null);
+      return ctx;
+    }catch(GeneralSecurityException e){
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+  * Generate a self-signed key for localhost in a temporary keystore, deleted on exit.
+  */
+  private File generateKeystore() throws IOException, InterruptedException{
+
+    File dir = Files.createTempDirectory("jschat-tls").toFile();
+    File file = new File(dir, "bench.p12");
+    String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+    ProcessBuilder pb = new ProcessBuilder(keytool, "-genkeypair", "-alias", "jschat", "-keyalg", keyalg,
+      "-keysize", keyalg.equals("RSA") ? "2048" : "256", "-dname", "CN=localhost", "-validity", "2",
+      "-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass", password, "-keypass", password);
+    pb.redirectErrorStream(true);
+    Process p = pb.start();
+    byte[] out = p.getInputStream().readAllBytes();
+    if (p.waitFor() != 0)
+      throw new IOException("keytool failed: " + new String(out));
+    file.deleteOnExit();
+    dir.deleteOnExit();
+    return file;
+  }
+}